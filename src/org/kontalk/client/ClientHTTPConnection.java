@@ -19,14 +19,18 @@
 package org.kontalk.client;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
@@ -45,24 +49,17 @@ import javax.net.ssl.X509TrustManager;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
+import org.kontalk.crypto.Coder;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
-import org.kontalk.util.Preferences;
+import org.kontalk.util.MessageUtils;
 import org.kontalk.util.ProgressOutputStreamEntity;
 
 import android.content.Context;
@@ -80,6 +77,15 @@ public class ClientHTTPConnection {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+    /** Message flags header. */
+    private static final String HEADER_MESSAGE_FLAGS = "X-Message-Flags";
+
+    /** Buffer size for encrypted data. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Directory for partial downloads, relative to the download directory. */
+    private static final String PARTIAL_DIR = ".partial";
+
     private final Context mContext;
 
     private final PrivateKey mPrivateKey;
@@ -120,7 +126,9 @@ public class ClientHTTPConnection {
         // in-memory keystore
         KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
         keystore.load(null, null);
-        keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
+        // anonymous client (e.g. server list download)
+        if (privateKey != null && certificate != null)
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
 
         // load merged truststore (system + internal)
         KeyStore truststore = InternalTrustStore.getTrustStore(context);
@@ -141,32 +149,8 @@ public class ClientHTTPConnection {
     private HttpResponse execute(HttpRequestBase request) throws IOException {
         // execute!
         try {
-            if (mConnection == null) {
-                SchemeRegistry registry = new SchemeRegistry();
-                try {
-                    registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
-
-                    boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-                    registry.register(new Scheme("https", setupSSLSocketFactory(mContext,
-                    	mPrivateKey, mCertificate, acceptAnyCertificate), 443));
-                }
-                catch (Exception e) {
-                    IOException ie = new IOException("unable to create keystore");
-                    ie.initCause(e);
-                    throw ie;
-                }
-
-                HttpParams params = new BasicHttpParams();
-                // handle redirects :)
-                params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-                // HttpClient bug caused by Lighttpd
-                params.setBooleanParameter("http.protocol.expect-continue", false);
-
-                // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-                mConnection = new DefaultHttpClient(connMgr, params);
-            }
+            if (mConnection == null)
+                mConnection = HttpClientPool.getClient(mContext, mPrivateKey, mCertificate);
             return mConnection.execute(request);
         }
         catch (ClientProtocolException e) {
@@ -178,18 +162,73 @@ public class ClientHTTPConnection {
     }
 
     /** Downloads to a directory represented by a {@link File} object,
-     * determining the file name from the Content-Disposition header. */
-    public void downloadAutofilename(String url, File base, DownloadListener listener) throws IOException {
-        _download(url, base, listener);
+     * determining the file name from the Content-Disposition header.
+     * Data is written to a partial file first, which is kept if the download
+     * is interrupted: downloading the same URL again will resume from there.
+     * @param decrypter coder for decrypting data if the server reports it as
+     * encrypted, may be null
+     * @param length expected length of (decrypted) data, 0 or less if unknown
+     * @throws IOException if the download was interrupted */
+    public void downloadAutofilename(String url, File base, Coder decrypter,
+            long length, DownloadListener listener) throws IOException {
+        try {
+            _download(url, base, decrypter, length, listener, true);
+        }
+        catch (IOException e) {
+            // release the connection
+            abort();
+            throw e;
+        }
     }
 
-    private void _download(String url, File base, DownloadListener listener) throws IOException {
+    private void _download(String url, File base, Coder decrypter, long length,
+            DownloadListener listener, boolean retry) throws IOException {
+
+        PartialFile partial = new PartialFile(new File(base, PARTIAL_DIR),
+            MessageUtils.sha1(url));
+
+        // resume only if we can check that content didn't change
+        long offset = partial.length();
+        String validator = partial.getValidator();
+        if (offset > 0 && validator == null) {
+            partial.delete();
+            offset = 0;
+        }
+
         currentRequest = prepareURLDownload(url);
+        if (offset > 0) {
+            Log.v(TAG, "resuming download from byte " + offset);
+            currentRequest.addHeader("Range", "bytes=" + offset + "-");
+            currentRequest.addHeader("If-Range", validator);
+        }
+
         HttpResponse response = execute(currentRequest);
 
         int code = response.getStatusLine().getStatusCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
+
+        // partial file is not valid anymore
+        if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && retry) {
+            response.getEntity().consumeContent();
+            partial.delete();
+            _download(url, base, decrypter, length, listener, false);
+            return;
+        }
+
+        // server ignored our range request or content changed
+        if (code == HttpStatus.SC_OK)
+            offset = 0;
+
+        else if (code == HttpStatus.SC_PARTIAL_CONTENT &&
+                !isContentRange(response, offset)) {
+            Log.w(TAG, "unexpected content range, discarding partial download");
+            response.getEntity().consumeContent();
+            partial.delete();
+            listener.error(url, null, new IOException("invalid content range"));
+            return;
+        }
+
+        // HTTP/1.1 200 OK or 206 Partial Content -- other codes should throw Exceptions
+        if (code == HttpStatus.SC_OK || code == HttpStatus.SC_PARTIAL_CONTENT) {
             Header disp = response.getFirstHeader("Content-Disposition");
             if (disp != null) {
                 String name = parseContentDisposition(disp.getValue());
@@ -198,12 +237,53 @@ public class ClientHTTPConnection {
 
                 HttpEntity _entity = response.getEntity();
                 if (name != null && _entity != null) {
+                    boolean encrypted = isEncrypted(response);
+                    if (encrypted && decrypter == null) {
+                        _entity.consumeContent();
+                        listener.error(url, null, new IOException("no decryption key for encrypted data"));
+                        return;
+                    }
+
+                    partial.setValidator(getValidator(response));
+
                     // we need to wrap the entity to monitor the download progress
                     File destination = new File(base, name);
-                    ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity, url, destination, listener);
-                    FileOutputStream out = new FileOutputStream(destination);
-                    entity.writeTo(out);
-                    out.close();
+                    ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity,
+                        url, destination, offset, listener);
+                    // partial data is kept if download is interrupted
+                    FileOutputStream out = new FileOutputStream(partial.getFile(), offset > 0);
+                    try {
+                        entity.writeTo(out);
+                    }
+                    finally {
+                        out.close();
+                    }
+
+                    try {
+                        if (encrypted)
+                            decryptFile(partial.getFile(), destination, decrypter);
+                        else {
+                            destination.delete();
+                            if (!partial.getFile().renameTo(destination))
+                                throw new IOException("unable to move downloaded file");
+                        }
+
+                        if (length > 0 && destination.length() != length)
+                            throw new IOException("length mismatch: expected " +
+                                length + ", got " + destination.length());
+                    }
+                    catch (IOException e) {
+                        // don't leave corrupted or unverified data around
+                        destination.delete();
+                        listener.error(url, destination, e);
+                        return;
+                    }
+                    finally {
+                        partial.delete();
+                    }
+
+                    Header mime = _entity.getContentType();
+                    listener.completed(url, mime != null ? mime.getValue() : null, destination);
                     return;
                 }
             }
@@ -218,6 +298,52 @@ public class ClientHTTPConnection {
         listener.error(url, null, new IOException("invalid response: " + code));
     }
 
+    /** Decrypts a downloaded file. */
+    private static void decryptFile(File source, File destination, Coder decrypter)
+            throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = decrypter.wrapInputStream(new FileInputStream(source));
+            out = new FileOutputStream(destination);
+
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+                out.write(buf, 0, len);
+        }
+        catch (GeneralSecurityException e) {
+            IOException ie = new IOException("decryption error");
+            ie.initCause(e);
+            throw ie;
+        }
+        finally {
+            if (in != null)
+                in.close();
+            if (out != null)
+                out.close();
+        }
+    }
+
+    /** Returns true if the response content starts at the given offset. */
+    private static boolean isContentRange(HttpResponse response, long offset) {
+        Header range = response.getFirstHeader("Content-Range");
+        return range != null && range.getValue().startsWith("bytes " + offset + "-");
+    }
+
+    /** Returns a validator for the If-Range header, if any. */
+    private static String getValidator(HttpResponse response) {
+        Header validator = response.getFirstHeader("ETag");
+        if (validator == null)
+            validator = response.getFirstHeader("Last-Modified");
+        return validator != null ? validator.getValue() : null;
+    }
+
+    private static boolean isEncrypted(HttpResponse response) {
+        Header flags = response.getFirstHeader(HEADER_MESSAGE_FLAGS);
+        return flags != null && flags.getValue().contains("encrypted");
+    }
+
     /*
      * Parse the Content-Disposition HTTP Header. The format of the header
      * is defined here: http://www.w3.org/Protocols/rfc2616/rfc2616-sec19.html
@@ -237,6 +363,75 @@ public class ClientHTTPConnection {
         return null;
     }
 
+    /**
+     * Data of an interrupted download. The validator of the content being
+     * downloaded is stored in a separate file.
+     */
+    private static final class PartialFile {
+        private final File mFile;
+        private final File mInfo;
+
+        public PartialFile(File dir, String name) {
+            dir.mkdirs();
+            mFile = new File(dir, name);
+            mInfo = new File(dir, name + ".info");
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public long length() {
+            return mFile.length();
+        }
+
+        public String getValidator() {
+            if (!mInfo.isFile())
+                return null;
+
+            try {
+                byte[] data = new byte[(int) mInfo.length()];
+                FileInputStream in = new FileInputStream(mInfo);
+                try {
+                    int read = 0;
+                    while (read < data.length) {
+                        int len = in.read(data, read, data.length - read);
+                        if (len < 0)
+                            return null;
+                        read += len;
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                return data.length > 0 ? new String(data, "UTF-8") : null;
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+
+        public void setValidator(String validator) throws IOException {
+            if (validator == null) {
+                mInfo.delete();
+                return;
+            }
+
+            FileOutputStream out = new FileOutputStream(mInfo);
+            try {
+                out.write(validator.getBytes("UTF-8"));
+            }
+            finally {
+                out.close();
+            }
+        }
+
+        public void delete() {
+            mFile.delete();
+            mInfo.delete();
+        }
+    }
+
     /** A socket factory for accepting any SSL certificate. */
     private static final class BlackholeSSLSocketFactory extends SSLSocketFactory {
         SSLContext sslContext = SSLContext.getInstance("TLS");
@@ -0,0 +1,222 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Preferences;
+
+import android.content.Context;
+import android.util.Log;
+
+
+/**
+ * Process-wide HTTP clients shared by all media transfers.
+ * There is one client for every client identity (key, certificate and
+ * certificate validation mode), so transfers using different identities
+ * never disturb each other's connections. Connections are pooled and kept
+ * alive between requests, and the SSL socket factory (together with its
+ * TLS session cache) is created only once for every identity.
+ * @author Daniele Ricci
+ */
+public final class HttpClientPool {
+    private static final String TAG = HttpClientPool.class.getSimpleName();
+
+    /** Maximum connections to the same server. */
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 5;
+    /** Maximum connections overall. */
+    private static final int MAX_CONNECTIONS = 10;
+    /** Idle connections are closed after this time (seconds). */
+    private static final long IDLE_TIMEOUT = 60;
+    /** Clients with no connections are discarded above this many identities. */
+    private static final int MAX_CLIENTS = 4;
+    /** Statistics will be logged every this many requests. */
+    private static final int STATS_INTERVAL = 20;
+
+    /** A client and its connection manager. */
+    private static final class Client {
+        final HttpClient client;
+        final ThreadSafeClientConnManager connMgr;
+
+        public Client(HttpClient client, ThreadSafeClientConnManager connMgr) {
+            this.client = client;
+            this.connMgr = connMgr;
+        }
+    }
+
+    /** Clients by identity, least recently used first. */
+    private static final Map<String, Client> sClients =
+        new LinkedHashMap<String, Client>(MAX_CLIENTS, 0.75f, true);
+
+    // statistics
+    private static final AtomicLong sRequests = new AtomicLong();
+    private static final AtomicLong sReused = new AtomicLong();
+
+    private HttpClientPool() {
+    }
+
+    /**
+     * Returns the shared client for the given client certificate. A new
+     * client is created the first time an identity is used.
+     */
+    public static synchronized HttpClient getClient(Context context,
+            PrivateKey privateKey, X509Certificate certificate) throws IOException {
+
+        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(context);
+        String identity = getIdentity(privateKey, certificate, acceptAnyCertificate);
+
+        for (Client c : sClients.values())
+            c.connMgr.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS);
+
+        Client client = sClients.get(identity);
+        if (client == null) {
+            client = createClient(context, privateKey, certificate, acceptAnyCertificate);
+            sClients.put(identity, client);
+            discardUnused();
+        }
+
+        return client.client;
+    }
+
+    private static Client createClient(Context context, PrivateKey privateKey,
+            X509Certificate certificate, boolean acceptAnyCertificate) throws IOException {
+
+        SchemeRegistry registry = new SchemeRegistry();
+        try {
+            registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", ClientHTTPConnection
+                .setupSSLSocketFactory(context, privateKey, certificate, acceptAnyCertificate), 443));
+        }
+        catch (Exception e) {
+            IOException ie = new IOException("unable to create keystore");
+            ie.initCause(e);
+            throw ie;
+        }
+
+        HttpParams params = new BasicHttpParams();
+        // handle redirects :)
+        params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
+        // HttpClient bug caused by Lighttpd
+        params.setBooleanParameter("http.protocol.expect-continue", false);
+        // connection pool limits
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+            new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+
+        ThreadSafeClientConnManager connMgr = new ThreadSafeClientConnManager(params, registry);
+        DefaultHttpClient client = new DefaultHttpClient(connMgr, params);
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                HttpConnection conn = (HttpConnection) context
+                    .getAttribute(ExecutionContext.HTTP_CONNECTION);
+                countRequest(conn != null && conn.getMetrics().getRequestCount() > 0);
+            }
+        });
+
+        return new Client(client, connMgr);
+    }
+
+    /**
+     * Shuts down least recently used clients exceeding {@link #MAX_CLIENTS}.
+     * Clients with connections still in use are never shut down.
+     */
+    private static void discardUnused() {
+        Iterator<Client> iter = sClients.values().iterator();
+        while (sClients.size() > MAX_CLIENTS && iter.hasNext()) {
+            Client c = iter.next();
+            c.connMgr.closeIdleConnections(0, TimeUnit.SECONDS);
+            if (c.connMgr.getConnectionsInPool() == 0) {
+                c.connMgr.shutdown();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns a stable identifier for a client identity. Key objects can't
+     * be compared directly since a new instance is created on every request.
+     */
+    private static String getIdentity(PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate) throws IOException {
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            if (privateKey != null && privateKey.getEncoded() != null)
+                md.update(privateKey.getEncoded());
+            md.update((byte) 0);
+            if (certificate != null)
+                md.update(certificate.getEncoded());
+
+            return MessageUtils.bytesToHex(md.digest()) + (acceptAnyCertificate ? "+any" : "");
+        }
+        catch (GeneralSecurityException e) {
+            IOException ie = new IOException("unable to fingerprint client identity");
+            ie.initCause(e);
+            throw ie;
+        }
+    }
+
+    private static void countRequest(boolean reused) {
+        long requests = sRequests.incrementAndGet();
+        long reusedCount = reused ? sReused.incrementAndGet() : sReused.get();
+
+        if (requests % STATS_INTERVAL == 0)
+            Log.v(TAG, requests + " requests, " + reusedCount + " on reused connections (" +
+                (reusedCount * 100 / requests) + "%)");
+    }
+
+    /** Returns the number of requests executed so far. */
+    public static long getRequestCount() {
+        return sRequests.get();
+    }
+
+    /** Returns the number of requests executed on an already used connection. */
+    public static long getReusedCount() {
+        return sReused.get();
+    }
+
+}
@@ -471,7 +471,14 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
      */
     public static String fixNumber(Context context, String number, String myNumber, int lastResortCc)
             throws NumberParseException {
+        return fixNumber(number, getRegionCode(context, myNumber), lastResortCc);
+    }
 
+    /**
+     * Returns the default region code used by {@link #fixNumber}.
+     * @param myNumber used to take the country code, may be null
+     */
+    public static String getRegionCode(Context context, String myNumber) {
         final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
         String myRegionCode = tm.getSimCountryIso();
         if (myRegionCode != null)
@@ -489,6 +496,18 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
             // ehm :)
         }
 
+        return myRegionCode;
+    }
+
+    /**
+     * Converts a phone number into E.164 format using a region code
+     * returned by {@link #getRegionCode}.
+     * Use this when converting many numbers.
+     */
+    public static String fixNumber(String number, String myRegionCode, int lastResortCc)
+            throws NumberParseException {
+
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumber parsedNum;
         try {
             parsedNum = util.parse(number, myRegionCode);
@@ -88,10 +88,24 @@ public abstract class Coder {
     				throws GeneralSecurityException;
 
 
+    /**
+     * Returns a stream decrypting data read from the given encrypted stream.
+     * Data integrity is checked when the end of stream is reached.
+     */
     public abstract InputStream wrapInputStream(InputStream inputStream) throws GeneralSecurityException;
 
-    public abstract OutputStream wrapOutputStream(OutputStream outputStream) throws GeneralSecurityException;
+    /**
+     * Returns a stream encrypting data written to it into the given stream.
+     * Closing the returned stream finishes encryption but doesn't close the
+     * given stream.
+     * @param length exact length of data that will be written
+     */
+    public abstract OutputStream wrapOutputStream(OutputStream outputStream, long length) throws GeneralSecurityException;
 
+    /**
+     * Returns the exact length of data written by {@link #wrapOutputStream}.
+     * @return the encrypted length, or -1 if it can't be predicted
+     */
     public abstract long getEncryptedLength(long decryptedLength);
 
 
@@ -26,9 +26,12 @@ import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_VERIFICATION
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
@@ -41,7 +44,11 @@ import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.CPIMMessage;
 import org.kontalk.util.XMPPUtils;
+import org.spongycastle.bcpg.BCPGOutputStream;
 import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PacketTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyEncSessionPacket;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPCompressedDataGenerator;
 import org.spongycastle.openpgp.PGPEncryptedData;
@@ -60,6 +67,7 @@ import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
@@ -69,6 +77,8 @@ import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenera
 
 /**
  * PGP coder implementation.
+ * Encryption coders precompute everything that doesn't change between
+ * messages, so they can be reused for all messages to the same recipients.
  * @author Daniele Ricci
  */
 public class PGPCoder extends Coder {
@@ -76,6 +86,16 @@ public class PGPCoder extends Coder {
     /** Buffer size. It should always be a power of 2. */
     private static final int BUFFER_SIZE = 1 << 8;
 
+    /** Symmetric algorithm used for encryption. */
+    private static final int ENCRYPT_ALGORITHM = PGPEncryptedData.AES_192;
+    /** Block size of {@link #ENCRYPT_ALGORITHM}. */
+    private static final int ENCRYPT_BLOCK_SIZE = 16;
+    /** Length of the modification detection code packet. */
+    private static final int MDC_PACKET_LENGTH = 22;
+
+    /** Shared random number generator. */
+    private static final SecureRandom sRandom = new SecureRandom();
+
     private final EndpointServer mServer;
     private final PersonalKey mKey;
 
@@ -84,11 +104,23 @@ public class PGPCoder extends Coder {
     private final PGPPublicKey[] mRecipients;
     private final PGPPublicKey mSender;
 
+    /* Encryption session data. */
+    private String mFromUid;
+    private String mToUids;
+    private BcPGPDataEncryptorBuilder mEncryptorBuilder;
+    private BcPublicKeyKeyEncryptionMethodGenerator[] mMethodGenerators;
+    /** Length of session key packets, -1 if it's not constant. */
+    private long mSessionKeysLength;
+    private BcPGPContentSignerBuilder mSignerBuilder;
+    private PGPSignatureSubpacketVector mSignerSubpackets;
+
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKey[] recipients) {
         mServer = server;
         mKey = key;
         mRecipients = recipients;
         mSender = null;
+
+        initEncryptSession();
     }
 
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKey sender) {
@@ -98,6 +130,62 @@ public class PGPCoder extends Coder {
         mSender = sender;
     }
 
+    /** Precomputes data used for every encrypted message. */
+    private void initEncryptSession() {
+        String network = mServer.getNetwork();
+
+        mFromUid = mKey.getUserId(network);
+        StringBuilder to = new StringBuilder();
+        for (PGPPublicKey rcpt : mRecipients)
+            to.append(PGP.getUserId(rcpt, network))
+                .append("; ");
+        mToUids = to.toString();
+
+        // data encryptor
+        mEncryptorBuilder = new BcPGPDataEncryptorBuilder(ENCRYPT_ALGORITHM);
+        mEncryptorBuilder.setWithIntegrityPacket(true);
+        mEncryptorBuilder.setSecureRandom(sRandom);
+
+        // public key recipients
+        mMethodGenerators = new BcPublicKeyKeyEncryptionMethodGenerator[mRecipients.length];
+        mSessionKeysLength = 0;
+        for (int i = 0; i < mRecipients.length; i++) {
+            mMethodGenerators[i] = new FixedLengthMethodGenerator(mRecipients[i]);
+            mMethodGenerators[i].setSecureRandom(sRandom);
+
+            long length = FixedLengthMethodGenerator.getPacketLength(mRecipients[i]);
+            mSessionKeysLength = (length < 0 || mSessionKeysLength < 0) ?
+                -1 : mSessionKeysLength + length;
+        }
+
+        // signer
+        mSignerBuilder = new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
+            .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1);
+        mSignerBuilder.setSecureRandom(sRandom);
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, mFromUid);
+        mSignerSubpackets = spGen.generate();
+    }
+
+    /**
+     * Returns true if this coder encrypts with the given keys. Keys are
+     * compared by identity, so a coder is not reused after a key has been
+     * reloaded.
+     */
+    public boolean isFor(EndpointServer server, PersonalKey key, PGPPublicKey[] recipients) {
+        if (mRecipients == null || mKey != key || mRecipients.length != recipients.length ||
+                !mServer.getNetwork().equals(server.getNetwork()))
+            return false;
+
+        for (int i = 0; i < recipients.length; i++) {
+            if (mRecipients[i] != recipients[i])
+                return false;
+        }
+
+        return true;
+    }
+
     @Override
     public byte[] encryptText(CharSequence text) throws GeneralSecurityException {
         try {
@@ -138,28 +226,17 @@ public class PGPCoder extends Coder {
     private byte[] encryptData(String mime, CharSequence data)
     		throws PGPException, IOException, SignatureException {
 
-        String from = mKey.getUserId(mServer.getNetwork());
-        StringBuilder to = new StringBuilder();
-        for (PGPPublicKey rcpt : mRecipients)
-            to.append(PGP.getUserId(rcpt, mServer.getNetwork()))
-                .append("; ");
-
         // secure the message against the most basic attacks using Message/CPIM
-        CPIMMessage cpim = new CPIMMessage(from, to.toString(), new Date(), mime, data);
+        CPIMMessage cpim = new CPIMMessage(mFromUid, mToUids, new Date(), mime, data);
         byte[] plainText = cpim.toByteArray();
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
-
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKey rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(rcpt));
+        // setup data generator
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(mEncryptorBuilder);
+        for (BcPublicKeyKeyEncryptionMethodGenerator method : mMethodGenerators)
+            encGen.addMethod(method);
 
         OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
 
@@ -168,14 +245,9 @@ public class PGPCoder extends Coder {
         OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
 
         // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator(mSignerBuilder);
         sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
+        sigGen.setUnhashedSubpackets(mSignerSubpackets);
 
         sigGen.generateOnePassVersion(false)
             .encode(compressedOut);
@@ -429,20 +501,263 @@ public class PGPCoder extends Coder {
 
     }
 
+    @Override
     public InputStream wrapInputStream(InputStream inputStream) throws GeneralSecurityException {
-        // TODO
-        return null;
-        //return new CipherInputStream(inputStream, TODO);
+        try {
+            PGPObjectFactory pgpF = new PGPObjectFactory(inputStream);
+            Object o = pgpF.nextObject();
+
+            // the first object might be a PGP marker packet
+            if (!(o instanceof PGPEncryptedDataList))
+                o = pgpF.nextObject();
+
+            if (!(o instanceof PGPEncryptedDataList))
+                throw new DecryptException(DECRYPT_EXCEPTION_INVALID_DATA,
+                    "Encrypted data packet expected");
+
+            // look for our encryption key
+            @SuppressWarnings("unchecked")
+            Iterator<PGPPublicKeyEncryptedData> it = ((PGPEncryptedDataList) o)
+                .getEncryptedDataObjects();
+            PGPPrivateKey sKey = mKey.getEncryptKeyPair().getPrivateKey();
+            PGPPublicKeyEncryptedData pbe = null;
+
+            while (it.hasNext()) {
+                PGPPublicKeyEncryptedData data = it.next();
+                if (data.getKeyID() == sKey.getKeyID()) {
+                    pbe = data;
+                    break;
+                }
+            }
+
+            if (pbe == null)
+                throw new DecryptException(
+                    DECRYPT_EXCEPTION_PRIVATE_KEY_NOT_FOUND,
+                    "Secret key for data not found.");
+
+            PGPObjectFactory plainFact = new PGPObjectFactory(pbe
+                .getDataStream(new BcPublicKeyDataDecryptorFactory(sKey)));
+            Object message = plainFact.nextObject();
+
+            // other clients might compress data
+            if (message instanceof PGPCompressedData) {
+                plainFact = new PGPObjectFactory(((PGPCompressedData) message)
+                    .getDataStream());
+                message = plainFact.nextObject();
+            }
+
+            // signatures are not verified on streams
+            if (message instanceof PGPOnePassSignatureList)
+                message = plainFact.nextObject();
+
+            if (!(message instanceof PGPLiteralData))
+                throw new DecryptException(DECRYPT_EXCEPTION_INVALID_DATA,
+                    "Literal data packet expected");
+
+            return new DecryptInputStream(((PGPLiteralData) message)
+                .getInputStream(), pbe);
+        }
+
+        catch (IOException ioe) {
+            throw new DecryptException(DECRYPT_EXCEPTION_INVALID_DATA, ioe);
+        }
+
+        catch (PGPException pe) {
+            throw new DecryptException(DECRYPT_EXCEPTION_INVALID_DATA, pe);
+        }
     }
 
-    public OutputStream wrapOutputStream(OutputStream outputStream) throws GeneralSecurityException {
-        // TODO
-        return null;
-        //return new CipherOutputStream(outputStream, TODO);
+    /**
+     * Encrypted data is neither compressed nor signed, so its length can be
+     * known before encryption.
+     */
+    @Override
+    public OutputStream wrapOutputStream(OutputStream outputStream, long length) throws GeneralSecurityException {
+        if (mRecipients == null)
+            throw new IllegalStateException("not an encryption coder");
+
+        try {
+            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(mEncryptorBuilder);
+            for (BcPublicKeyKeyEncryptionMethodGenerator method : mMethodGenerators)
+                encGen.addMethod(method);
+
+            OutputStream encryptedOut = encGen.open(outputStream,
+                getLiteralPacketLength(length));
+
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(
+                encryptedOut,
+                PGPLiteralData.BINARY,
+                "",
+                length,
+                new Date());
+
+            return new EncryptOutputStream(literalOut, literalGen, encGen);
+        }
+
+        catch (IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+
+        catch (PGPException e) {
+            throw new GeneralSecurityException(e);
+        }
     }
 
+    @Override
     public long getEncryptedLength(long decryptedLength) {
-        // TODO
-        return 0;
+        if (mRecipients == null || mSessionKeysLength < 0)
+            return -1;
+
+        long dataLength = 1 + ENCRYPT_BLOCK_SIZE + 2 +
+            getLiteralPacketLength(decryptedLength) + MDC_PACKET_LENGTH;
+
+        return mSessionKeysLength +
+            getPacketHeaderLength(PacketTags.SYM_ENC_INTEGRITY_PRO, dataLength) +
+            dataLength;
+    }
+
+    /** Length of an anonymous literal data packet. */
+    private static long getLiteralPacketLength(long length) {
+        // format, file name length, date
+        long bodyLength = length + 1 + 1 + 4;
+        return getPacketHeaderLength(PacketTags.LITERAL_DATA, bodyLength) + bodyLength;
     }
+
+    /** Length of a packet header as written by {@link BCPGOutputStream}. */
+    private static int getPacketHeaderLength(int tag, long bodyLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8);
+        try {
+            new BCPGOutputStream(out, tag, bodyLength);
+        }
+        catch (IOException e) {
+            // not going to happen
+        }
+        return out.size();
+    }
+
+    /**
+     * A public key encryption method generator always producing session key
+     * packets of the same length. RSA encrypted session keys are
+     * occasionally shorter than the key modulus, so they are encrypted
+     * again with a different padding until they are not.
+     */
+    private static final class FixedLengthMethodGenerator extends BcPublicKeyKeyEncryptionMethodGenerator {
+        private final int mLength;
+
+        public FixedLengthMethodGenerator(PGPPublicKey key) {
+            super(key);
+            mLength = isRSA(key) ? getModulusLength(key) : 0;
+        }
+
+        @Override
+        protected byte[] encryptSessionInfo(PGPPublicKey pubKey, byte[] sessionInfo)
+                throws PGPException {
+            while (true) {
+                byte[] encrypted = super.encryptSessionInfo(pubKey, sessionInfo);
+                if (mLength == 0 || (new BigInteger(1, encrypted).bitLength() + 7) / 8 == mLength)
+                    return encrypted;
+            }
+        }
+
+        /** Returns the session key packet length, or -1 if it's not constant. */
+        public static long getPacketLength(PGPPublicKey key) {
+            if (!isRSA(key))
+                return -1;
+
+            // MPI length plus encrypted session key
+            byte[][] data = { new byte[2 + getModulusLength(key)] };
+            try {
+                return new PublicKeyEncSessionPacket(key.getKeyID(),
+                    key.getAlgorithm(), data).getEncoded().length;
+            }
+            catch (IOException e) {
+                return -1;
+            }
+        }
+
+        private static boolean isRSA(PGPPublicKey key) {
+            int algo = key.getAlgorithm();
+            return algo == PublicKeyAlgorithmTags.RSA_GENERAL ||
+                algo == PublicKeyAlgorithmTags.RSA_ENCRYPT;
+        }
+
+        private static int getModulusLength(PGPPublicKey key) {
+            return (key.getBitStrength() + 7) / 8;
+        }
+    }
+
+    /** Finishes encryption on close. */
+    private static final class EncryptOutputStream extends FilterOutputStream {
+        private final PGPLiteralDataGenerator mLiteralGen;
+        private final PGPEncryptedDataGenerator mEncGen;
+
+        public EncryptOutputStream(OutputStream out,
+                PGPLiteralDataGenerator literalGen, PGPEncryptedDataGenerator encGen) {
+            super(out);
+            mLiteralGen = literalGen;
+            mEncGen = encGen;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mLiteralGen.close();
+            mEncGen.close();
+        }
+    }
+
+    /** Verifies data integrity at the end of stream. */
+    private static final class DecryptInputStream extends FilterInputStream {
+        private final PGPPublicKeyEncryptedData mData;
+        private boolean mVerified;
+
+        public DecryptInputStream(InputStream in, PGPPublicKeyEncryptedData data) {
+            super(in);
+            mData = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c < 0)
+                verify();
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int c = in.read(b, off, len);
+            if (c < 0)
+                verify();
+            return c;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() throws IOException {
+            if (mVerified || !mData.isIntegrityProtected())
+                return;
+
+            try {
+                if (!mData.verify())
+                    throw new IOException("data integrity check failed");
+            }
+            catch (PGPException e) {
+                IOException ie = new IOException("data integrity check failed");
+                ie.initCause(e);
+                throw ie;
+            }
+
+            mVerified = true;
+        }
+    }
+
 }
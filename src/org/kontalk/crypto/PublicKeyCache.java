@@ -0,0 +1,157 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+
+/**
+ * A process-wide cache of parsed public keyrings, keyed by user id.
+ * Entries must be invalidated whenever a user key is changed.
+ * @author Daniele Ricci
+ */
+public final class PublicKeyCache {
+    private static final String TAG = PublicKeyCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 50;
+
+    /** A parsed public keyring. */
+    public static final class Entry {
+        private final PGPPublicKeyRing mKeyRing;
+        private final PGPPublicKey mMasterKey;
+        private final PGPPublicKey mEncryptionKey;
+        private final String mFingerprint;
+
+        Entry(PGPPublicKeyRing keyRing) {
+            mKeyRing = keyRing;
+            mMasterKey = PGP.getMasterKey(keyRing);
+            mEncryptionKey = PGP.getEncryptionKey(keyRing);
+            mFingerprint = (mMasterKey != null) ? PGP.getFingerprint(mMasterKey) : null;
+        }
+
+        public PGPPublicKeyRing getKeyRing() {
+            return mKeyRing;
+        }
+
+        public PGPPublicKey getMasterKey() {
+            return mMasterKey;
+        }
+
+        public PGPPublicKey getEncryptionKey() {
+            return mEncryptionKey;
+        }
+
+        public String getFingerprint() {
+            return mFingerprint;
+        }
+
+        /** Returns true if this keyring has the given fingerprint. */
+        public boolean matches(String fingerprint) {
+            return mFingerprint != null && mFingerprint.equalsIgnoreCase(fingerprint);
+        }
+    }
+
+    private static final LruCache<String, Entry> sCache =
+        new LruCache<String, Entry>(MAX_ENTRIES);
+
+    /** Increased every time keyrings are invalidated. */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    private PublicKeyCache() {
+    }
+
+    /** Returns the cached keyring for the given user, if any. */
+    public static Entry get(String userId) {
+        return sCache.get(userId);
+    }
+
+    /**
+     * Returns the keyring for the given user, parsing the key data only if
+     * the cached keyring is missing or has a different fingerprint.
+     * @param fingerprint the expected fingerprint, null if unknown
+     * @param keydata the keyring data, used on cache miss
+     * @return the keyring entry, or null if key data is invalid
+     */
+    public static Entry get(String userId, String fingerprint, byte[] keydata) {
+        Entry entry = sCache.get(userId);
+        if (entry != null && (fingerprint == null || entry.matches(fingerprint)))
+            return entry;
+
+        return put(userId, fingerprint, keydata);
+    }
+
+    /**
+     * Parses and caches a keyring. The keyring is not cached if its
+     * fingerprint does not match the given one.
+     * @param fingerprint the expected fingerprint, null if unknown
+     * @return the keyring entry, or null if key data is invalid
+     */
+    public static Entry put(String userId, String fingerprint, byte[] keydata) {
+        if (keydata == null) {
+            sCache.remove(userId);
+            return null;
+        }
+
+        Entry entry;
+        try {
+            entry = new Entry(PGP.readPublicKeyring(keydata));
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to load public keyring for " + userId, e);
+            sCache.remove(userId);
+            return null;
+        }
+
+        if (fingerprint == null || entry.matches(fingerprint))
+            sCache.put(userId, entry);
+        else {
+            Log.w(TAG, "fingerprint mismatch for " + userId + " - not caching keyring");
+            sCache.remove(userId);
+        }
+
+        return entry;
+    }
+
+    /** Discards the cached keyring of a user. */
+    public static void invalidate(String userId) {
+        sCache.remove(userId);
+        sGeneration.incrementAndGet();
+    }
+
+    /** Discards all cached keyrings. */
+    public static void invalidate() {
+        sCache.evictAll();
+        sGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns a counter that changes every time keys are invalidated, e.g.
+     * because a new key has been received.
+     */
+    public static int getGeneration() {
+        return sGeneration.get();
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.kontalk.R;
+import org.kontalk.util.ImageResize;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+
+/**
+ * Loads contact avatars in background.
+ * Avatars are scaled down to a fixed size and cached both in memory and
+ * on disk; disk cache entries are tied to the contact photo id, so they
+ * are regenerated when the contact photo changes.
+ * @author Daniele Ricci
+ */
+public final class AvatarLoader {
+    private static final String TAG = AvatarLoader.class.getSimpleName();
+
+    /** Fraction of the application memory class used for the cache. */
+    private static final int CACHE_MEMORY_FRACTION = 16;
+    private static final String CACHE_DIR = "avatars";
+    private static final int AVATAR_QUALITY = 90;
+
+    private static final int THREADS = 2;
+
+    /** Marks contacts with no avatar in the memory cache. */
+    private static final Bitmap NO_AVATAR = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
+
+    private static AvatarLoader sInstance;
+
+    private final Context mContext;
+    private final File mCacheDir;
+    private final int mSize;
+    private final LruCache<String, Bitmap> mCache;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mUiHandler;
+    /** Pending requests by target view. */
+    private final WeakHashMap<ImageView, Request> mRequests = new WeakHashMap<ImageView, Request>();
+
+    /** A pending avatar request for a view. */
+    private final class Request implements Runnable {
+        final Contact mContact;
+        final ImageView mTarget;
+        volatile boolean mCanceled;
+
+        Request(Contact contact, ImageView target) {
+            mContact = contact;
+            mTarget = target;
+        }
+
+        public void run() {
+            if (mCanceled)
+                return;
+
+            final Bitmap bitmap = getBitmap(mContact);
+            mUiHandler.post(new Runnable() {
+                public void run() {
+                    if (!mCanceled && mRequests.get(mTarget) == Request.this) {
+                        mRequests.remove(mTarget);
+                        if (bitmap != null)
+                            mTarget.setImageDrawable(new BitmapDrawable(
+                                mContext.getResources(), bitmap));
+                    }
+                }
+            });
+        }
+    }
+
+    private AvatarLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mCacheDir = new File(mContext.getCacheDir(), CACHE_DIR);
+        mSize = mContext.getResources().getDimensionPixelSize(R.dimen.avatar_size);
+        mUiHandler = new Handler(Looper.getMainLooper());
+
+        ActivityManager am = (ActivityManager) mContext
+            .getSystemService(Context.ACTIVITY_SERVICE);
+        int cacheSize = am.getMemoryClass() * 1024 * 1024 / CACHE_MEMORY_FRACTION;
+
+        mCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+    }
+
+    public static synchronized AvatarLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new AvatarLoader(context);
+        return sInstance;
+    }
+
+    /**
+     * Displays a contact avatar in a view. The default image is shown
+     * until the avatar is loaded. Must be called from the UI thread.
+     */
+    public void load(Contact contact, ImageView target, Drawable defaultValue) {
+        Request pending = mRequests.remove(target);
+        if (pending != null)
+            cancel(pending);
+
+        Bitmap bitmap = mCache.get(contact.getHash());
+        if (bitmap != null) {
+            target.setImageDrawable(bitmap != NO_AVATAR ?
+                new BitmapDrawable(mContext.getResources(), bitmap) : defaultValue);
+            return;
+        }
+
+        target.setImageDrawable(defaultValue);
+
+        Request request = new Request(contact, target);
+        mRequests.put(target, request);
+        mExecutor.execute(request);
+    }
+
+    /** Cancels any pending avatar request for a view. */
+    public void cancel(ImageView target) {
+        Request pending = mRequests.remove(target);
+        if (pending != null)
+            cancel(pending);
+    }
+
+    private void cancel(Request request) {
+        request.mCanceled = true;
+        mExecutor.remove(request);
+    }
+
+    /**
+     * Returns a contact avatar, loading it synchronously if needed.
+     * @return the avatar, or null if the contact has none
+     */
+    public Bitmap getBitmap(Contact contact) {
+        String key = contact.getHash();
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            bitmap = loadAvatar(contact);
+            mCache.put(key, bitmap != null ? bitmap : NO_AVATAR);
+        }
+
+        return bitmap != NO_AVATAR ? bitmap : null;
+    }
+
+    /** Discards a cached avatar. */
+    public static void invalidate(String userId) {
+        AvatarLoader instance;
+        synchronized (AvatarLoader.class) {
+            instance = sInstance;
+        }
+        if (instance != null)
+            instance.mCache.remove(userId);
+    }
+
+    /** Discards all cached avatars. */
+    public static void invalidate() {
+        AvatarLoader instance;
+        synchronized (AvatarLoader.class) {
+            instance = sInstance;
+        }
+        if (instance != null)
+            instance.mCache.evictAll();
+    }
+
+    private Bitmap loadAvatar(Contact contact) {
+        long contactId = contact.getId();
+        if (contactId <= 0)
+            return null;
+
+        ContentResolver cr = mContext.getContentResolver();
+        Uri uri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+
+        long photoId = getPhotoId(cr, uri);
+        if (photoId <= 0)
+            return null;
+
+        // pre-scaled avatar from disk cache
+        File cached = new File(mCacheDir, contactId + "_" + photoId + ".jpg");
+        if (cached.isFile()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(cached.getPath());
+            if (bitmap != null)
+                return bitmap;
+        }
+
+        Bitmap bitmap = null;
+        InputStream in = Contacts.openContactPhotoInputStream(cr, uri);
+        if (in != null) {
+            try {
+                bitmap = decode(in);
+            }
+            finally {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        if (bitmap != null)
+            store(contactId, cached, bitmap);
+
+        return bitmap;
+    }
+
+    private long getPhotoId(ContentResolver cr, Uri contactUri) {
+        Cursor c = cr.query(contactUri, new String[] { Contacts.PHOTO_ID },
+            null, null, null);
+        if (c == null)
+            return 0;
+
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Decodes a contact photo scaled down to the avatar size. */
+    private Bitmap decode(InputStream in) {
+        Bitmap bitmap = BitmapFactory.decodeStream(in);
+        if (bitmap == null)
+            return null;
+
+        int[] size = ImageResize.getTargetSize(bitmap.getWidth(), bitmap.getHeight(), mSize);
+        if (size[0] == bitmap.getWidth() && size[1] == bitmap.getHeight())
+            return bitmap;
+
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
+        if (scaled != bitmap)
+            bitmap.recycle();
+        return scaled;
+    }
+
+    /** Writes an avatar to the disk cache, removing old versions. */
+    private synchronized void store(long contactId, File cached, Bitmap bitmap) {
+        mCacheDir.mkdirs();
+
+        String prefix = contactId + "_";
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                if (f.getName().startsWith(prefix))
+                    f.delete();
+        }
+
+        File temp = new File(cached.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, AVATAR_QUALITY, out);
+            }
+            finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(cached))
+                temp.delete();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to cache avatar", e);
+            temp.delete();
+        }
+    }
+
+}
@@ -18,10 +18,7 @@
 
 package org.kontalk.data;
 
-import java.io.IOException;
-import java.io.InputStream;
-
-import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PublicKeyCache;
 import org.kontalk.provider.MyUsers.Users;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
@@ -31,12 +28,10 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.RawContacts;
 import android.support.v4.util.LruCache;
@@ -61,6 +56,7 @@ public class Contact {
         Users.STATUS,
         Users.PUBLIC_KEY,
         Users.BLOCKED,
+        Users.FINGERPRINT,
     };
 
     public static final int COLUMN_ID = 0;
@@ -73,6 +69,7 @@ public class Contact {
     public static final int COLUMN_STATUS = 7;
     public static final int COLUMN_PUBLICKEY = 8;
     public static final int COLUMN_BLOCKED = 9;
+    public static final int COLUMN_FINGERPRINT = 10;
 
     /** The aggregated Contact id identified by this object. */
     private final long mContactId;
@@ -88,9 +85,6 @@ public class Contact {
 
     private boolean mBlocked;
 
-    private BitmapDrawable mAvatar;
-    private byte [] mAvatarData;
-
     private PGPPublicKeyRing mKeyRing;
 
     /**
@@ -201,25 +195,23 @@ public class Contact {
     	return mKeyRing;
     }
 
-    public synchronized Drawable getAvatar(Context context, Drawable defaultValue) {
-        if (mAvatar == null) {
-            if (mAvatarData == null)
-                mAvatarData = loadAvatarData(context, getUri());
-
-            if (mAvatarData != null) {
-                Bitmap b = BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-                mAvatar = new BitmapDrawable(context.getResources(), b);
-            }
-        }
-        return mAvatar != null ? mAvatar : defaultValue;
+    /**
+     * Returns the contact avatar, loading it synchronously if needed.
+     * Views should use {@link AvatarLoader#load} instead.
+     */
+    public Drawable getAvatar(Context context, Drawable defaultValue) {
+        Bitmap avatar = AvatarLoader.getInstance(context).getBitmap(this);
+        return avatar != null ? new BitmapDrawable(context.getResources(), avatar) : defaultValue;
     }
 
     public static void invalidate(String userId) {
         cache.remove(userId);
+        AvatarLoader.invalidate(userId);
     }
 
     public static void invalidate() {
         cache.evictAll();
+        AvatarLoader.invalidate();
     }
 
     /** Builds a contact from a UsersProvider cursor. */
@@ -237,18 +229,12 @@ public class Contact {
             final String status = cursor.getString(COLUMN_STATUS);
             final byte[] keyring = cursor.getBlob(COLUMN_PUBLICKEY);
             final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
+            final String fingerprint = cursor.getString(COLUMN_FINGERPRINT);
 
             c = new Contact(contactId, key, name, number, hash, blocked);
             c.mRegistered = registered;
             c.mStatus = status;
-            try {
-            	if (keyring != null)
-            		c.mKeyRing = PGP.readPublicKeyring(keyring);
-			}
-            catch (Exception e) {
-            	// ignored for now
-            	Log.w(TAG, "unable to load public keyring", e);
-			}
+            c.mKeyRing = loadKeyRing(hash, fingerprint, keyring);
 
             cache.put(hash, c);
         }
@@ -294,6 +280,7 @@ public class Contact {
                 Users.STATUS,
                 Users.PUBLIC_KEY,
                 Users.BLOCKED,
+                Users.FINGERPRINT,
             }, null, null, null);
 
         if (c.moveToFirst()) {
@@ -305,19 +292,13 @@ public class Contact {
             final String status = c.getString(5);
             final byte[] keyring = c.getBlob(6);
             final boolean blocked = (c.getInt(7) != 0);
+            final String fingerprint = c.getString(8);
             c.close();
 
             Contact contact = new Contact(cid, key, name, number, userId, blocked);
             contact.mRegistered = registered;
             contact.mStatus = status;
-            try {
-            	if (keyring != null)
-            		contact.mKeyRing = PGP.readPublicKeyring(keyring);
-			}
-            catch (Exception e) {
-            	// ignored for now
-            	Log.w(TAG, "unable to load public keyring", e);
-			}
+            contact.mKeyRing = loadKeyRing(userId, fingerprint, keyring);
 
             return contact;
         }
@@ -325,37 +306,13 @@ public class Contact {
         return null;
     }
 
-    private static byte[] loadAvatarData(Context context, Uri contactUri) {
-        byte[] data = null;
-
-        Uri uri;
-        try {
-            long cid = ContentUris.parseId(contactUri);
-            uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, cid);
-        }
-        catch (Exception e) {
-            uri = contactUri;
-        }
-
-        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
-                    context.getContentResolver(), uri);
-        if (avatarDataStream != null) {
-            try {
-                    data = new byte[avatarDataStream.available()];
-                    avatarDataStream.read(data, 0, data.length);
-            }
-            catch (IOException e) {
-                Log.e(TAG, "cannot retrieve contact avatar", e);
-            }
-            finally {
-                try {
-                    avatarDataStream.close();
-                }
-                catch (IOException e) {}
-            }
-        }
+    /** Returns the parsed keyring of a user, using the shared keyring cache. */
+    private static PGPPublicKeyRing loadKeyRing(String userId, String fingerprint, byte[] keyring) {
+        if (keyring == null)
+            return null;
 
-        return data;
+        PublicKeyCache.Entry entry = PublicKeyCache.get(userId, fingerprint, keyring);
+        return (entry != null) ? entry.getKeyRing() : null;
     }
 
     public static String getUserId(Context context, Uri rawContactUri) {
@@ -21,7 +21,10 @@ package org.kontalk.message;
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
@@ -31,7 +34,12 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.Process;
+import android.support.v4.util.LruCache;
 
 
 /**
@@ -63,7 +71,7 @@ public class CompositeMessage {
         Messages.ENCRYPTED,
         Messages.SECURITY_FLAGS,
         Messages.BODY_MIME,
-        Messages.BODY_CONTENT,
+        Messages.BODY_PREVIEW,
         Messages.BODY_LENGTH,
         Messages.ATTACHMENT_MIME,
         Messages.ATTACHMENT_PREVIEW_PATH,
@@ -74,6 +82,15 @@ public class CompositeMessage {
         Messages.ATTACHMENT_SECURITY_FLAGS,
     };
 
+    /** Projection for message keys only. Column indexes matches MESSAGE_LIST_PROJECTION. */
+    private static final String[] MESSAGE_KEY_PROJECTION = {
+        Messages._ID,
+        Messages.MESSAGE_ID,
+        Messages.PEER,
+        Messages.DIRECTION,
+        Messages.TIMESTAMP,
+    };
+
     // these indexes matches MESSAGE_LIST_PROJECTION
     public static final int COLUMN_ID = 0;
     public static final int COLUMN_MESSAGE_ID = 1;
@@ -86,7 +103,7 @@ public class CompositeMessage {
     public static final int COLUMN_ENCRYPTED = 8;
     public static final int COLUMN_SECURITY = 9;
     public static final int COLUMN_BODY_MIME = 10;
-    public static final int COLUMN_BODY_CONTENT = 11;
+    public static final int COLUMN_BODY_PREVIEW = 11;
     public static final int COLUMN_BODY_LENGTH = 12;
     public static final int COLUMN_ATTACHMENT_MIME = 13;
     public static final int COLUMN_ATTACHMENT_PREVIEW_PATH = 14;
@@ -106,6 +123,103 @@ public class CompositeMessage {
 
     private static final int SUFFIX_LENGTH = "Component".length();
 
+    /** Notified on the main thread when a message body has been loaded. */
+    public interface OnBodyLoadedListener {
+        public void onBodyLoaded(long databaseId);
+    }
+
+    /**
+     * Message body cache. Full bodies are not included in message lists
+     * and are loaded in background only for the rows actually being
+     * displayed.
+     * @author Daniele Ricci
+     */
+    private final static class BodyCache extends LruCache<Long, byte[]> {
+        /** Maximum size of cached bodies, in bytes. */
+        private static final int MAX_SIZE = 256 * 1024;
+
+        /** Bodies being loaded. */
+        private final Set<Long> mPending = new HashSet<Long>();
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private Handler mLoader;
+
+        public BodyCache() {
+            super(MAX_SIZE);
+        }
+
+        @Override
+        protected int sizeOf(Long key, byte[] value) {
+            return value.length;
+        }
+
+        /**
+         * Returns the cached body of a message. If not cached, the body
+         * will be loaded in background and the listener notified.
+         * @return the body or null if it's being loaded
+         */
+        public byte[] get(Context context, final long id, final OnBodyLoadedListener listener) {
+            byte[] body = get(id);
+            if (body == null) {
+                synchronized (this) {
+                    if (!mPending.add(id))
+                        return null;
+
+                    if (mLoader == null) {
+                        HandlerThread thread = new HandlerThread("BodyLoader",
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                        thread.start();
+                        mLoader = new Handler(thread.getLooper());
+                    }
+                }
+
+                final Context appContext = context.getApplicationContext();
+                mLoader.post(new Runnable() {
+                    public void run() {
+                        load(appContext, id, listener);
+                    }
+                });
+            }
+
+            return body;
+        }
+
+        /** Loads and caches the body of a message from the calling thread. */
+        public byte[] load(Context context, long id) {
+            byte[] body = null;
+            Cursor c = context.getContentResolver().query(
+                ContentUris.withAppendedId(Messages.CONTENT_URI, id),
+                new String[] { Messages.BODY_CONTENT }, null, null, null);
+            if (c != null) {
+                if (c.moveToFirst())
+                    body = c.getBlob(0);
+                c.close();
+            }
+
+            if (body != null)
+                put(id, body);
+
+            return body;
+        }
+
+        private void load(Context context, final long id, final OnBodyLoadedListener listener) {
+            byte[] body = load(context, id);
+
+            synchronized (this) {
+                mPending.remove(id);
+            }
+
+            if (body != null && listener != null) {
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        listener.onBodyLoaded(id);
+                    }
+                });
+            }
+        }
+    }
+
+    private final static BodyCache sBodyCache = new BodyCache();
+
     protected Context mContext;
     protected long mDatabaseId;
     protected String mId;
@@ -116,6 +230,8 @@ public class CompositeMessage {
     protected int mStatus;
     protected boolean mEncrypted;
     protected int mSecurityFlags;
+    /** True if the body has not been loaded yet (see {@link #loadBody}). */
+    protected boolean mPartial;
 
     /**
      * Recipients (outgoing) - will contain one element for incoming
@@ -253,7 +369,40 @@ public class CompositeMessage {
     	return mComponents;
     }
 
-    private void populateFromCursor(Cursor c) {
+    /**
+     * Returns true if the message body is still being loaded: text is
+     * truncated to the preview and encrypted data is missing.
+     */
+    public boolean isPartial() {
+        return mPartial;
+    }
+
+    /**
+     * Loads the full body of a partial message from the calling thread and
+     * replaces the preview components with it.
+     */
+    public void loadBody() {
+        if (!mPartial)
+            return;
+
+        byte[] body = sBodyCache.load(mContext, mDatabaseId);
+        if (body == null)
+            return;
+
+        boolean text = !mEncrypted && getComponent(TextComponent.class) != null;
+        for (Iterator<MessageComponent<?>> it = mComponents.iterator(); it.hasNext(); ) {
+            MessageComponent<?> cmp = it.next();
+            if (cmp instanceof TextComponent || cmp instanceof RawComponent)
+                it.remove();
+        }
+
+        // body always comes first
+        mComponents.add(0, text ? new TextComponent(new String(body)) :
+            new RawComponent(body, mEncrypted, mSecurityFlags));
+        mPartial = false;
+    }
+
+    private void populateFromCursor(Cursor c, OnBodyLoadedListener listener) {
         // be sure to stick to our projection array
         mDatabaseId = c.getLong(COLUMN_ID);
         mId = c.getString(COLUMN_MESSAGE_ID);
@@ -277,28 +426,45 @@ public class CompositeMessage {
             // we are the origin - no recipient
         }
 
-        byte[] body = c.getBlob(COLUMN_BODY_CONTENT);
-
         // encrypted message - single raw encrypted component
         if (mEncrypted) {
+        	byte[] body = sBodyCache.get(mContext, mDatabaseId, listener);
         	RawComponent raw = new RawComponent(body, true, mSecurityFlags);
         	addComponent(raw);
+        	mPartial = (body == null);
         }
 
         else {
 
 	        String mime = c.getString(COLUMN_BODY_MIME);
+	        String preview = c.getString(COLUMN_BODY_PREVIEW);
 
-	        if (body != null) {
+	        // whole text is in the preview
+	        if (preview != null && preview.length() < Messages.BODY_PREVIEW_LENGTH &&
+	        		TextComponent.supportsMimeType(mime)) {
+	        	TextComponent txt = new TextComponent(preview);
+	        	addComponent(txt);
+	        }
+
+	        // full body needed
+	        else if (c.getLong(COLUMN_BODY_LENGTH) > 0) {
+	        	byte[] body = sBodyCache.get(mContext, mDatabaseId, listener);
+	        	mPartial = (body == null);
 
 		        // text data
-		        if (TextComponent.supportsMimeType(mime)) {
+		        if (body != null && TextComponent.supportsMimeType(mime)) {
 		        	TextComponent txt = new TextComponent(new String(body));
 		        	addComponent(txt);
 		        }
 
+		        // still loading - use the preview for now
+		        else if (preview != null && TextComponent.supportsMimeType(mime)) {
+		        	TextComponent txt = new TextComponent(preview);
+		        	addComponent(txt);
+		        }
+
 		        // unknown data
-		        else {
+		        else if (body != null) {
 		        	RawComponent raw = new RawComponent(body, false, mSecurityFlags);
 		        	addComponent(raw);
 		        }
@@ -357,22 +523,72 @@ public class CompositeMessage {
         mStatus = 0;
         mEncrypted = false;
         mSecurityFlags = 0;
+        mPartial = false;
     }
 
-    /** Builds an instance from a {@link Cursor} row. */
-    public static CompositeMessage fromCursor(Context context, Cursor cursor) {
+    /**
+     * Builds an instance from a {@link Cursor} row. Message bodies not in
+     * cache will be missing and loaded in background.
+     * @param listener will be notified when a missing body has been loaded
+     */
+    public static CompositeMessage fromCursor(Context context, Cursor cursor, OnBodyLoadedListener listener) {
     	CompositeMessage msg = new CompositeMessage();
-    	msg.populateFromCursor(cursor);
+    	msg.mContext = context;
+    	msg.populateFromCursor(cursor, listener);
     	// TODO
         return msg;
     }
 
+    /**
+     * Discards the cached body of a message. To be called when the body
+     * content of a message is modified.
+     */
+    public static void invalidateBody(long databaseId) {
+        sBodyCache.remove(databaseId);
+    }
+
     public static void startQuery(AsyncQueryHandler handler, int token, long threadId) {
         // cancel previous operations
         handler.cancelOperation(token);
         handler.startQuery(token, null,
                 ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId),
-                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+                MESSAGE_LIST_PROJECTION, null, null, Conversations.PAGE_SORT_ORDER);
+    }
+
+    /**
+     * Queries the newest page of messages of a conversation.
+     * @see Conversations#getPageUri
+     */
+    public static void startQueryPage(AsyncQueryHandler handler, int token, long threadId, int limit) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null,
+                Conversations.getPageUri(threadId, limit, 0, -1),
+                MESSAGE_LIST_PROJECTION, null, null, null);
+    }
+
+    /**
+     * Queries the keys of the page of messages preceding the given key.
+     * Only {@link #COLUMN_ID} and {@link #COLUMN_TIMESTAMP} are available
+     * in the resulting cursor.
+     */
+    public static void startQueryPageKeys(AsyncQueryHandler handler, int token, long threadId,
+            int limit, long beforeTimestamp, long beforeId) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null,
+                Conversations.getPageUri(threadId, limit, beforeTimestamp, beforeId),
+                MESSAGE_KEY_PROJECTION, null, null, null);
+    }
+
+    /** Queries all messages of a conversation starting from the given key. */
+    public static void startQueryWindow(AsyncQueryHandler handler, int token, long threadId,
+            long sinceTimestamp, long sinceId) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null,
+                Conversations.getWindowUri(threadId, sinceTimestamp, sinceId),
+                MESSAGE_LIST_PROJECTION, null, null, Conversations.PAGE_SORT_ORDER);
     }
 
     /** A sample text content from class name and mime type. */
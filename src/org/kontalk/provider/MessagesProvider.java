@@ -20,9 +20,15 @@ package org.kontalk.provider;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.kontalk.crypto.Coder;
+import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
@@ -31,17 +37,23 @@ import org.kontalk.provider.MyMessages.Threads.Conversations;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
@@ -55,7 +67,7 @@ public class MessagesProvider extends ContentProvider {
     private static final String TAG = MessagesProvider.class.getSimpleName();
     public static final String AUTHORITY = "org.kontalk.messages";
 
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 7;
     private static final String DATABASE_NAME = "messages.db";
     private static final String TABLE_MESSAGES = "messages";
     private static final String TABLE_FULLTEXT = "fulltext";
@@ -72,11 +84,86 @@ public class MessagesProvider extends ContentProvider {
     private static final int FULLTEXT_ID = 9;
     private static final int REQUESTS = 10;
 
+    /* Compiled statements keys. */
+    private static final int STM_MESSAGE_INSERT = 0;
+    private static final int STM_FULLTEXT_INSERT = 1;
+    private static final int STM_STATUS_BY_ID = 2;
+    private static final int STM_STATUS_BY_MSGID = 3;
+    private static final int STM_THREAD_TOUCH = 4;
+    private static final int STM_THREAD_BY_PEER = 5;
+    private static final int STM_THREAD_BY_ID = 6;
+    private static final int STM_THREAD_BY_MSGID = 7;
+
+    /** Columns supported by the compiled message insert statement. */
+    private static final String[] MESSAGE_INSERT_COLUMNS = {
+        Messages.THREAD_ID,
+        Messages.MESSAGE_ID,
+        Messages.PEER,
+        Messages.DIRECTION,
+        Messages.UNREAD,
+        Messages.TIMESTAMP,
+        Messages.STATUS_CHANGED,
+        Messages.STATUS,
+        Messages.BODY_MIME,
+        Messages.BODY_CONTENT,
+        Messages.BODY_LENGTH,
+        Messages.BODY_PREVIEW,
+        Messages.ATTACHMENT_MIME,
+        Messages.ATTACHMENT_PREVIEW_PATH,
+        Messages.ATTACHMENT_FETCH_URL,
+        Messages.ATTACHMENT_LOCAL_URI,
+        Messages.ATTACHMENT_LENGTH,
+        Messages.ATTACHMENT_ENCRYPTED,
+        Messages.ATTACHMENT_SECURITY_FLAGS,
+        Messages.ENCRYPTED,
+        Messages.SECURITY_FLAGS,
+        Messages.SERVER_TIMESTAMP,
+    };
+    /** Message columns with a default value (NULL must not be inserted). */
+    private static final String[] MESSAGE_DEFAULT_COLUMNS = {
+        Messages.UNREAD,
+        Messages.BODY_LENGTH,
+        Messages.ATTACHMENT_LENGTH,
+        Messages.ATTACHMENT_ENCRYPTED,
+        Messages.ATTACHMENT_SECURITY_FLAGS,
+        Messages.ENCRYPTED,
+        Messages.SECURITY_FLAGS,
+    };
+    /** Columns supported by the compiled status change statements. */
+    private static final String[] STATUS_CHANGE_COLUMNS = {
+        Messages.STATUS,
+        Messages.STATUS_CHANGED,
+        Messages.SERVER_TIMESTAMP,
+    };
+    /** Columns supported by the compiled thread touch statement. */
+    private static final String[] THREAD_TOUCH_COLUMNS = {
+        Threads.TIMESTAMP,
+        Threads.MESSAGE_ID,
+        Threads.DIRECTION,
+        Threads.ENCRYPTED,
+        Threads.STATUS,
+        Threads.STATUS_CHANGED,
+        Threads.MIME,
+        Threads.CONTENT,
+    };
+
+    private static final String SELECTION_DIRECTION_IN = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
+    private static final String SELECTION_DIRECTION_OUT = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT;
+
     private DatabaseHelper dbHelper;
+    /** Deferred change notifications while a batch is in progress. */
+    private Set<Uri> mBatchNotifications;
+
+    /** Thread id cache (peer: thread id). */
+    private final Map<String, Long> mThreadIds = new HashMap<String, Long>();
+    /** Compiled statements for hot operations. */
+    private StatementPool mStatements;
+
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
+    private static final String[] STATEMENTS_SQL;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -117,7 +204,9 @@ public class MessagesProvider extends ContentProvider {
             "security_flags INTEGER NOT NULL DEFAULT 0," +
             // timestamp declared by server for incoming messages
             // timestamp of message accepted by server for outgoing messages
-            "server_timestamp INTEGER" +
+            "server_timestamp INTEGER," +
+            // beginning of text body, for message lists
+            "body_preview TEXT" +
             ")";
 
         /** This table will contain all the messages .*/
@@ -162,25 +251,24 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND unread <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND unread <> 0) WHERE _id = old.thread_id";
+        /** Index for conversation queries (thread lookup and sorting). */
+        private static final String SCHEMA_MESSAGES_THREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_message ON " + TABLE_MESSAGES +
+            " (thread_id, timestamp)";
+
+        /** Increments the thread counters for the new message. */
+        private static final String UPDATE_COUNTERS_INCREMENT =
+            "UPDATE " + TABLE_THREADS + " SET count = count + 1, " +
+            "unread = unread + (new.unread <> 0) WHERE _id = new.thread_id";
+        /** Decrements the thread counters for the old message. */
+        private static final String UPDATE_COUNTERS_DECREMENT =
+            "UPDATE " + TABLE_THREADS + " SET count = count - 1, " +
+            "unread = unread - (old.unread <> 0) WHERE _id = old.thread_id";
+
+        /** Updates the thread unread count on unread flag transitions. */
+        private static final String UPDATE_UNREAD_TRANSITION =
+            "UPDATE " + TABLE_THREADS + " SET unread = unread + " +
+            "(new.unread <> 0) - (old.unread <> 0) WHERE _id = new.thread_id";
 
         /** Updates the thread status reflected by the latest message. */
         /*
@@ -198,30 +286,50 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
+            UPDATE_COUNTERS_INCREMENT + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
-        /** This trigger will update the threads table counters on UPDATE. */
+        /** This trigger will update the threads table unread counter on UPDATE. */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
-            "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON " + TABLE_MESSAGES +
+            "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF unread ON " + TABLE_MESSAGES +
+            " WHEN (old.unread <> 0) <> (new.unread <> 0) AND old.thread_id = new.thread_id" +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            UPDATE_UNREAD_TRANSITION + ";" +
             "END";
 
+        /** This trigger will update the threads table status on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_STATUS =
+            "CREATE TRIGGER update_thread_on_status AFTER UPDATE OF status ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            UPDATE_STATUS_NEW + ";" +
+            "END";
+
+        /** This trigger will move the threads table counters if a message changes thread. */
+        private static final String TRIGGER_THREADS_MOVE_COUNT =
+            "CREATE TRIGGER update_thread_on_move AFTER UPDATE OF thread_id ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id <> new.thread_id" +
+            " BEGIN " +
+            UPDATE_COUNTERS_DECREMENT + ";" +
+            UPDATE_COUNTERS_INCREMENT + ";" +
+            UPDATE_STATUS_NEW         + ";" +
+            "END";
 
         /** This trigger will update the threads table counters on DELETE. */
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
+            UPDATE_COUNTERS_DECREMENT + ";" +
             // do not call this here -- UPDATE_STATUS_OLD         + ";" +
             "END";
 
+        /** Recalculates all thread counters from scratch. */
+        private static final String REPAIR_THREADS_COUNTERS =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+            "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id " +
+            "AND unread <> 0)";
+
         private static final String[] SCHEMA_V4_TO_V5 = {
             // create temporary messages tables without msg_id UNIQUE constraint
             "CREATE TABLE " + TABLE_MESSAGES + "_new " + _SCHEMA_MESSAGES,
@@ -234,7 +342,7 @@ public class MessagesProvider extends ContentProvider {
             "CASE WHEN mime <> 'text/plain' THEN 0 ELSE length(content) END, " +
             "CASE WHEN mime <> 'text/plain' THEN mime ELSE NULL END, preview_path, fetch_url, local_uri, length, 0, 0, encrypted, " +
             "CASE WHEN encrypt_key IS NOT NULL THEN " + Coder.SECURITY_LEGACY_ENCRYPTED + " ELSE " + Coder.SECURITY_CLEARTEXT + " END, "+
-            "strftime('%s', server_timestamp)*1000" +
+            "strftime('%s', server_timestamp)*1000, NULL" +
                 " FROM " + TABLE_MESSAGES + " WHERE encrypted = 0",
             // copy contents of threads table
             "INSERT INTO " + TABLE_THREADS + "_new SELECT " +
@@ -258,6 +366,30 @@ public class MessagesProvider extends ContentProvider {
             TRIGGER_THREADS_DELETE_COUNT
         };
 
+        private static final String[] SCHEMA_V5_TO_V6 = {
+            // drop recount triggers
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            // thread message index
+            SCHEMA_MESSAGES_THREAD_IDX,
+            // incremental counters triggers
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_MOVE_COUNT,
+            TRIGGER_THREADS_DELETE_COUNT
+        };
+
+        private static final String SCHEMA_V6_TO_V7_COLUMN =
+            "ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN body_preview TEXT";
+
+        /** Fills in body previews for existing text messages. */
+        private static final String UPDATE_BODY_PREVIEW =
+            "UPDATE " + TABLE_MESSAGES + " SET body_preview = " +
+            "substr(CAST(body_content AS TEXT), 1, " + Messages.BODY_PREVIEW_LENGTH + ")" +
+            " WHERE encrypted = 0 AND body_mime = 'text/plain'";
+
         protected DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
@@ -269,8 +401,11 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_FULLTEXT);
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
+            db.execSQL(TRIGGER_THREADS_UPDATE_STATUS);
+            db.execSQL(TRIGGER_THREADS_MOVE_COUNT);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
         }
 
@@ -280,11 +415,34 @@ public class MessagesProvider extends ContentProvider {
                 // unsupported version
                 throw new SQLException("Upgrade from version less than 4 is unsupported.");
             }
-            else if (oldVersion == 4) {
-                for (int i = 0; i < SCHEMA_V4_TO_V5.length; i++)
-                    db.execSQL(SCHEMA_V4_TO_V5[i]);
+            else {
+                if (oldVersion == 4) {
+                    for (int i = 0; i < SCHEMA_V4_TO_V5.length; i++)
+                        db.execSQL(SCHEMA_V4_TO_V5[i]);
+                }
+                if (oldVersion <= 5) {
+                    for (int i = 0; i < SCHEMA_V5_TO_V6.length; i++)
+                        db.execSQL(SCHEMA_V5_TO_V6[i]);
+                    // start from consistent counters
+                    repairThreadCounters(db);
+                }
+                if (oldVersion <= 6) {
+                    // table created by version 5 upgrade has the column already
+                    if (oldVersion > 4)
+                        db.execSQL(SCHEMA_V6_TO_V7_COLUMN);
+                    db.execSQL(UPDATE_BODY_PREVIEW);
+                }
             }
         }
+
+        /**
+         * Recalculates message and unread counters of all threads.
+         * Counters are maintained incrementally by triggers, this is needed
+         * only if they get out of sync for some reason.
+         */
+        void repairThreadCounters(SQLiteDatabase db) {
+            db.execSQL(REPAIR_THREADS_COUNTERS);
+        }
     }
 
     @Override
@@ -293,6 +451,15 @@ public class MessagesProvider extends ContentProvider {
         return true;
     }
 
+    @Override
+    public synchronized void shutdown() {
+        if (mStatements != null) {
+            mStatements.close();
+            mStatements = null;
+        }
+        dbHelper.close();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -333,11 +500,32 @@ public class MessagesProvider extends ContentProvider {
                 qb.appendWhere(Threads.PEER + "='" + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)) + "'");
                 break;
 
-            case CONVERSATIONS_ID:
+            case CONVERSATIONS_ID: {
                 qb.setTables(TABLE_MESSAGES);
                 qb.setProjectionMap(messagesProjectionMap);
                 qb.appendWhere(Messages.THREAD_ID + "=" + uri.getPathSegments().get(1));
+
+                // keyset pagination
+                String sinceId = uri.getQueryParameter(Conversations.QUERY_SINCE_ID);
+                if (sinceId != null) {
+                    appendKeysetWhere(qb, ">=",
+                        uri.getQueryParameter(Conversations.QUERY_SINCE_TIMESTAMP), sinceId);
+                }
+
+                String limit = uri.getQueryParameter(Conversations.QUERY_LIMIT);
+                if (limit != null) {
+                    String beforeId = uri.getQueryParameter(Conversations.QUERY_BEFORE_ID);
+                    if (beforeId != null) {
+                        appendKeysetWhere(qb, "<",
+                            uri.getQueryParameter(Conversations.QUERY_BEFORE_TIMESTAMP), beforeId);
+                    }
+
+                    return queryPage(qb, uri, projection, selection, selectionArgs,
+                        (int) parseQueryNumber(Conversations.QUERY_LIMIT, limit, 1, Integer.MAX_VALUE));
+                }
+
                 break;
+            }
 
             case FULLTEXT_ID:
                 qb.setTables(TABLE_FULLTEXT);
@@ -357,6 +545,58 @@ public class MessagesProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Parses a numeric query parameter.
+     * @throws IllegalArgumentException if value is missing, invalid or out of [min, max]
+     */
+    private static long parseQueryNumber(String name, String value, long min, long max) {
+        long n;
+        try {
+            n = Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " parameter: " + value);
+        }
+
+        if (n < min || n > max)
+            throw new IllegalArgumentException("Invalid " + name + " parameter: " + value);
+        return n;
+    }
+
+    /**
+     * Appends a (timestamp, _id) key comparison to the query.
+     * @param op comparison operator, either strict or including the key
+     */
+    private void appendKeysetWhere(SQLiteQueryBuilder qb, String op, String timestamp, String id) {
+        long ts = parseQueryNumber(Messages.TIMESTAMP, timestamp, 0, Long.MAX_VALUE);
+        long _id = parseQueryNumber(Messages._ID, id, 0, Long.MAX_VALUE);
+        String strictOp = op.substring(0, 1);
+
+        qb.appendWhere(" AND (" + Messages.TIMESTAMP + " " + strictOp + " " + ts +
+            " OR (" + Messages.TIMESTAMP + " = " + ts + " AND " +
+            Messages._ID + " " + op + " " + _id + "))");
+    }
+
+    /**
+     * Queries a page of messages: the newest messages matching the query,
+     * returned in ascending order.
+     */
+    @SuppressWarnings("deprecation")
+    private Cursor queryPage(SQLiteQueryBuilder qb, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, int limit) {
+
+        String inner = qb.buildQuery(projection, selection, selectionArgs, null, null,
+            Messages.TIMESTAMP + " DESC, " + Messages._ID + " DESC", String.valueOf(limit));
+
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor c = db.rawQuery("SELECT * FROM (" + inner + ") ORDER BY " +
+            Conversations.PAGE_SORT_ORDER, selectionArgs);
+
+        c.setNotificationUri(getContext().getContentResolver(),
+            uri.buildUpon().clearQuery().build());
+        return c;
+    }
+
     @Override
     public synchronized Uri insert(Uri uri, ContentValues initialValues) {
         // only messages and requests virtual table can be inserted
@@ -400,7 +640,7 @@ public class MessagesProvider extends ContentProvider {
             values.put(Messages.THREAD_ID, threadId);
 
             // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+            long rowId = insertMessage(db, values);
 
             /*
              * this will be useful one day perhaps :)
@@ -462,6 +702,186 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
+            notifyChanges(notifications);
+        }
+    }
+
+    /**
+     * Inserts many messages at once, in a single transaction. Messages are
+     * grouped by peer so that each thread is created or updated only once.
+     * Duplicated messages are skipped and not counted.
+     * Only {@link Messages#CONTENT_URI} is supported.
+     */
+    @Override
+    public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != MESSAGES) { throw new IllegalArgumentException("Unknown URI " + uri); }
+        if (values == null) { throw new IllegalArgumentException("No data"); }
+
+        // group messages by peer, keeping arrival order
+        Map<String, List<ContentValues>> groups = new LinkedHashMap<String, List<ContentValues>>();
+        for (ContentValues v : values) {
+            String peer = v.getAsString(Messages.PEER);
+            List<ContentValues> group = groups.get(peer);
+            if (group == null) {
+                group = new ArrayList<ContentValues>();
+                groups.put(peer, group);
+            }
+            group.add(v);
+        }
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        List<Uri> notifications = new ArrayList<Uri>();
+        int count = 0;
+
+        try {
+            beginTransaction(db);
+
+            for (List<ContentValues> group : groups.values()) {
+                // duplicated messages must not touch the thread
+                group = filterStored(db, group);
+                if (group.size() == 0)
+                    continue;
+
+                // thread will reflect the latest message
+                long threadId = updateThreads(db, group.get(group.size() - 1), notifications, false);
+
+                int inserted = 0;
+                for (ContentValues initialValues : group) {
+                    ContentValues v = new ContentValues(initialValues);
+                    v.put(Messages.THREAD_ID, threadId);
+
+                    long rowId;
+                    try {
+                        rowId = insertMessage(db, v);
+                    }
+                    catch (SQLiteConstraintException e) {
+                        // duplicated message, skip it
+                        continue;
+                    }
+
+                    if (rowId > 0) {
+                        // update fulltext table
+                        byte[] content = v.getAsByteArray(Messages.BODY_CONTENT);
+                        Boolean encrypted = v.getAsBoolean(Messages.ENCRYPTED);
+                        if (content != null && content.length > 0 && (encrypted == null || !encrypted.booleanValue())) {
+                            updateFulltext(db, rowId, threadId, content);
+                        }
+
+                        inserted++;
+                    }
+                }
+
+                if (inserted > 0) {
+                    // notify thread change
+                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                    // notify conversation change
+                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+                    count += inserted;
+                }
+            }
+
+            if (count > 0)
+                notifications.add(uri);
+
+            success = setTransactionSuccessful(db);
+            return count;
+        }
+        finally {
+            endTransaction(db, success);
+            notifyChanges(notifications);
+        }
+    }
+
+    /**
+     * Removes messages already stored or duplicated in the given list.
+     * @return the messages to be inserted
+     */
+    private List<ContentValues> filterStored(SQLiteDatabase db, List<ContentValues> group) {
+        List<String> msgIds = new ArrayList<String>(group.size());
+        StringBuilder where = new StringBuilder(Messages.MESSAGE_ID).append(" IN (");
+        for (ContentValues v : group) {
+            String msgId = v.getAsString(Messages.MESSAGE_ID);
+            if (msgId != null) {
+                if (msgIds.size() > 0)
+                    where.append(',');
+                where.append('?');
+                msgIds.add(msgId);
+            }
+        }
+        where.append(')');
+
+        // unique index is on msg_id, direction
+        Set<String> stored = new HashSet<String>();
+        if (msgIds.size() > 0) {
+            Cursor c = db.query(TABLE_MESSAGES, new String[] { Messages.MESSAGE_ID, Messages.DIRECTION },
+                where.toString(), msgIds.toArray(new String[msgIds.size()]), null, null, null);
+            try {
+                while (c.moveToNext())
+                    stored.add(c.getString(0) + "/" + c.getInt(1));
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        List<ContentValues> filtered = new ArrayList<ContentValues>(group.size());
+        for (ContentValues v : group) {
+            String msgId = v.getAsString(Messages.MESSAGE_ID);
+            if (msgId == null || stored.add(msgId + "/" + v.getAsInteger(Messages.DIRECTION)))
+                filtered.add(v);
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Applies all operations in a single transaction. Change notifications
+     * are collected and sent only once per {@link Uri} when the batch is
+     * over; notifications for single messages are merged into one for
+     * {@link Messages#CONTENT_URI}.
+     */
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        Set<Uri> notifications = new LinkedHashSet<Uri>();
+
+        try {
+            beginTransaction(db);
+            mBatchNotifications = notifications;
+
+            ContentProviderResult[] results = super.applyBatch(operations);
+
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            mBatchNotifications = null;
+            endTransaction(db, success);
+
+            if (success) {
+                ContentResolver cr = getContext().getContentResolver();
+                for (Uri nuri : notifications)
+                    cr.notifyChange(nuri, null);
+            }
+        }
+    }
+
+    /** Sends change notifications, or defers them if a batch is in progress. */
+    private void notifyChanges(List<Uri> notifications) {
+        if (mBatchNotifications != null) {
+            for (Uri nuri : notifications) {
+                int match = sUriMatcher.match(nuri);
+                if (match == MESSAGES_ID || match == MESSAGES_SERVERID)
+                    mBatchNotifications.add(Messages.CONTENT_URI);
+                else
+                    mBatchNotifications.add(nuri);
+            }
+        }
+        else {
             ContentResolver cr = getContext().getContentResolver();
             for (Uri nuri : notifications)
                 cr.notifyChange(nuri, null);
@@ -548,48 +968,247 @@ public class MessagesProvider extends ContentProvider {
 	    		values);
         }
 
-        // insert new thread
-        try {
-            threadId = db.insertOrThrow(TABLE_THREADS, null, values);
+        // existing thread: just update it
+        long existingId = findThread(db, peer);
+        if (existingId > 0 && !requestOnly && hasOnlyColumns(values, Threads.PEER, THREAD_TOUCH_COLUMNS)) {
+            if (touchThread(db, existingId, values) > 0)
+                return (threadId < 0) ? existingId : threadId;
 
-            // notify newly created thread by userid
-            // this will be used for fixing ticket #18
-            notifications.add(Threads.getUri(peer));
+            // thread is gone (stale cache entry)
+            mThreadIds.remove(peer);
+            existingId = -1;
         }
-        catch (SQLException e) {
+
+        if (existingId > 0) {
+            ContentValues update = new ContentValues(values);
             // clear draft (since we are inserting a new message here)
-            values.putNull(Threads.DRAFT);
+            update.putNull(Threads.DRAFT);
             // remove other stuff coming from subscription request entry
             if (requestOnly) {
-            	values.remove(Threads.MESSAGE_ID);
-            	values.remove(Threads.ENCRYPTED);
-            	values.remove(Threads.DIRECTION);
+                update.remove(Threads.MESSAGE_ID);
+                update.remove(Threads.ENCRYPTED);
+                update.remove(Threads.DIRECTION);
             }
 
-            db.update(TABLE_THREADS, values, "peer = ?", new String[] { peer });
-            // the client did not pass the thread id, query for it manually
-            if (threadId < 0) {
-                Cursor c = db.query(TABLE_THREADS, new String[] { Threads._ID }, "peer = ?", new String[] { peer }, null, null, null);
-                if (c.moveToFirst())
-                    threadId = c.getLong(0);
-                c.close();
+            if (db.update(TABLE_THREADS, update, Threads._ID + " = " + existingId, null) > 0) {
+                // the client did not pass the thread id, use the one we found
+                return (threadId < 0) ? existingId : threadId;
             }
+
+            // thread is gone (stale cache entry)
+            mThreadIds.remove(peer);
         }
 
+        // insert new thread
+        threadId = db.insertOrThrow(TABLE_THREADS, null, values);
+        mThreadIds.put(peer, threadId);
+
+        // notify newly created thread by userid
+        // this will be used for fixing ticket #18
+        notifications.add(Threads.getUri(peer));
+
         return threadId;
     }
 
+    /**
+     * Looks up the thread id for the given peer, using the cache if possible.
+     * @return the thread id or -1 if not found
+     */
+    private long findThread(SQLiteDatabase db, String peer) {
+        Long cached = mThreadIds.get(peer);
+        if (cached != null)
+            return cached;
+
+        StatementPool stms = getStatements(db);
+        SQLiteStatement stm = stms.get(STM_THREAD_BY_PEER);
+        stm.bindString(1, peer);
+
+        try {
+            long threadId = stms.simpleQueryForLong(STM_THREAD_BY_PEER);
+            mThreadIds.put(peer, threadId);
+            return threadId;
+        }
+        catch (SQLiteDoneException e) {
+            // no such thread
+            return -1;
+        }
+    }
+
+    /** Updates an existing thread with data from a new message. */
+    private int touchThread(SQLiteDatabase db, long threadId, ContentValues values) {
+        StatementPool stms = getStatements(db);
+        SQLiteStatement stm = stms.get(STM_THREAD_TOUCH);
+        for (int i = 0; i < THREAD_TOUCH_COLUMNS.length; i++)
+            StatementPool.bind(stm, i + 1, values.get(THREAD_TOUCH_COLUMNS[i]));
+        stm.bindLong(THREAD_TOUCH_COLUMNS.length + 1, threadId);
+
+        return stms.executeUpdateDelete(STM_THREAD_TOUCH);
+    }
+
+    /**
+     * Sets the body preview column if the body is being written.
+     * The preview is set only for unencrypted text messages.
+     * @return values to be written (a copy if modified)
+     */
+    private static ContentValues fillBodyPreview(ContentValues values) {
+        if (values == null || !values.containsKey(Messages.BODY_CONTENT))
+            return values;
+
+        String preview = null;
+        byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
+        Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
+        if (content != null && (encrypted == null || !encrypted.booleanValue()) &&
+                TextComponent.MIME_TYPE.equals(values.getAsString(Messages.BODY_MIME))) {
+            preview = new String(content);
+            if (preview.length() > Messages.BODY_PREVIEW_LENGTH)
+                preview = preview.substring(0, Messages.BODY_PREVIEW_LENGTH);
+        }
+
+        values = new ContentValues(values);
+        values.put(Messages.BODY_PREVIEW, preview);
+        return values;
+    }
+
+    /** Inserts a message row, using the compiled statement if possible. */
+    private long insertMessage(SQLiteDatabase db, ContentValues values) {
+        values = fillBodyPreview(values);
+        if (!hasOnlyColumns(values, null, MESSAGE_INSERT_COLUMNS))
+            return db.insertOrThrow(TABLE_MESSAGES, null, values);
+
+        StatementPool stms = getStatements(db);
+        SQLiteStatement stm = stms.get(STM_MESSAGE_INSERT);
+        for (int i = 0; i < MESSAGE_INSERT_COLUMNS.length; i++)
+            StatementPool.bind(stm, i + 1, values.get(MESSAGE_INSERT_COLUMNS[i]));
+
+        return stms.executeInsert(STM_MESSAGE_INSERT);
+    }
+
+    /**
+     * Changes the status of a single message using the compiled statements.
+     * @param direction direction of the message, or null for any
+     */
+    private int updateMessageStatus(Uri uri, int match, ContentValues values, Integer direction) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        StatementPool stms = getStatements(db);
+        List<Uri> notifications = new ArrayList<Uri>();
+        boolean success = false;
+
+        try {
+            beginTransaction(db);
+
+            int key = (match == MESSAGES_ID) ? STM_STATUS_BY_ID : STM_STATUS_BY_MSGID;
+            SQLiteStatement stm = stms.get(key);
+            for (int i = 0; i < STATUS_CHANGE_COLUMNS.length; i++)
+                StatementPool.bind(stm, i + 1, values.get(STATUS_CHANGE_COLUMNS[i]));
+            bindMessageSelection(stm, STATUS_CHANGE_COLUMNS.length + 1, uri, match, direction);
+
+            int rows = stms.executeUpdateDelete(key);
+
+            // notify change only if rows are actually affected
+            if (rows > 0) {
+                notifications.add(uri);
+
+                // thread status is updated by trigger, just notify
+                key = (match == MESSAGES_ID) ? STM_THREAD_BY_ID : STM_THREAD_BY_MSGID;
+                stm = stms.get(key);
+                bindMessageSelection(stm, 1, uri, match, direction);
+                try {
+                    long threadId = stms.simpleQueryForLong(key);
+                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+                }
+                catch (SQLiteDoneException e) {
+                    // message not found (WHAT???)
+                }
+            }
+
+            success = setTransactionSuccessful(db);
+            return rows;
+        }
+        finally {
+            endTransaction(db, success);
+            notifyChanges(notifications);
+        }
+    }
+
+    private void bindMessageSelection(SQLiteStatement stm, int index, Uri uri, int match, Integer direction) {
+        if (match == MESSAGES_ID)
+            stm.bindLong(index, ContentUris.parseId(uri));
+        else
+            stm.bindString(index, uri.getPathSegments().get(1));
+
+        if (direction != null)
+            stm.bindLong(index + 1, direction);
+        else
+            stm.bindNull(index + 1);
+    }
+
+    /** Returns true if values contains only the given columns (and extra column, if not null). */
+    private static boolean hasOnlyColumns(ContentValues values, String extra, String[] columns) {
+        for (Map.Entry<String, Object> e : values.valueSet()) {
+            String key = e.getKey();
+            if (key.equals(extra))
+                continue;
+
+            boolean found = false;
+            for (String col : columns) {
+                if (col.equals(key)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found)
+                return false;
+        }
+
+        return true;
+    }
+
+    /** Returns the compiled statements pool for the given database. */
+    private StatementPool getStatements(SQLiteDatabase db) {
+        if (mStatements == null || !mStatements.isFor(db)) {
+            // database was reopened: old statements and ids are stale
+            if (mStatements != null) {
+                mStatements.close();
+                invalidateThreadCache();
+            }
+            mStatements = new StatementPool(db, STATEMENTS_SQL);
+        }
+        return mStatements;
+    }
+
+    /** Clears the thread id cache. Must be called after deleting threads or rolling back. */
+    private void invalidateThreadCache() {
+        mThreadIds.clear();
+    }
+
     @Override
     public synchronized int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         if (values == null) { throw new IllegalArgumentException("No data"); }
 
+        int match = sUriMatcher.match(uri);
+
+        // status change on a single message: use compiled statements
+        if ((match == MESSAGES_ID || match == MESSAGES_SERVERID) &&
+                values.containsKey(Messages.STATUS) &&
+                hasOnlyColumns(values, null, STATUS_CHANGE_COLUMNS)) {
+
+            if (selection == null)
+                return updateMessageStatus(uri, match, values, null);
+            else if (SELECTION_DIRECTION_IN.equals(selection))
+                return updateMessageStatus(uri, match, values, Messages.DIRECTION_IN);
+            else if (SELECTION_DIRECTION_OUT.equals(selection))
+                return updateMessageStatus(uri, match, values, Messages.DIRECTION_OUT);
+        }
+
         String table;
         String where;
         String[] args;
         String messageId = null;
         boolean requestOnly = false;
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             case MESSAGES:
                 table = TABLE_MESSAGES;
                 where = selection;
@@ -668,6 +1287,9 @@ public class MessagesProvider extends ContentProvider {
                 old.close();
             }
 
+            if (table.equals(TABLE_MESSAGES))
+                values = fillBodyPreview(values);
+
             int rows = db.update(table, values, where, args);
 
             // notify change only if rows are actually affected
@@ -727,8 +1349,10 @@ public class MessagesProvider extends ContentProvider {
                     Cursor th = db.query(TABLE_THREADS, new String[] { Threads.COUNT },
                             where, args, null, null, null);
 
-                    if (th.moveToFirst() && th.getInt(0) == 0)
+                    if (th.moveToFirst() && th.getInt(0) == 0) {
                     	db.delete(TABLE_THREADS, where, args);
+                    	invalidateThreadCache();
+                    }
 
                     th.close();
 
@@ -740,9 +1364,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
     }
 
@@ -750,11 +1372,12 @@ public class MessagesProvider extends ContentProvider {
         // use the binary content converted to string
         String text = new String(content);
 
-        ContentValues fulltext = new ContentValues();
-        fulltext.put(Fulltext._ID, id);
-        fulltext.put(Fulltext.THREAD_ID, threadId);
-        fulltext.put(Fulltext.CONTENT, text);
-        db.replace(TABLE_FULLTEXT, null, fulltext);
+        StatementPool stms = getStatements(db);
+        SQLiteStatement stm = stms.get(STM_FULLTEXT_INSERT);
+        stm.bindLong(1, id);
+        stm.bindLong(2, threadId);
+        stm.bindString(3, text);
+        stms.executeInsert(STM_FULLTEXT_INSERT);
     }
 
     @Override
@@ -828,6 +1451,7 @@ public class MessagesProvider extends ContentProvider {
                     beginTransaction(db);
                     // rows count will be conversations
                     num = db.delete(TABLE_THREADS, null, null);
+                    invalidateThreadCache();
                     db.delete(TABLE_MESSAGES, null, null);
                     // update fulltext
                     db.delete(TABLE_FULLTEXT, null, null);
@@ -890,6 +1514,8 @@ public class MessagesProvider extends ContentProvider {
 
             // DELETE!
             rows = db.delete(table, where, args);
+            if (table.equals(TABLE_THREADS))
+                invalidateThreadCache();
 
             // notify change only if rows are actually affected
             if (rows > 0)
@@ -912,9 +1538,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
@@ -930,6 +1554,7 @@ public class MessagesProvider extends ContentProvider {
 
                 beginTransaction(db);
                 num = db.delete(TABLE_THREADS, Threads._ID + " = " + threadId, null);
+                invalidateThreadCache();
                 num += db.delete(TABLE_MESSAGES, Messages.THREAD_ID + " = " + threadId, null);
                 // update fulltext
                 db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
@@ -984,8 +1609,11 @@ public class MessagesProvider extends ContentProvider {
     }
 
     private int deleteEmptyThreads(SQLiteDatabase db) {
-        return db.delete(TABLE_THREADS, "\"" + Threads.COUNT + "\"" + " = 0 AND " +
+        int rows = db.delete(TABLE_THREADS, "\"" + Threads.COUNT + "\"" + " = 0 AND " +
                 Threads.DRAFT + " IS NULL", null);
+        if (rows > 0)
+            invalidateThreadCache();
+        return rows;
     }
 
     @Override
@@ -1012,7 +1640,8 @@ public class MessagesProvider extends ContentProvider {
     private void beginTransaction(SQLiteDatabase db) {
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.beginTransactionNonExclusive();
-        else
+        // nested transactions are not supported here, batch transaction is enough
+        else if (mBatchNotifications == null)
             // this is because API < 11 doesn't have beginTransactionNonExclusive()
             db.execSQL("BEGIN IMMEDIATE");
     }
@@ -1026,8 +1655,12 @@ public class MessagesProvider extends ContentProvider {
     private void endTransaction(SQLiteDatabase db, boolean success) {
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.endTransaction();
-        else
+        else if (mBatchNotifications == null)
             db.execSQL(success ? "COMMIT" : "ROLLBACK");
+
+        // rollback might reissue cached thread ids to other peers
+        if (!success)
+            invalidateThreadCache();
     }
 
     public static boolean deleteDatabase(Context ctx) {
@@ -1186,6 +1819,7 @@ public class MessagesProvider extends ContentProvider {
         messagesProjectionMap.put(Messages.BODY_MIME, Messages.BODY_MIME);
         messagesProjectionMap.put(Messages.BODY_CONTENT, Messages.BODY_CONTENT);
         messagesProjectionMap.put(Messages.BODY_LENGTH, Messages.BODY_LENGTH);
+        messagesProjectionMap.put(Messages.BODY_PREVIEW, Messages.BODY_PREVIEW);
 
         messagesProjectionMap.put(Messages.ATTACHMENT_MIME, Messages.ATTACHMENT_MIME);
         messagesProjectionMap.put(Messages.ATTACHMENT_PREVIEW_PATH, Messages.ATTACHMENT_PREVIEW_PATH);
@@ -1223,5 +1857,61 @@ public class MessagesProvider extends ContentProvider {
         fulltextProjectionMap = new HashMap<String, String>();
         fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
         fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
+
+        STATEMENTS_SQL = new String[STM_THREAD_BY_MSGID + 1];
+
+        StringBuilder insert = new StringBuilder("INSERT INTO " + TABLE_MESSAGES + " (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < MESSAGE_INSERT_COLUMNS.length; i++) {
+            String col = MESSAGE_INSERT_COLUMNS[i];
+            if (i > 0) {
+                insert.append(", ");
+                params.append(", ");
+            }
+            insert.append(col);
+
+            boolean hasDefault = false;
+            for (String def : MESSAGE_DEFAULT_COLUMNS) {
+                if (def.equals(col)) {
+                    hasDefault = true;
+                    break;
+                }
+            }
+            params.append(hasDefault ? "COALESCE(?, 0)" : "?");
+        }
+        insert.append(") VALUES (").append(params).append(")");
+        STATEMENTS_SQL[STM_MESSAGE_INSERT] = insert.toString();
+
+        STATEMENTS_SQL[STM_FULLTEXT_INSERT] = "INSERT OR REPLACE INTO " + TABLE_FULLTEXT +
+            " (" + Fulltext._ID + ", " + Fulltext.THREAD_ID + ", " + Fulltext.CONTENT + ") VALUES (?, ?, ?)";
+
+        String statusSet = "UPDATE " + TABLE_MESSAGES + " SET " +
+            Messages.STATUS + " = ?, " +
+            Messages.STATUS_CHANGED + " = COALESCE(?, " + Messages.STATUS_CHANGED + "), " +
+            Messages.SERVER_TIMESTAMP + " = COALESCE(?, " + Messages.SERVER_TIMESTAMP + ")";
+        String directionWhere = " AND " + Messages.DIRECTION + " = COALESCE(?, " + Messages.DIRECTION + ")";
+        STATEMENTS_SQL[STM_STATUS_BY_ID] = statusSet +
+            " WHERE " + Messages._ID + " = ?" + directionWhere;
+        STATEMENTS_SQL[STM_STATUS_BY_MSGID] = statusSet +
+            " WHERE " + Messages.MESSAGE_ID + " = ?" + directionWhere;
+
+        STATEMENTS_SQL[STM_THREAD_TOUCH] = "UPDATE " + TABLE_THREADS + " SET " +
+            Threads.TIMESTAMP + " = ?, " +
+            Threads.MESSAGE_ID + " = ?, " +
+            Threads.DIRECTION + " = ?, " +
+            Threads.ENCRYPTED + " = ?, " +
+            Threads.STATUS + " = COALESCE(?, " + Threads.STATUS + "), " +
+            Threads.STATUS_CHANGED + " = COALESCE(?, " + Threads.STATUS_CHANGED + "), " +
+            Threads.MIME + " = ?, " +
+            Threads.CONTENT + " = ?, " +
+            Threads.DRAFT + " = NULL" +
+            " WHERE " + Threads._ID + " = ?";
+
+        STATEMENTS_SQL[STM_THREAD_BY_PEER] = "SELECT " + Threads._ID + " FROM " + TABLE_THREADS +
+            " WHERE " + Threads.PEER + " = ?";
+        STATEMENTS_SQL[STM_THREAD_BY_ID] = "SELECT " + Messages.THREAD_ID + " FROM " + TABLE_MESSAGES +
+            " WHERE " + Messages._ID + " = ?" + directionWhere;
+        STATEMENTS_SQL[STM_THREAD_BY_MSGID] = "SELECT " + Messages.THREAD_ID + " FROM " + TABLE_MESSAGES +
+            " WHERE " + Messages.MESSAGE_ID + " = ?" + directionWhere;
     }
 }
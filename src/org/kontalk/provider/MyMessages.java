@@ -19,6 +19,7 @@
 package org.kontalk.provider;
 
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -84,6 +85,10 @@ public final class MyMessages {
         public static final String BODY_MIME = "body_mime";
         public static final String BODY_CONTENT = "body_content";
         public static final String BODY_LENGTH = "body_length";
+        /** Beginning of text body, limited to {@link #BODY_PREVIEW_LENGTH} characters. */
+        public static final String BODY_PREVIEW = "body_preview";
+        /** Maximum length of {@link #BODY_PREVIEW}. */
+        public static final int BODY_PREVIEW_LENGTH = 512;
 
         public static final String ATTACHMENT_MIME = "att_mime";
         public static final String ATTACHMENT_PREVIEW_PATH = "att_preview_path";
@@ -122,6 +127,48 @@ public final class MyMessages {
         public static final class Conversations implements BaseColumns {
             public static final Uri CONTENT_URI = Uri
                 .parse("content://" + MessagesProvider.AUTHORITY + "/conversations");
+
+            /** Maximum number of messages to return (newest first). */
+            public static final String QUERY_LIMIT = "limit";
+            /** Only messages older than this timestamp (use with {@link #QUERY_BEFORE_ID}). */
+            public static final String QUERY_BEFORE_TIMESTAMP = "before_ts";
+            /** Only messages older than this message id (use with {@link #QUERY_BEFORE_TIMESTAMP}). */
+            public static final String QUERY_BEFORE_ID = "before_id";
+            /** Only messages starting from this timestamp (use with {@link #QUERY_SINCE_ID}). */
+            public static final String QUERY_SINCE_TIMESTAMP = "since_ts";
+            /** Only messages starting from this message id (use with {@link #QUERY_SINCE_TIMESTAMP}). */
+            public static final String QUERY_SINCE_ID = "since_id";
+
+            /** Sort order for keyset pagination. */
+            public static final String PAGE_SORT_ORDER = Messages.TIMESTAMP + ", " + Messages._ID;
+
+            /**
+             * Builds a {@link Uri} for a page of messages.
+             * A page contains the newest messages older than the given
+             * (timestamp, id) key, sorted by {@link #PAGE_SORT_ORDER}.
+             * @param beforeTimestamp key timestamp, ignored if id is negative
+             * @param beforeId key message id, negative for the newest page
+             */
+            public static Uri getPageUri(long threadId, int limit, long beforeTimestamp, long beforeId) {
+                Uri.Builder b = ContentUris.withAppendedId(CONTENT_URI, threadId).buildUpon()
+                    .appendQueryParameter(QUERY_LIMIT, String.valueOf(limit));
+                if (beforeId >= 0) {
+                    b.appendQueryParameter(QUERY_BEFORE_TIMESTAMP, String.valueOf(beforeTimestamp))
+                        .appendQueryParameter(QUERY_BEFORE_ID, String.valueOf(beforeId));
+                }
+                return b.build();
+            }
+
+            /**
+             * Builds a {@link Uri} for all messages starting from the given
+             * (timestamp, id) key, included.
+             */
+            public static Uri getWindowUri(long threadId, long sinceTimestamp, long sinceId) {
+                return ContentUris.withAppendedId(CONTENT_URI, threadId).buildUpon()
+                    .appendQueryParameter(QUERY_SINCE_TIMESTAMP, String.valueOf(sinceTimestamp))
+                    .appendQueryParameter(QUERY_SINCE_ID, String.valueOf(sinceId))
+                    .build();
+            }
         }
 
         /** Request represents a presence subscription request. */
@@ -0,0 +1,183 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+
+/**
+ * A cache of compiled statements for a fixed set of SQL operations.
+ * Statements are compiled on first use and kept for the lifetime of the
+ * database they belong to. Not thread-safe: callers must synchronize.
+ * @author Daniele Ricci
+ */
+final class StatementPool {
+    private static final String TAG = StatementPool.class.getSimpleName();
+
+    /** Statistics will be logged every this many executions. */
+    private static final int STATS_INTERVAL = 500;
+
+    private final SQLiteDatabase mDb;
+    private final String[] mSql;
+    private final SQLiteStatement[] mStatements;
+
+    /** Used to retrieve affected rows count on API level < 11. */
+    private SQLiteStatement mChanges;
+
+    // instrumentation
+    private final int[] mCompiled;
+    private final int[] mExecuted;
+    private final long[] mExecuteTime;
+    private int mTotalExecuted;
+
+    /**
+     * Creates a new pool.
+     * @param db the database statements will be compiled against
+     * @param sql SQL for each statement, indexed by statement key
+     */
+    public StatementPool(SQLiteDatabase db, String[] sql) {
+        mDb = db;
+        mSql = sql;
+        mStatements = new SQLiteStatement[sql.length];
+        mCompiled = new int[sql.length];
+        mExecuted = new int[sql.length];
+        mExecuteTime = new long[sql.length];
+    }
+
+    /** Returns true if this pool was created for the given database. */
+    public boolean isFor(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    /** Returns the compiled statement for the given key, with no bindings. */
+    public SQLiteStatement get(int key) {
+        SQLiteStatement stm = mStatements[key];
+        if (stm == null) {
+            stm = mDb.compileStatement(mSql[key]);
+            mStatements[key] = stm;
+            mCompiled[key]++;
+        }
+        else {
+            stm.clearBindings();
+        }
+
+        return stm;
+    }
+
+    /** Executes an INSERT statement. */
+    public long executeInsert(int key) {
+        long start = System.nanoTime();
+        try {
+            return mStatements[key].executeInsert();
+        }
+        finally {
+            executed(key, start);
+        }
+    }
+
+    /** Executes an UPDATE or DELETE statement. */
+    @TargetApi(11)
+    public int executeUpdateDelete(int key) {
+        long start = System.nanoTime();
+        try {
+            if (android.os.Build.VERSION.SDK_INT >= 11)
+                return mStatements[key].executeUpdateDelete();
+
+            mStatements[key].execute();
+            if (mChanges == null)
+                mChanges = mDb.compileStatement("SELECT changes()");
+            return (int) mChanges.simpleQueryForLong();
+        }
+        finally {
+            executed(key, start);
+        }
+    }
+
+    /** Executes a statement returning a single number. */
+    public long simpleQueryForLong(int key) {
+        long start = System.nanoTime();
+        try {
+            return mStatements[key].simpleQueryForLong();
+        }
+        finally {
+            executed(key, start);
+        }
+    }
+
+    private void executed(int key, long start) {
+        mExecuteTime[key] += System.nanoTime() - start;
+        mExecuted[key]++;
+
+        if (++mTotalExecuted % STATS_INTERVAL == 0)
+            logStats();
+    }
+
+    /** Logs statement reuse and average execution time. */
+    public void logStats() {
+        for (int i = 0; i < mSql.length; i++) {
+            if (mExecuted[i] > 0) {
+                Log.v(TAG, "statement " + i + ": executed " + mExecuted[i] +
+                    " times, compiled " + mCompiled[i] + " times, average " +
+                    (mExecuteTime[i] / mExecuted[i] / 1000) + " us");
+            }
+        }
+    }
+
+    /** Releases all compiled statements. */
+    public void close() {
+        for (int i = 0; i < mStatements.length; i++) {
+            if (mStatements[i] != null) {
+                mStatements[i].close();
+                mStatements[i] = null;
+            }
+        }
+
+        if (mChanges != null) {
+            mChanges.close();
+            mChanges = null;
+        }
+    }
+
+    /**
+     * Binds a value coming from a {@link ContentValues} object.
+     * @param index the 1-based parameter index
+     */
+    public static void bind(SQLiteStatement stm, int index, Object value) {
+        if (value == null)
+            stm.bindNull(index);
+        else if (value instanceof String)
+            stm.bindString(index, (String) value);
+        else if (value instanceof Long || value instanceof Integer ||
+                value instanceof Short || value instanceof Byte)
+            stm.bindLong(index, ((Number) value).longValue());
+        else if (value instanceof Boolean)
+            stm.bindLong(index, ((Boolean) value).booleanValue() ? 1 : 0);
+        else if (value instanceof Float || value instanceof Double)
+            stm.bindDouble(index, ((Number) value).doubleValue());
+        else if (value instanceof byte[])
+            stm.bindBlob(index, (byte[]) value);
+        else
+            stm.bindString(index, value.toString());
+    }
+
+}
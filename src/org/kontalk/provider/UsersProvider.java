@@ -18,7 +18,20 @@
 
 package org.kontalk.provider;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.util.StringUtils;
 import org.kontalk.R;
@@ -26,9 +39,9 @@ import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.Coder;
-import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
 import org.kontalk.crypto.PersonalKey;
+import org.kontalk.crypto.PublicKeyCache;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.sync.SyncAdapter;
@@ -45,6 +58,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
@@ -52,9 +66,13 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.RawContacts;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
 import android.util.Log;
 
 
@@ -62,10 +80,28 @@ public class UsersProvider extends ContentProvider {
     private static final String TAG = UsersProvider.class.getSimpleName();
     public static final String AUTHORITY = "org.kontalk.users";
 
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 9;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
+    /** Raw phone numbers and data versions by data id. */
+    private static final String TABLE_PHONES = "phones";
+    /** Normalized phone numbers by raw number. */
+    private static final String TABLE_NUMBERS = "numbers";
+
+    /** Users columns copied on commit (except hash). */
+    private static final String[] SYNC_COLUMNS = {
+        Users.NUMBER,
+        Users.DISPLAY_NAME,
+        Users.LOOKUP_KEY,
+        Users.CONTACT_ID,
+        Users.REGISTERED,
+        Users.STATUS,
+        Users.LAST_SEEN,
+        Users.PUBLIC_KEY,
+        Users.FINGERPRINT,
+        Users.BLOCKED,
+    };
 
     private static final int USERS = 1;
     private static final int USERS_HASH = 2;
@@ -97,6 +133,22 @@ public class UsersProvider extends ContentProvider {
         private static final String SCHEMA_USERS_OFFLINE =
             "CREATE TABLE " + TABLE_USERS_OFFLINE + CREATE_TABLE_USERS;
 
+        /** Phone numbers by raw number, normalized and hashed. */
+        private static final String SCHEMA_NUMBERS =
+            "CREATE TABLE " + TABLE_NUMBERS + " (" +
+            "raw TEXT PRIMARY KEY," +
+            "number TEXT," +
+            "hash TEXT" +
+            ")";
+
+        /** Phone book rows by data id, with their data version. */
+        private static final String SCHEMA_PHONES =
+            "CREATE TABLE " + TABLE_PHONES + " (" +
+            "_id INTEGER PRIMARY KEY," +
+            "version INTEGER NOT NULL," +
+            "raw TEXT NOT NULL" +
+            ")";
+
         // version 2 - just replace the table
         private static final String[] SCHEMA_V1_TO_V2 = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -123,6 +175,17 @@ public class UsersProvider extends ContentProvider {
             "ALTER TABLE " + TABLE_USERS + " ADD COLUMN blocked INTEGER NOT NULL DEFAULT 0",
             "ALTER TABLE " + TABLE_USERS_OFFLINE + " ADD COLUMN blocked INTEGER NOT NULL DEFAULT 0",
         };
+        // version 8 - normalized phone numbers by raw number
+        private static final String[] SCHEMA_V7_TO_V8 = {
+            "DROP TABLE IF EXISTS " + TABLE_PHONES,
+            "DROP TABLE IF EXISTS " + TABLE_NUMBERS,
+            SCHEMA_NUMBERS
+        };
+        // version 9 - data versions of phone book rows
+        private static final String[] SCHEMA_V8_TO_V9 = {
+            "DROP TABLE IF EXISTS " + TABLE_PHONES,
+            SCHEMA_PHONES
+        };
 
         private Context mContext;
 
@@ -140,6 +203,8 @@ public class UsersProvider extends ContentProvider {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
+            db.execSQL(SCHEMA_NUMBERS);
+            db.execSQL(SCHEMA_PHONES);
             mNew = true;
         }
 
@@ -149,6 +214,10 @@ public class UsersProvider extends ContentProvider {
             if (oldVersion == 1) {
                 for (String sql : SCHEMA_V1_TO_V2)
                     db.execSQL(sql);
+                for (String sql : SCHEMA_V7_TO_V8)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
                 mNew = true;
             }
             else if (oldVersion == 2) {
@@ -159,6 +228,10 @@ public class UsersProvider extends ContentProvider {
                     db.execSQL(sql);
                 for (String sql : SCHEMA_V4_TO_V5)
                     db.execSQL(sql);
+                for (String sql : SCHEMA_V7_TO_V8)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
             }
             else if (oldVersion == 3) {
                 for (String sql : SCHEMA_V3_TO_V4)
@@ -168,6 +241,10 @@ public class UsersProvider extends ContentProvider {
                     db.execSQL(sql);
                 for (String sql : SCHEMA_V5_TO_V6)
                     db.execSQL(sql);
+                for (String sql : SCHEMA_V7_TO_V8)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
             }
             else if (oldVersion == 4) {
                 for (String sql : SCHEMA_V4_TO_V5)
@@ -175,10 +252,28 @@ public class UsersProvider extends ContentProvider {
                 // upgrade for version 5 too
                 for (String sql : SCHEMA_V5_TO_V6)
                     db.execSQL(sql);
+                for (String sql : SCHEMA_V7_TO_V8)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
             }
             else if (oldVersion == 5) {
                 for (String sql : SCHEMA_V5_TO_V6)
                     db.execSQL(sql);
+                for (String sql : SCHEMA_V7_TO_V8)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
+            }
+            else if (oldVersion == 6 || oldVersion == 7) {
+                for (String sql : SCHEMA_V7_TO_V8)
+                    db.execSQL(sql);
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
+            }
+            else if (oldVersion == 8) {
+                for (String sql : SCHEMA_V8_TO_V9)
+                    db.execSQL(sql);
             }
         }
 
@@ -341,6 +436,8 @@ public class UsersProvider extends ContentProvider {
         boolean offline = Boolean.parseBoolean(uri.getQueryParameter(Users.OFFLINE));
 
         int rc = db.update(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, values, selection, selectionArgs);
+        if (!offline)
+            invalidatePublicKeys(values, selection, selectionArgs);
         if (rc == 0) {
         	// insert new record
         	values.put(Users.HASH, selectionArgs[0]);
@@ -355,23 +452,340 @@ public class UsersProvider extends ContentProvider {
         return rc;
     }
 
-    /** Triggers a complete resync of the users database. */
+    /** A phone book entry to be stored in the users database. */
+    private static final class UserEntry {
+        final String number;
+        final String name;
+        final String lookupKey;
+        final long contactId;
+
+        UserEntry(String number, String name, String lookupKey, long contactId) {
+            this.number = number;
+            this.name = name;
+            this.lookupKey = lookupKey;
+            this.contactId = contactId;
+        }
+    }
+
+    /** A normalized phone number. */
+    private static final class NumberEntry {
+        /** Normalized number, null if not valid. */
+        final String number;
+        final String hash;
+
+        NumberEntry(String number, String hash) {
+            this.number = number;
+            this.hash = hash;
+        }
+    }
+
+    /** Raw number and data version of a phone book row. */
+    private static final class PhoneVersion {
+        final long version;
+        final String raw;
+
+        PhoneVersion(long version, String raw) {
+            this.version = version;
+            this.raw = raw;
+        }
+    }
+
+    /** Normalizes and hashes phone numbers. Not thread-safe. */
+    private static final class Normalizer {
+        private static final NumberEntry INVALID = new NumberEntry(null, null);
+
+        private final String mDialPrefix;
+        private final String mRegionCode;
+        private final MessageDigest mDigest = MessageUtils.sha1Digest();
+
+        Normalizer(String dialPrefix, String regionCode) {
+            mDialPrefix = dialPrefix;
+            mRegionCode = regionCode;
+        }
+
+        NumberEntry normalize(String raw) {
+            String number = raw;
+
+            // remove dial prefix first
+            if (mDialPrefix != null && number.startsWith(mDialPrefix))
+                number = number.substring(mDialPrefix.length());
+
+            // a phone number with less than 4 digits???
+            if (number.length() < 4)
+                return INVALID;
+
+            // fix number
+            try {
+                number = NumberValidator.fixNumber(number, mRegionCode, 0);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
+                return INVALID;
+            }
+
+            return new NumberEntry(number, MessageUtils.sha1(mDigest, number));
+        }
+    }
+
+    /** A phone book row, waiting for its number to be normalized. */
+    private static final class PhoneRow {
+        final String raw;
+        final String name;
+        final String lookupKey;
+        final long contactId;
+
+        PhoneRow(String raw, String name, String lookupKey, long contactId) {
+            this.raw = raw;
+            this.name = name;
+            this.lookupKey = lookupKey;
+            this.contactId = contactId;
+        }
+    }
+
+    /**
+     * Normalized phone numbers by raw number, backed by the numbers table.
+     * Numbers queued with {@link #prefetch} are normalized in parallel by
+     * background threads; results are written to the table by
+     * {@link #await} from the calling thread. Numbers not requested since
+     * the cache was loaded are removed on {@link #purge}.
+     * Phone book rows are tracked by data id in the phones table: a row
+     * whose {@link Phone#DATA_VERSION} changed gets its number normalized
+     * again, even if it was cached.
+     */
+    private static final class NumberCache {
+        /** Numbers normalized by a single background task. */
+        private static final int CHUNK_SIZE = 64;
+
+        private final SQLiteDatabase mDb;
+        private final String mDialPrefix;
+        private final String mRegionCode;
+        private final Map<String, NumberEntry> mEntries;
+        private final Set<String> mUsed;
+        private final Map<Long, PhoneVersion> mPhones;
+        private final Set<Long> mSeenPhones;
+        private SQLiteStatement mInsert;
+        private SQLiteStatement mPhoneInsert;
+        /** Used for numbers not normalized in background. */
+        private Normalizer mNormalizer;
+
+        private final int mThreads;
+        private ThreadPoolExecutor mExecutor;
+        private final Set<String> mQueued = new HashSet<String>();
+        private List<String> mChunk = new ArrayList<String>(CHUNK_SIZE);
+        private final List<String[]> mPendingNumbers = new ArrayList<String[]>();
+        private final List<Future<NumberEntry[]>> mPendingEntries =
+            new ArrayList<Future<NumberEntry[]>>();
+
+        int normalized;
+
+        NumberCache(SQLiteDatabase db, String dialPrefix, String regionCode, boolean load) {
+            mDb = db;
+            mDialPrefix = dialPrefix;
+            mRegionCode = regionCode;
+            mThreads = Runtime.getRuntime().availableProcessors();
+            mEntries = new HashMap<String, NumberEntry>();
+            mPhones = new HashMap<Long, PhoneVersion>();
+            if (load) {
+                load();
+            }
+            else {
+                db.delete(TABLE_NUMBERS, null, null);
+                db.delete(TABLE_PHONES, null, null);
+            }
+            mUsed = new HashSet<String>(mEntries.size());
+            mSeenPhones = new HashSet<Long>(mPhones.size());
+        }
+
+        private void load() {
+            Cursor c = mDb.query(TABLE_NUMBERS, new String[] { "raw", "number", "hash" },
+                null, null, null, null, null);
+            try {
+                while (c.moveToNext())
+                    mEntries.put(c.getString(0), new NumberEntry(c.getString(1), c.getString(2)));
+            }
+            finally {
+                c.close();
+            }
+
+            c = mDb.query(TABLE_PHONES, new String[] { "_id", "version", "raw" },
+                null, null, null, null, null);
+            try {
+                while (c.moveToNext())
+                    mPhones.put(c.getLong(0), new PhoneVersion(c.getLong(1), c.getString(2)));
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        /**
+         * Queues the number of a phone book row for normalization if not
+         * cached or if the row data version changed.
+         */
+        void prefetch(String raw, long dataId, long version) {
+            mSeenPhones.add(dataId);
+
+            PhoneVersion phone = mPhones.get(dataId);
+            if (phone == null || phone.version != version || !phone.raw.equals(raw)) {
+                // row modified since last sync - don't trust the cache
+                if (phone != null && phone.version != version)
+                    mEntries.remove(raw);
+
+                if (mPhoneInsert == null)
+                    mPhoneInsert = mDb.compileStatement("INSERT OR REPLACE INTO " + TABLE_PHONES +
+                        " (_id, version, raw) VALUES(?, ?, ?)");
+                mPhoneInsert.clearBindings();
+                mPhoneInsert.bindLong(1, dataId);
+                mPhoneInsert.bindLong(2, version);
+                mPhoneInsert.bindString(3, raw);
+                mPhoneInsert.executeInsert();
+            }
+
+            prefetch(raw);
+        }
+
+        /** Queues a number for normalization if not cached. */
+        void prefetch(String raw) {
+            if (mEntries.containsKey(raw) || !mQueued.add(raw))
+                return;
+
+            mChunk.add(raw);
+            if (mChunk.size() >= CHUNK_SIZE)
+                submitChunk();
+        }
+
+        private void submitChunk() {
+            if (mChunk.size() == 0)
+                return;
+
+            if (mExecutor == null)
+                mExecutor = new ThreadPoolExecutor(mThreads, mThreads, 0, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, TAG);
+                        }
+                    });
+
+            final String[] numbers = mChunk.toArray(new String[mChunk.size()]);
+            mChunk = new ArrayList<String>(CHUNK_SIZE);
+
+            mPendingNumbers.add(numbers);
+            mPendingEntries.add(mExecutor.submit(new Callable<NumberEntry[]>() {
+                public NumberEntry[] call() {
+                    // normalizers are not thread-safe
+                    Normalizer normalizer = new Normalizer(mDialPrefix, mRegionCode);
+                    NumberEntry[] entries = new NumberEntry[numbers.length];
+                    for (int i = 0; i < numbers.length; i++)
+                        entries[i] = normalizer.normalize(numbers[i]);
+                    return entries;
+                }
+            }));
+        }
+
+        /** Waits for queued numbers to be normalized and stores them. */
+        void await() {
+            submitChunk();
+
+            for (int i = 0; i < mPendingEntries.size(); i++) {
+                String[] numbers = mPendingNumbers.get(i);
+                NumberEntry[] entries;
+                try {
+                    entries = mPendingEntries.get(i).get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // numbers will be normalized by get()
+                    continue;
+                }
+                catch (ExecutionException e) {
+                    Log.w(TAG, "unable to normalize numbers", e.getCause());
+                    // numbers will be normalized by get()
+                    continue;
+                }
+
+                for (int j = 0; j < numbers.length; j++)
+                    put(numbers[j], entries[j]);
+            }
+
+            mPendingNumbers.clear();
+            mPendingEntries.clear();
+            mQueued.clear();
+        }
+
+        NumberEntry get(String raw) {
+            mUsed.add(raw);
+
+            NumberEntry entry = mEntries.get(raw);
+            if (entry == null) {
+                if (mNormalizer == null)
+                    mNormalizer = new Normalizer(mDialPrefix, mRegionCode);
+                entry = mNormalizer.normalize(raw);
+                put(raw, entry);
+            }
+
+            return entry;
+        }
+
+        private void put(String raw, NumberEntry entry) {
+            normalized++;
+            mEntries.put(raw, entry);
+
+            if (mInsert == null)
+                mInsert = mDb.compileStatement("INSERT OR REPLACE INTO " + TABLE_NUMBERS +
+                    " (raw, number, hash) VALUES(?, ?, ?)");
+            mInsert.clearBindings();
+            mInsert.bindString(1, raw);
+            bindStringOrNull(mInsert, 2, entry.number);
+            bindStringOrNull(mInsert, 3, entry.hash);
+            mInsert.executeInsert();
+        }
+
+        /** Removes numbers and phone book rows not used anymore. */
+        void purge() {
+            for (String raw : mEntries.keySet()) {
+                if (!mUsed.contains(raw))
+                    mDb.delete(TABLE_NUMBERS, "raw = ?", new String[] { raw });
+            }
+            for (Long dataId : mPhones.keySet()) {
+                if (!mSeenPhones.contains(dataId))
+                    mDb.delete(TABLE_PHONES, "_id = " + dataId, null);
+            }
+        }
+
+        int getThreadCount() {
+            return mExecutor != null ? mThreads : 0;
+        }
+
+        void close() {
+            if (mExecutor != null)
+                mExecutor.shutdownNow();
+            if (mInsert != null)
+                mInsert.close();
+            if (mPhoneInsert != null)
+                mPhoneInsert.close();
+        }
+    }
+
+    /** Triggers a resync of the users database. */
     private int resync(boolean commit) {
-        Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        // begin transaction
-        beginTransaction(db);
-        boolean success = false;
-
         if (commit) {
+            // begin transaction
+            beginTransaction(db);
+            boolean success = false;
+
             try {
-                // copy contents from offline
-                db.execSQL("DELETE FROM " + TABLE_USERS);
-                db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
+                commitUsers(db);
                 // time to invalidate contacts cache
                 Contact.invalidate();
+                PublicKeyCache.invalidate();
                 success = setTransactionSuccessful(db);
             }
             catch (SQLException e) {
@@ -385,160 +799,270 @@ public class UsersProvider extends ContentProvider {
             return 0;
         }
         else {
-            int count = 0;
+            return syncOffline(db);
+        }
+    }
 
-            // delete old users content
-            try {
-                db.execSQL("DELETE FROM " + TABLE_USERS_OFFLINE);
-            }
-            catch (SQLException e) {
-                // table might not exist - create it! (shouldn't happen since version 4)
-                db.execSQL(DatabaseHelper.SCHEMA_USERS_OFFLINE);
+    /**
+     * Updates the offline users table with the phone book. Only phone
+     * numbers never seen before or whose phone book row changed are
+     * normalized; the table is then updated with the differences.
+     * @return the number of users found in the phone book
+     */
+    private int syncOffline(SQLiteDatabase db) {
+        Context context = getContext();
+        ContentResolver cr = context.getContentResolver();
+
+        long startTime = SystemClock.elapsedRealtime();
+
+        String dialPrefix = Preferences.getDialPrefix(context);
+        String regionCode = NumberValidator.getRegionCode(context,
+            Authenticator.getDefaultAccountName(context));
+
+        // numbers must be normalized again if normalization settings changed
+        String normalizationKey = regionCode + "/" + dialPrefix;
+        boolean keyChanged = !normalizationKey
+            .equals(Preferences.getNumberNormalizationKey(context));
+
+        // phone book users by hash
+        Map<String, UserEntry> users = new HashMap<String, UserEntry>();
+
+        // begin transaction
+        beginTransaction(db);
+        boolean success = false;
+
+        NumberCache numbers = null;
+        Cursor cursor = null;
+
+        try {
+            numbers = new NumberCache(db, dialPrefix, regionCode, !keyChanged);
+            List<PhoneRow> rows = new ArrayList<PhoneRow>();
+
+            // query for phone numbers
+            // FIXME this might return null on some devices
+            cursor = cr.query(Phone.CONTENT_URI,
+                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY,
+                    Phone.CONTACT_ID, Phone._ID, Phone.DATA_VERSION },
+                // this will filter out RawContacts from Kontalk
+                RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+                RawContacts.ACCOUNT_TYPE + "<> ?",
+                new String[] { Authenticator.ACCOUNT_TYPE }, null);
+
+            while (cursor.moveToNext()) {
+                String number = cursor.getString(0);
+                String name = cursor.getString(1);
+
+                // buggy provider - skip entry
+                if (name == null || number == null)
+                    continue;
+
+                // normalization will start while reading the phone book
+                numbers.prefetch(number, cursor.getLong(4), cursor.getLong(5));
+                rows.add(new PhoneRow(number, name, cursor.getString(2), cursor.getLong(3)));
             }
 
-            // we are trying to be fast here
-            SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
-                " (hash, number, display_name, lookup_key, contact_id) VALUES(?, ?, ?, ?, ?)");
+            cursor.close();
+            cursor = null;
 
-            Cursor phones = null;
-            String dialPrefix = Preferences.getDialPrefix(context);
-            int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+            if (Preferences.getSyncSIMContacts(getContext())) {
+                // query for SIM contacts
+                // column selection doesn't work because of a bug in Android
+                // TODO this is a bit unclear...
+                try {
+                    cursor = cr.query(Uri.parse("content://icc/adn/"),
+                        null, null, null, null);
+                }
+                catch (Exception e) {
+                    /*
+                    On some phones:
+                    java.lang.NullPointerException
+                        at android.os.Parcel.readException(Parcel.java:1431)
+                        at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:185)
+                        at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:137)
+                        at android.content.ContentProviderProxy.query(ContentProviderNative.java:366)
+                        at android.content.ContentResolver.query(ContentResolver.java:372)
+                        at android.content.ContentResolver.query(ContentResolver.java:315)
+                     */
+                    Log.w(TAG, "unable to retrieve SIM contacts", e);
+                    cursor = null;
+                }
 
-            try {
-                // query for phone numbers
-            	// FIXME this might return null on some devices
-                phones = cr.query(Phone.CONTENT_URI,
-                    new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
-                    // this will filter out RawContacts from Kontalk
-                    RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
-                    RawContacts.ACCOUNT_TYPE + "<> ?",
-                    new String[] { Authenticator.ACCOUNT_TYPE }, null);
-
-                while (phones.moveToNext()) {
-                    String number = phones.getString(0);
-                    String name = phones.getString(1);
-
-                    // buggy provider - skip entry
-                    if (name == null || number == null)
-                        continue;
-
-                    // remove dial prefix first
-                    if (dialPrefix != null && number.startsWith(dialPrefix))
-                        number = number.substring(dialPrefixLen);
-
-                    // a phone number with less than 4 digits???
-                    if (number.length() < 4)
-                        continue;
-
-                    // fix number
-                    try {
-                        number = NumberValidator.fixNumber(context, number,
-                                Authenticator.getDefaultAccountName(context), 0);
-                    }
-                    catch (Exception e) {
-                        Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
-                        // skip number
-                        continue;
+                if (cursor != null) {
+                    while (cursor.moveToNext()) {
+                        String name = cursor.getString(cursor.getColumnIndex("name"));
+                        String number = cursor.getString(cursor.getColumnIndex("number"));
+                        // buggy firmware - skip entry
+                        if (name == null || number == null)
+                            continue;
+
+                        numbers.prefetch(number);
+                        rows.add(new PhoneRow(number, name, null,
+                            cursor.getLong(cursor.getColumnIndex(BaseColumns._ID))));
                     }
 
-                    try {
-                        String hash = MessageUtils.sha1(number);
-
-                        stm.clearBindings();
-                        stm.bindString(1, hash);
-                        stm.bindString(2, number);
-                        stm.bindString(3, name);
-                        stm.bindString(4, phones.getString(2));
-                        stm.bindLong(5, phones.getLong(3));
-                        stm.executeInsert();
-                        count++;
-                    }
-                    catch (SQLiteConstraintException sqe) {
-                        // skip duplicate number
-                    }
+                    cursor.close();
+                    cursor = null;
                 }
+            }
 
-                phones.close();
+            numbers.await();
 
-                if (Preferences.getSyncSIMContacts(getContext())) {
-                    // query for SIM contacts
-                    // column selection doesn't work because of a bug in Android
-                    // TODO this is a bit unclear...
-                    try {
-                        phones = cr.query(Uri.parse("content://icc/adn/"),
-                            null, null, null, null);
-                    }
-                    catch (Exception e) {
-                        /*
-                        On some phones:
-                        java.lang.NullPointerException
-                            at android.os.Parcel.readException(Parcel.java:1431)
-                            at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:185)
-                            at android.database.DatabaseUtils.readExceptionFromParcel(DatabaseUtils.java:137)
-                            at android.content.ContentProviderProxy.query(ContentProviderNative.java:366)
-                            at android.content.ContentResolver.query(ContentResolver.java:372)
-                            at android.content.ContentResolver.query(ContentResolver.java:315)
-                         */
-                        Log.w(TAG, "unable to retrieve SIM contacts", e);
-                        phones = null;
-                    }
+            // phone book order is kept, so the first of duplicate numbers wins
+            for (PhoneRow row : rows) {
+                NumberEntry entry = numbers.get(row.raw);
 
-                    if (phones != null) {
-                        while (phones.moveToNext()) {
-                            String name = phones.getString(phones.getColumnIndex("name"));
-                            String number = phones.getString(phones.getColumnIndex("number"));
-                            // buggy firmware - skip entry
-                            if (name == null || number == null)
-                                continue;
-
-                            // remove dial prefix first
-                            if (dialPrefix != null && number.startsWith(dialPrefix))
-                                number = number.substring(dialPrefixLen);
-
-                            // a phone number with less than 4 digits???
-                            if (number.length() < 4)
-                                continue;
-
-                            // fix number
-                            try {
-                                number = NumberValidator.fixNumber(context, number,
-                                        Authenticator.getDefaultAccountName(context), 0);
-                            }
-                            catch (Exception e) {
-                                Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
-                                // skip number
-                                continue;
-                            }
-
-                            try {
-                                String hash = MessageUtils.sha1(number);
-
-                                stm.clearBindings();
-                                stm.bindString(1, hash);
-                                stm.bindString(2, number);
-                                stm.bindString(3, name);
-                                stm.bindNull(4);
-                                stm.bindLong(5, phones.getLong(phones.getColumnIndex(BaseColumns._ID)));
-                                stm.executeInsert();
-                                count++;
-                            }
-                            catch (SQLiteConstraintException sqe) {
-                                // skip duplicate number
-                            }
-                        }
+                // skip invalid and duplicate numbers
+                if (entry.hash != null && !users.containsKey(entry.hash))
+                    users.put(entry.hash, new UserEntry(entry.number, row.name,
+                        row.lookupKey, row.contactId));
+            }
+
+            // forget deleted phone numbers
+            numbers.purge();
+
+            int[] changes = applyOffline(db, users);
+
+            success = setTransactionSuccessful(db);
+
+            Log.d(TAG, "users resync: " + users.size() + " users, " + numbers.normalized +
+                " numbers normalized (" + numbers.getThreadCount() + " threads), " +
+                changes[0] + " inserted, " + changes[1] + " updated, " + changes[2] + " deleted in " +
+                (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+        finally {
+            endTransaction(db, success);
+            if (cursor != null)
+                cursor.close();
+            if (numbers != null)
+                numbers.close();
+        }
+
+        if (success && keyChanged)
+            Preferences.setNumberNormalizationKey(context, normalizationKey);
+
+        return users.size();
+    }
+
+    /**
+     * Applies phone book changes to the offline users table.
+     * @return inserted, updated and deleted users count
+     */
+    private int[] applyOffline(SQLiteDatabase db, Map<String, UserEntry> users) {
+        int inserted = 0, updated = 0, deleted = 0;
+
+        // registration data is reset by the sync (unless it's being resumed)
+
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
+            " (hash, number, display_name, lookup_key, contact_id) VALUES(?, ?, ?, ?, ?)");
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_USERS_OFFLINE +
+            " SET display_name = ?, lookup_key = ?, contact_id = ? WHERE hash = ?");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_USERS_OFFLINE +
+            " WHERE hash = ?");
+
+        Set<String> existing = new HashSet<String>(users.size());
+        Cursor c = db.query(TABLE_USERS_OFFLINE, new String[] { Users.HASH,
+            Users.DISPLAY_NAME, Users.LOOKUP_KEY, Users.CONTACT_ID },
+            null, null, null, null, null);
+
+        try {
+            while (c.moveToNext()) {
+                String hash = c.getString(0);
+                UserEntry user = users.get(hash);
+
+                if (user == null) {
+                    delete.bindString(1, hash);
+                    delete.execute();
+                    deleted++;
+                }
+                else {
+                    existing.add(hash);
+
+                    if (!TextUtils.equals(user.name, c.getString(1)) ||
+                            !TextUtils.equals(user.lookupKey, c.getString(2)) ||
+                            user.contactId != c.getLong(3)) {
+                        update.clearBindings();
+                        bindStringOrNull(update, 1, user.name);
+                        bindStringOrNull(update, 2, user.lookupKey);
+                        update.bindLong(3, user.contactId);
+                        update.bindString(4, hash);
+                        update.execute();
+                        updated++;
                     }
                 }
-
-                success = setTransactionSuccessful(db);
             }
-            finally {
-                endTransaction(db, success);
-                if (phones != null)
-                    phones.close();
-                stm.close();
+
+            for (Map.Entry<String, UserEntry> e : users.entrySet()) {
+                if (existing.contains(e.getKey()))
+                    continue;
+
+                UserEntry user = e.getValue();
+                insert.clearBindings();
+                insert.bindString(1, e.getKey());
+                insert.bindString(2, user.number);
+                bindStringOrNull(insert, 3, user.name);
+                bindStringOrNull(insert, 4, user.lookupKey);
+                insert.bindLong(5, user.contactId);
+                try {
+                    insert.executeInsert();
+                    inserted++;
+                }
+                catch (SQLiteConstraintException sqe) {
+                    // skip duplicate number
+                }
             }
-            return count;
         }
+        finally {
+            c.close();
+            insert.close();
+            update.close();
+            delete.close();
+        }
+
+        return new int[] { inserted, updated, deleted };
+    }
+
+    /**
+     * Copies the offline users table to the users table. Only changed rows
+     * are written; users not found in the offline table are deleted.
+     */
+    private void commitUsers(SQLiteDatabase db) {
+        long startTime = SystemClock.elapsedRealtime();
+
+        db.execSQL("DELETE FROM " + TABLE_USERS + " WHERE hash NOT IN " +
+            "(SELECT hash FROM " + TABLE_USERS_OFFLINE + ")");
+        long deleted = changes(db);
+
+        // new and changed users are written by a single statement; existing
+        // rows are replaced with the same _id so row ids stay stable
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        StringBuilder changed = new StringBuilder();
+        for (String column : SYNC_COLUMNS) {
+            columns.append(", ").append(column);
+            values.append(", o.").append(column);
+            changed.append(" OR o.").append(column).append(" IS NOT u.").append(column);
+        }
+
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_USERS + " (_id, hash" + columns +
+            ") SELECT u._id, o.hash" + values + " FROM " + TABLE_USERS_OFFLINE + " o " +
+            "LEFT JOIN " + TABLE_USERS + " u ON u.hash = o.hash " +
+            "WHERE u._id IS NULL" + changed);
+        long written = changes(db);
+
+        Log.d(TAG, "users commit: " + written + " inserted or updated, " +
+            deleted + " deleted in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+    }
+
+    /** Returns the number of rows changed by the last statement. */
+    private static long changes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+    }
+
+    private static void bindStringOrNull(SQLiteStatement stm, int index, String value) {
+        if (value != null)
+            stm.bindString(index, value);
+        else
+            stm.bindNull(index);
     }
 
     @Override
@@ -549,6 +1073,9 @@ public class UsersProvider extends ContentProvider {
         String table = offline ? TABLE_USERS_OFFLINE : TABLE_USERS;
         long id = 0;
 
+        if (!offline)
+            invalidatePublicKeys(values, null, null);
+
         try {
 	        id = db.insertOrThrow(table, null, values);
         }
@@ -589,34 +1116,54 @@ public class UsersProvider extends ContentProvider {
             Users.HASH + "=?", new String[] { userId });
     }
 
-    /** Returns a {@link Coder} instance for encrypting data. */
+    /** Maximum number of encryption coders to keep for reuse. */
+    private static final int MAX_ENCRYPT_CODERS = 10;
+
+    /** Encryption coders cache (recipients: coder). */
+    private static final LruCache<String, PGPCoder> sEncryptCoders =
+        new LruCache<String, PGPCoder>(MAX_ENCRYPT_CODERS);
+
+    /**
+     * Returns a {@link Coder} instance for encrypting data.
+     * Coders are reused for messages to the same recipients, as long as
+     * their keys don't change.
+     */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
         // get recipients public keys from users database
         PGPPublicKey keys[] = new PGPPublicKey[recipients.length];
+        StringBuilder cacheKey = new StringBuilder();
         for (int i = 0; i < recipients.length; i++) {
             String rcpt = StringUtils.parseName(recipients[i]);
+            cacheKey.append(rcpt).append(';');
 
-            PGPPublicKeyRing ring = getPublicKey(context, rcpt);
-            if (ring == null)
+            PublicKeyCache.Entry entry = getPublicKeyEntry(context, rcpt);
+            if (entry == null)
                 throw new IllegalArgumentException("public key not found for user " + rcpt);
 
-        	keys[i] = PGP.getEncryptionKey(ring);
+        	keys[i] = entry.getEncryptionKey();
         	if (keys[i] == null)
                 throw new IllegalArgumentException("public key not found for user " + rcpt);
         }
 
-        return new PGPCoder(server, key, keys);
+        String coderKey = cacheKey.toString();
+        PGPCoder coder = sEncryptCoders.get(coderKey);
+        if (coder == null || !coder.isFor(server, key, keys)) {
+            coder = new PGPCoder(server, key, keys);
+            sEncryptCoders.put(coderKey, coder);
+        }
+
+        return coder;
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
     public static Coder getDecryptCoder(Context context, EndpointServer server, PersonalKey key, String sender) {
         String rcpt = StringUtils.parseName(sender);
 
-        PGPPublicKeyRing ring = getPublicKey(context, rcpt);
-        if (ring == null)
+        PublicKeyCache.Entry entry = getPublicKeyEntry(context, rcpt);
+        if (entry == null)
             throw new IllegalArgumentException("public key not found for user " + rcpt);
 
-    	PGPPublicKey senderKey = PGP.getMasterKey(ring);
+    	PGPPublicKey senderKey = entry.getMasterKey();
     	if (senderKey == null)
             throw new IllegalArgumentException("public key not found for user " + rcpt);
 
@@ -625,27 +1172,33 @@ public class UsersProvider extends ContentProvider {
 
     /** Retrieves the public key for a user. */
     public static PGPPublicKeyRing getPublicKey(Context context, String userId) {
+        PublicKeyCache.Entry entry = getPublicKeyEntry(context, userId);
+        return (entry != null) ? entry.getKeyRing() : null;
+    }
+
+    /** Retrieves the parsed public key for a user, from cache if possible. */
+    private static PublicKeyCache.Entry getPublicKeyEntry(Context context, String userId) {
+        PublicKeyCache.Entry entry = PublicKeyCache.get(userId);
+        if (entry != null)
+            return entry;
+
         byte[] keydata = null;
+        String fingerprint = null;
         ContentResolver res = context.getContentResolver();
         Cursor c = res.query(Users.CONTENT_URI,
-                new String[] { Users.PUBLIC_KEY },
+                new String[] { Users.PUBLIC_KEY, Users.FINGERPRINT },
                 Users.HASH + "=?",
                 new String[] { userId },
                 null);
 
-        if (c.moveToFirst())
+        if (c.moveToFirst()) {
             keydata = c.getBlob(0);
+            fingerprint = c.getString(1);
+        }
 
         c.close();
 
-        try {
-            return PGP.readPublicKeyring(keydata);
-        }
-        catch (Exception e) {
-            // ignored
-        }
-
-        return null;
+        return PublicKeyCache.put(userId, fingerprint, keydata);
     }
 
     /** Updates a user public key. */
@@ -655,6 +1208,27 @@ public class UsersProvider extends ContentProvider {
         values.put(Users.FINGERPRINT, fingerprint);
         context.getContentResolver().update(Users.CONTENT_URI, values,
             Users.HASH + "=?", new String[] { userId });
+
+        // invalidate cached keys for this user
+        PublicKeyCache.invalidate(userId);
+        Contact.invalidate(userId);
+    }
+
+    /** Discards cached public keys possibly modified by the given values. */
+    private static void invalidatePublicKeys(ContentValues values, String selection, String[] selectionArgs) {
+        if (values.containsKey(Users.PUBLIC_KEY)) {
+            String hash = values.getAsString(Users.HASH);
+            // single user update
+            if (hash == null && selection != null && selectionArgs != null &&
+                    selectionArgs.length == 1 &&
+                    selection.replace(" ", "").equals(Users.HASH + "=?"))
+                hash = selectionArgs[0];
+
+            if (hash != null)
+                PublicKeyCache.invalidate(hash);
+            else
+                PublicKeyCache.invalidate();
+        }
     }
 
     public static void setBlockStatus(Context context, String userId, boolean blocked) {
@@ -27,149 +27,289 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_ERRO
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_OK;
 
 import java.io.File;
-import java.security.PrivateKey;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.client.ClientHTTPConnection;
+import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.UsersProvider;
 import org.kontalk.ui.ConversationList;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Preferences;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are run in parallel by {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service {
     private static final String TAG = DownloadService.class.getSimpleName();
-    /** A map to avoid duplicate downloads. */
-    private static final Map<String, String> queue = new LinkedHashMap<String, String>();
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
+    /** Resumes downloads interrupted by a process restart. */
+    public static final String ACTION_DOWNLOAD_RESUME = "org.kontalk.action.DOWNLOAD_RESUME";
+
+    /** Expected attachment length. Use with ACTION_DOWNLOAD_URL. */
+    public static final String EXTRA_LENGTH = "org.kontalk.download.LENGTH";
+
+    private TransferScheduler mScheduler;
 
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the download currently being processed
+    // downloads currently being processed
+    private final Set<DownloadTransfer> mActive = new HashSet<DownloadTransfer>();
+    private final TransferProgress mProgress = new TransferProgress();
     private Notification mCurrentNotification;
-    private long mTotalBytes;
+    private int mLastStartId;
 
-    private String mMessageId;
-    private String mPeer;
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mScheduler = TransferScheduler.getInstance(this);
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    }
 
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (mNotificationManager == null)
-            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-        if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
-            String url = intent.getData().toString();
-            String msgId = queue.get(url);
-            if (msgId != null) {
-                // interrupt worker if running
-                if (msgId.equals(mMessageId)) {
-                    mDownloadClient.abort();
-                    mCanceled = true;
-                }
-                // remove from queue - will never be processed
-                else
-                    queue.remove(url);
+        synchronized (this) {
+            mLastStartId = startId;
+        }
+
+        String action = (intent != null) ? intent.getAction() : null;
+
+        if (ACTION_DOWNLOAD_URL.equals(action)) {
+            enqueue(intent, TransferScheduler.PRIORITY_HIGH);
+        }
+
+        else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
+            mScheduler.cancel(TransferScheduler.DIRECTION_DOWNLOAD,
+                intent.getData().toString());
+        }
+
+        else if (ACTION_DOWNLOAD_RESUME.equals(action)) {
+            for (Intent request : mScheduler.getStored(TransferScheduler.DIRECTION_DOWNLOAD)) {
+                if (ACTION_DOWNLOAD_URL.equals(request.getAction()))
+                    enqueue(request, TransferScheduler.PRIORITY_NORMAL);
             }
-            return START_NOT_STICKY;
         }
 
-        return super.onStartCommand(intent, flags, startId);
+        stopIfIdle();
+        return START_NOT_STICKY;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // unknown action
-        if (!ACTION_DOWNLOAD_URL.equals(intent.getAction())) return;
-
-        Uri uri = intent.getData();
-        String url = uri.toString();
-
-        // check if download has already been queued
-        if (queue.get(url) != null) return;
-
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
-
-        if (mDownloadClient == null) {
-        	PersonalKey key;
-        	PrivateKey privateKey;
-        	try {
-				key = ((Kontalk) getApplication()).getPersonalKey();
-				privateKey = key.getBridgePrivateKey();
-			}
-        	catch (Exception e) {
-        		// TODO i18n :)
-                errorNotification("ERROR", "NAUGHTY BOY/GIRL!");
-        		return;
-			}
-
-            mDownloadClient = new ClientHTTPConnection(this,
-        		privateKey, key.getBridgeCertificate());
+    private void enqueue(Intent intent, int priority) {
+        DownloadTransfer transfer = new DownloadTransfer(intent.getData().toString(),
+            intent.getStringExtra(CompositeMessage.MSG_ID),
+            intent.getStringExtra(CompositeMessage.MSG_SENDER),
+            priority, intent.getLongExtra(EXTRA_LENGTH, -1));
+
+        if (!mScheduler.enqueue(transfer, intent))
+            Log.v(TAG, "download already queued: " + transfer.getKey());
+    }
+
+    private synchronized void stopIfIdle() {
+        if (!mScheduler.hasTransfers(TransferScheduler.DIRECTION_DOWNLOAD))
+            stopSelf(mLastStartId);
+    }
+
+    /** Starts resuming downloads interrupted by a process restart. */
+    public static void resume(Context context) {
+        Intent i = new Intent(context, DownloadService.class);
+        i.setAction(ACTION_DOWNLOAD_RESUME);
+        context.startService(i);
+    }
+
+    /** A single download. */
+    private final class DownloadTransfer extends TransferScheduler.Transfer
+            implements DownloadListener {
+
+        private final String mMessageId;
+        private final String mPeer;
+
+        private ClientHTTPConnection mConn;
+        private volatile long mTotalBytes;
+        private volatile long mBytes;
+
+        public DownloadTransfer(String url, String msgId, String peer, int priority, long length) {
+            super(TransferScheduler.DIRECTION_DOWNLOAD, url, priority, length);
+            mMessageId = msgId;
+            mPeer = peer;
         }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                        getString(R.string.notify_text_external_storage));
-                return;
+        @Override
+        protected void execute() {
+            String url = getKey();
+            try {
+                // check if external storage is available
+                if (!MediaStorage.isExternalStorageAvailable()) {
+                    errorNotification(getString(R.string.notify_ticker_external_storage),
+                            getString(R.string.notify_text_external_storage));
+                    return;
+                }
+
+                // make sure storage directory is present
+                MediaStorage.MEDIA_ROOT.mkdirs();
+
+                PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
+                synchronized (this) {
+                    if (isCanceled())
+                        return;
+                    mConn = new ClientHTTPConnection(DownloadService.this,
+                        key.getBridgePrivateKey(), key.getBridgeCertificate());
+                }
+
+                // used only if content is encrypted
+                Coder decrypter = null;
+                if (mPeer != null) {
+                    try {
+                        decrypter = UsersProvider.getDecryptCoder(DownloadService.this,
+                            Preferences.getEndpointServer(DownloadService.this), key, mPeer);
+                    }
+                    catch (Exception e) {
+                        Log.w(TAG, "unable to create decrypter for " + mPeer, e);
+                    }
+                }
+
+                // download content
+                mConn.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, decrypter, mLength, this);
+            }
+            catch (IOException e) {
+                // partial data is kept, download will be resumed later
+                if (!isCanceled())
+                    keep();
+                error(url, null, e);
+            }
+            catch (Exception e) {
+                error(url, null, e);
             }
+        }
+
+        @Override
+        protected synchronized void abort() {
+            if (mConn != null)
+                mConn.abort();
+        }
+
+        @Override
+        protected void finished(boolean idle) {
+            transferEnded(this);
+            if (idle)
+                stopIfIdle();
+        }
 
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
+        @Override
+        public void start(String url, File destination, long length) {
+            mTotalBytes = length;
+            transferStarted(this);
+        }
 
-            mMessageId = intent.getStringExtra(CompositeMessage.MSG_ID);
-            mPeer = intent.getStringExtra(CompositeMessage.MSG_SENDER);
-            queue.put(url, mMessageId);
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            // canceled before the request was started
+            if (isCanceled())
+                abort();
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, this);
+            long delta = bytes - mBytes;
+            mBytes = bytes;
+            if (mProgress.update(delta))
+                updateProgress();
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        @Override
+        public void completed(String url, String mime, File destination) {
+            Uri uri = Uri.fromFile(destination);
+
+            // notify only if conversation is not open
+            if (mPeer != null && !mPeer.equals(MessagingNotification.getPaused())) {
+
+                // detect mime type if not available
+                if (mime == null)
+                    mime = getContentResolver().getType(uri);
+
+                // create intent for download complete notification
+                Intent i = new Intent(Intent.ACTION_VIEW);
+                i.setDataAndType(uri, mime);
+                PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+                        NOTIFICATION_ID_DOWNLOAD_OK, i, Intent.FLAG_ACTIVITY_NEW_TASK);
+
+                // create notification
+                NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
+                    .setSmallIcon(R.drawable.stat_notify)
+                    .setContentTitle(getString(R.string.notify_title_download_completed))
+                    .setContentText(getString(R.string.notify_text_download_completed))
+                    .setTicker(getString(R.string.notify_ticker_download_completed))
+                    .setContentIntent(pi)
+                    .setAutoCancel(true);
+
+                // notify!!
+                mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+            }
+
+            // update messages.localUri
+            ContentValues values = new ContentValues();
+            values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
+            getContentResolver().update(Messages.getUri(mMessageId), values, null, null);
         }
-        finally {
-            queue.remove(url);
-            mMessageId = null;
-            mPeer = null;
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            Log.e(TAG, "download error", exc);
+            if (!isCanceled())
+                errorNotification(getString(R.string.notify_ticker_download_error),
+                    getString(R.string.notify_text_download_error));
         }
     }
 
-    public void startForeground(long totalBytes) {
+    private synchronized void transferStarted(DownloadTransfer transfer) {
+        if (mActive.add(transfer))
+            mProgress.start(transfer.mTotalBytes);
+        if (mCurrentNotification == null)
+            startForeground();
+        else
+            updateProgress();
+    }
+
+    private synchronized void transferEnded(DownloadTransfer transfer) {
+        if (!mActive.remove(transfer))
+            return;
+
+        mProgress.end(transfer.mTotalBytes, transfer.mBytes);
+        if (mActive.isEmpty())
+            stopForeground();
+        else
+            updateProgress();
+    }
+
+    private void startForeground() {
         Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
         // FIXME this intent should actually open the ComposeMessage activity
@@ -184,8 +324,7 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        foregroundNotification(getProgress());
         startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
     }
 
@@ -194,65 +333,27 @@ public class DownloadService extends IntentService implements DownloadListener {
             .progress(progress,
                 R.string.attachment_download,
                 R.string.downloading_attachment)
+            .transferInfo(mProgress.getSpeed(), mProgress.getRemainingTime())
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
-    }
-
-    @Override
-    public void start(String url, File destination, long length) {
-        startForeground(length);
     }
 
-    @Override
-    public void completed(String url, String mime, File destination) {
-        stopForeground();
-
-        Uri uri = Uri.fromFile(destination);
-
-        // notify only if conversation is not open
-        if (!mPeer.equals(MessagingNotification.getPaused())) {
-
-            // detect mime type if not available
-            if (mime == null)
-                mime = getContentResolver().getType(uri);
-
-            // create intent for download complete notification
-            Intent i = new Intent(Intent.ACTION_VIEW);
-            i.setDataAndType(uri, mime);
-            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                    NOTIFICATION_ID_DOWNLOAD_OK, i, Intent.FLAG_ACTIVITY_NEW_TASK);
-
-            // create notification
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
-                .setSmallIcon(R.drawable.stat_notify)
-                .setContentTitle(getString(R.string.notify_title_download_completed))
-                .setContentText(getString(R.string.notify_text_download_completed))
-                .setTicker(getString(R.string.notify_ticker_download_completed))
-                .setContentIntent(pi)
-                .setAutoCancel(true);
-
-            // notify!!
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+    /** Updates the progress notification with all active downloads. */
+    private synchronized void updateProgress() {
+        if (mCurrentNotification != null) {
+            foregroundNotification(getProgress());
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
         }
-
-        // update messages.localUri
-        ContentValues values = new ContentValues();
-        values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
-        getContentResolver().update(Messages.getUri(mMessageId), values, null, null);
     }
 
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
+    /** Returns overall progress, -1 if not known. */
+    private int getProgress() {
+        return mProgress.getPercent();
     }
 
     private void errorNotification(String ticker, String text) {
@@ -274,19 +375,7 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null) {
-            int progress = (int)((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-        }
-
-        Thread.yield();
-    }
-
     public static boolean isQueued(String url) {
-        return queue.containsKey(url);
+        return TransferScheduler.isQueued(TransferScheduler.DIRECTION_DOWNLOAD, url);
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.kontalk.provider.MessagesProvider;
+import org.kontalk.provider.MyMessages.Messages;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Collects incoming messages and stores them in batches through
+ * {@link MessagesProvider#bulkInsert}. This is mostly useful when a lot of
+ * offline messages are delivered at once.
+ * @author Daniele Ricci
+ */
+class IncomingMessageQueue {
+    private static final String TAG = IncomingMessageQueue.class.getSimpleName();
+
+    /** How much time to wait for more messages before writing. */
+    private static final int FLUSH_DELAY = 200;
+    /** Maximum number of messages to keep waiting. */
+    private static final int MAX_PENDING = 200;
+
+    /** Callback for stored messages. Called from the queue thread. */
+    public interface MessageStoredListener {
+        /**
+         * Called for every message in a stored batch, either inserted or
+         * already stored. Messages that could not be stored are not
+         * reported, so they will not be acknowledged.
+         * @param msgId the server message id
+         * @param storageId the message database id, 0 if not found
+         * @param tag the object given to {@link IncomingMessageQueue#add}
+         */
+        public void messageStored(String msgId, long storageId, Object tag);
+
+        /** Called after a batch has been stored, with all involved peers. */
+        public void batchStored(Set<String> peers);
+    }
+
+    private static final class Entry {
+        final ContentValues values;
+        final Object tag;
+
+        public Entry(ContentValues values, Object tag) {
+            this.values = values;
+            this.tag = tag;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final MessageStoredListener mListener;
+
+    private ArrayList<Entry> mPending = new ArrayList<Entry>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public IncomingMessageQueue(ContentResolver resolver, Looper looper, MessageStoredListener listener) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+        mListener = listener;
+    }
+
+    /**
+     * Queues a message for storage.
+     * @param values message values, as for {@link ContentResolver#insert}
+     * @param tag an object that will be given back to the listener
+     */
+    public void add(ContentValues values, Object tag) {
+        boolean flushNow;
+        synchronized (this) {
+            mPending.add(new Entry(values, tag));
+            flushNow = mPending.size() >= MAX_PENDING;
+            if (mPending.size() == 1 && !flushNow)
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+        }
+
+        if (flushNow) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    /** Stores all pending messages now. */
+    public void flush() {
+        List<Entry> entries;
+        synchronized (this) {
+            if (mPending.size() == 0)
+                return;
+
+            entries = mPending;
+            mPending = new ArrayList<Entry>();
+        }
+
+        int size = entries.size();
+        ContentValues[] values = new ContentValues[size];
+        String[] msgIds = new String[size];
+        Set<String> peers = new LinkedHashSet<String>();
+        for (int i = 0; i < size; i++) {
+            values[i] = entries.get(i).values;
+            msgIds[i] = values[i].getAsString(Messages.MESSAGE_ID);
+            peers.add(values[i].getAsString(Messages.PEER));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Map<String, Long> stored;
+        Map<String, Long> ids;
+        try {
+            // messages already stored are duplicates and get no storage id
+            Map<String, Long> existing = queryStorageIds(msgIds);
+
+            int count = mResolver.bulkInsert(Messages.CONTENT_URI, values);
+            Log.v(TAG, "stored " + count + "/" + size + " messages in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
+
+            stored = queryStorageIds(msgIds);
+            ids = new HashMap<String, Long>(stored);
+            ids.keySet().removeAll(existing.keySet());
+        }
+        catch (Exception e) {
+            // no acks - the server will deliver the messages again
+            Log.e(TAG, "error storing " + size + " incoming messages", e);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (!stored.containsKey(msgIds[i])) {
+                Log.w(TAG, "message " + msgIds[i] + " not stored");
+                continue;
+            }
+
+            // only the first occurrence of a message id was inserted
+            Long storageId = ids.remove(msgIds[i]);
+            mListener.messageStored(msgIds[i], storageId != null ? storageId : 0,
+                entries.get(i).tag);
+        }
+
+        mListener.batchStored(peers);
+    }
+
+    /**
+     * Schedules storage of pending messages on the queue thread. The looper
+     * must not be quit before the flush has run.
+     */
+    public void quit() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /** Retrieves database ids of the given incoming messages. */
+    private Map<String, Long> queryStorageIds(String[] msgIds) {
+        StringBuilder where = new StringBuilder(Messages.DIRECTION)
+            .append('=').append(Messages.DIRECTION_IN)
+            .append(" AND ").append(Messages.MESSAGE_ID).append(" IN (?");
+        for (int i = 1; i < msgIds.length; i++)
+            where.append(",?");
+        where.append(')');
+
+        Map<String, Long> ids = new HashMap<String, Long>(msgIds.length);
+        Cursor c = mResolver.query(Messages.CONTENT_URI,
+            new String[] { Messages._ID, Messages.MESSAGE_ID },
+            where.toString(), msgIds, null);
+        if (c != null) {
+            while (c.moveToNext())
+                ids.put(c.getString(1), c.getLong(0));
+            c.close();
+        }
+
+        return ids;
+    }
+
+}
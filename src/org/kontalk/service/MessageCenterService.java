@@ -100,6 +100,7 @@ import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.provider.UsersProvider;
+import org.kontalk.service.IncomingMessageQueue.MessageStoredListener;
 import org.kontalk.service.KeyPairGeneratorService.KeyGeneratorReceiver;
 import org.kontalk.service.KeyPairGeneratorService.PersonalKeyRunnable;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
@@ -124,7 +125,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteConstraintException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -319,6 +319,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Idle handler. */
     private IdleConnectionHandler mIdleHandler;
 
+    /** Message status updates writer. */
+    private StatusUpdateBatcher mStatusUpdater;
+    /** Incoming messages writer. */
+    private IncomingMessageQueue mIncomingQueue;
+
     /** Messages waiting for server receipt (packetId: internalStorageId). */
     private Map<String, Long> mWaitingReceipt = new HashMap<String, Long>();
 
@@ -419,9 +424,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
         }
 
+        /** Quits the looper after any message already queued has run. */
         public void quit() {
-            Looper.myQueue().removeIdleHandler(IdleConnectionHandler.this);
-            getLooper().quit();
+            post(new Runnable() {
+                public void run() {
+                    Looper.myQueue().removeIdleHandler(IdleConnectionHandler.this);
+                    getLooper().quit();
+                }
+            });
         }
     }
 
@@ -442,6 +452,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         thread.start();
 
         mIdleHandler = new IdleConnectionHandler(this, thread.getLooper());
+        mStatusUpdater = new StatusUpdateBatcher(getContentResolver(), thread.getLooper());
+        mIncomingQueue = new IncomingMessageQueue(getContentResolver(), thread.getLooper(),
+            new IncomingMessageStoredListener());
         mHandler = new Handler();
     }
 
@@ -504,8 +517,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private synchronized void quit(boolean restarting) {
+        // store pending messages (unacked messages will be redelivered)
+        mIncomingQueue.quit();
+
         // quit the idle handler
         if (!restarting) {
+            // write any pending status update first
+            mStatusUpdater.quit();
             mIdleHandler.quit();
             mIdleHandler = null;
         }
@@ -887,6 +905,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         resendPendingReceipts();
         // send pending subscription replies
         sendPendingSubscriptionReplies();
+        // resume transfers interrupted by a restart
+        UploadService.resume(this);
+        DownloadService.resume(this);
 
         // helper is not needed any more
         mHelper = null;
@@ -1026,6 +1047,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 b.putLong("org.kontalk.message.length", attLength);
             }
 
+            b.putBoolean("org.kontalk.message.resend", true);
+
             Log.v(TAG, "resending pending message " + id);
             sendMessage(b);
         }
@@ -1241,6 +1264,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 i.putExtra(UploadService.EXTRA_MESSAGE_ID, msgId);
                 i.putExtra(UploadService.EXTRA_MIME, mime);
                 i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
+                // user requested uploads go first
+                i.putExtra(UploadService.EXTRA_USER_REQUEST,
+                    !data.getBoolean("org.kontalk.message.resend"));
 
                 // TODO should support JIDs too
                 String toUser = data.getString("org.kontalk.message.toUser");
@@ -1408,8 +1434,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
-    /** Process an incoming message. */
-    private Uri incoming(CompositeMessage msg) {
+    /**
+     * Process an incoming message. The message will be queued for storage.
+     * @param ack the receipt to send when the message has been stored, or null
+     */
+    private void incoming(CompositeMessage msg, org.jivesoftware.smack.packet.Message ack) {
         String sender = msg.getSender(true);
 
         // save to local storage
@@ -1423,28 +1452,48 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
         values.put(Messages.TIMESTAMP, System.currentTimeMillis());
 
-        Uri msgUri = null;
-        try {
-            msgUri = getContentResolver().insert(Messages.CONTENT_URI, values);
-        }
-        catch (SQLiteConstraintException econstr) {
-            // duplicated message, skip it
-        }
+        mIncomingQueue.add(values, ack);
+    }
 
-        // mark sender as registered in the users database
-        final String userId = msg.getSender(true);
-        final Context context = getApplicationContext();
-        new Thread(new Runnable() {
-            public void run() {
-                UsersProvider.markRegistered(context, userId);
+    /** Handles messages stored by the incoming queue. */
+    private final class IncomingMessageStoredListener implements MessageStoredListener {
+        @Override
+        public void messageStored(String msgId, long storageId, Object tag) {
+            if (tag != null) {
+                // send ack :)
+                org.jivesoftware.smack.packet.Message ack =
+                    (org.jivesoftware.smack.packet.Message) tag;
+
+                if (storageId > 0) {
+                    // will mark this message as confirmed
+                    synchronized (mWaitingReceipt) {
+                        mWaitingReceipt.put(ack.getPacketID(), storageId);
+                    }
+                }
+                sendPacket(ack);
             }
-        }).start();
+        }
 
-        if (!sender.equalsIgnoreCase(MessagingNotification.getPaused()))
-            // update notifications (delayed)
-            MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
+        @Override
+        public void batchStored(final Set<String> peers) {
+            // mark senders as registered in the users database
+            final Context context = getApplicationContext();
+            new Thread(new Runnable() {
+                public void run() {
+                    for (String userId : peers)
+                        UsersProvider.markRegistered(context, userId);
+                }
+            }).start();
 
-        return msgUri;
+            String paused = MessagingNotification.getPaused();
+            for (String userId : peers) {
+                if (!userId.equalsIgnoreCase(paused)) {
+                    // update notifications (delayed)
+                    MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
+                    break;
+                }
+            }
+        }
     }
 
     /** Returns the first available upload service post URL. */
@@ -2318,7 +2367,6 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         String id = m.getPacketID();
                         Long _msgId = mWaitingReceipt.get(id);
                         long msgId = (_msgId != null) ? _msgId : 0;
-                        ContentResolver cr = getContentResolver();
 
                         // TODO compress this code
                         if (ext instanceof ReceivedServerReceipt) {
@@ -2329,8 +2377,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                                 values.put(Messages.MESSAGE_ID, ext.getId());
                                 values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
                                 values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                                    values, selectionOutgoing, null);
+                                mStatusUpdater.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                                    values, selectionOutgoing);
 
                                 mWaitingReceipt.remove(id);
                             }
@@ -2339,7 +2387,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                                 ContentValues values = new ContentValues(2);
                                 values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
                                 values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                                cr.update(msg, values, selectionOutgoing, null);
+                                mStatusUpdater.update(msg, values, selectionOutgoing);
                             }
 
                             // send ack
@@ -2360,8 +2408,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                                 values.put(Messages.STATUS, Messages.STATUS_SENT);
                                 values.put(Messages.STATUS_CHANGED, now);
                                 values.put(Messages.SERVER_TIMESTAMP, now);
-                                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                                    values, selectionOutgoing, null);
+                                mStatusUpdater.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                                    values, selectionOutgoing);
 
                                 mWaitingReceipt.remove(id);
 
@@ -2375,7 +2423,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                                 values.put(Messages.STATUS, Messages.STATUS_SENT);
                                 values.put(Messages.STATUS_CHANGED, now);
                                 values.put(Messages.SERVER_TIMESTAMP, now);
-                                cr.update(msg, values, selectionOutgoing, null);
+                                mStatusUpdater.update(msg, values, selectionOutgoing);
                             }
                         }
 
@@ -2384,8 +2432,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                             // mark message as confirmed
                             ContentValues values = new ContentValues(1);
                             values.put(Messages.STATUS, Messages.STATUS_CONFIRMED);
-                            cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                                values, selectionIncoming, null);
+                            mStatusUpdater.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                                values, selectionIncoming);
 
                             mWaitingReceipt.remove(id);
                         }
@@ -2526,22 +2574,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
                     if (msg != null) {
 
-                        Uri msgUri = incoming(msg);
+                        org.jivesoftware.smack.packet.Message ack = null;
                         if (_ext != null) {
-                            // send ack :)
+                            // ack will be sent after the message has been stored
                             ReceivedServerReceipt receipt = new ReceivedServerReceipt(msgId);
-                            org.jivesoftware.smack.packet.Message ack =
-                            	new org.jivesoftware.smack.packet.Message(from,
+                            ack = new org.jivesoftware.smack.packet.Message(from,
                             		org.jivesoftware.smack.packet.Message.Type.chat);
                             ack.addExtension(receipt);
-
-                            if (msgUri != null) {
-                                // will mark this message as confirmed
-                                long storageId = ContentUris.parseId(msgUri);
-                                mWaitingReceipt.put(ack.getPacketID(), storageId);
-                            }
-                            sendPacket(ack);
                         }
+
+                        incoming(msg, ack);
                     }
 
                 }
@@ -70,6 +70,10 @@ public class NetworkStateReceiver extends BroadcastReceiver {
             if (info != null) {
                 Log.w(TAG, "network state changed!");
 
+                // resume interrupted downloads
+                if (info.getState() == NetworkInfo.State.CONNECTED)
+                    DownloadService.resume(context);
+
                 if (info.getType() == ConnectivityManager.TYPE_MOBILE &&
                 		!shouldReconnect(context)) {
                 	Log.w(TAG, "throttling on mobile network");
@@ -20,6 +20,8 @@ package org.kontalk.service;
 
 import org.kontalk.upload.UploadConnection;
 
+import android.os.Bundle;
+
 
 /**
  * Generic interface for listening to progress and status of a generic request.
@@ -37,4 +39,11 @@ public interface ProgressListener {
      */
     public void progress(UploadConnection conn, long bytes);
 
+    /**
+     * Called when the upload could be resumed from the given state, e.g.
+     * after a chunk has been accepted by the server.
+     * @param state the state to be given back to the connection
+     */
+    public void resumable(UploadConnection conn, Bundle state);
+
 }
@@ -0,0 +1,147 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.ArrayList;
+
+import org.kontalk.provider.MessagesProvider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Coalesces message status updates (e.g. server receipts) and applies them
+ * to {@link MessagesProvider} in a single batch.
+ * Updates are written after a short delay or when enough of them are
+ * waiting, whichever comes first.
+ * @author Daniele Ricci
+ */
+class StatusUpdateBatcher {
+    private static final String TAG = StatusUpdateBatcher.class.getSimpleName();
+
+    /** How much time to wait for more updates before writing. */
+    private static final int FLUSH_DELAY = 250;
+    /** Maximum number of updates to keep waiting. */
+    private static final int MAX_PENDING = 100;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private ArrayList<ContentProviderOperation> mPending =
+        new ArrayList<ContentProviderOperation>();
+
+    /** Total number of updates written. */
+    private long mWritten;
+    /** Total time spent writing batches. */
+    private long mWriteTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public StatusUpdateBatcher(ContentResolver resolver, Looper looper) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+    }
+
+    /** Queues an update of the given message uri. */
+    public void update(Uri uri, ContentValues values, String selection) {
+        ContentProviderOperation op = ContentProviderOperation.newUpdate(uri)
+            .withValues(values)
+            .withSelection(selection, null)
+            .build();
+
+        boolean flushNow;
+        synchronized (this) {
+            mPending.add(op);
+            flushNow = mPending.size() >= MAX_PENDING;
+            if (mPending.size() == 1 && !flushNow)
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+        }
+
+        if (flushNow) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    /** Writes all pending updates now. Can be called from any thread. */
+    public void flush() {
+        ArrayList<ContentProviderOperation> ops;
+        synchronized (this) {
+            if (mPending.size() == 0)
+                return;
+
+            ops = mPending;
+            mPending = new ArrayList<ContentProviderOperation>();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            mResolver.applyBatch(MessagesProvider.AUTHORITY, ops);
+        }
+        catch (Exception e) {
+            // a single failing update would discard the whole batch
+            Log.w(TAG, "error writing " + ops.size() + " status updates, retrying one by one", e);
+            applyEach(ops);
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            mWritten += ops.size();
+            mWriteTime += elapsed;
+            Log.v(TAG, "wrote " + ops.size() + " status updates in " + elapsed + " ms (" +
+                mWritten + " total, " + mWriteTime + " ms total)");
+        }
+    }
+
+    private void applyEach(ArrayList<ContentProviderOperation> ops) {
+        ArrayList<ContentProviderOperation> single =
+            new ArrayList<ContentProviderOperation>(1);
+        for (ContentProviderOperation op : ops) {
+            single.clear();
+            single.add(op);
+            try {
+                mResolver.applyBatch(MessagesProvider.AUTHORITY, single);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "error writing status update " + op, e);
+            }
+        }
+    }
+
+    /**
+     * Schedules writing of pending updates on the batcher thread. The looper
+     * must not be quit before the flush has run.
+     */
+    public void quit() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+
+/**
+ * Aggregated progress of a set of running transfers.
+ * Byte counts are updated without locking from the transfer threads;
+ * {@link #update} tells when progress should actually be reported, so
+ * notifications are updated at a bounded rate.
+ * @author Daniele Ricci
+ */
+final class TransferProgress {
+
+    /** Minimum time between progress reports (ms). */
+    private static final long MIN_INTERVAL = 500;
+    /** Weight of the last sample in the average speed. */
+    private static final float SPEED_SMOOTHING = 0.3f;
+
+    /** Total length of transfers with a known length. */
+    private final AtomicLong mTotal = new AtomicLong();
+    /** Number of transfers with unknown length. */
+    private final AtomicInteger mUnknown = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    private final AtomicLong mLastReport = new AtomicLong();
+    private volatile int mLastPercent = -1;
+
+    // speed estimation
+    private long mSampleTime;
+    private long mSampleBytes;
+    private volatile long mSpeed;
+
+    /** A transfer of the given length (0 or less if unknown) has started. */
+    public void start(long length) {
+        if (length > 0)
+            mTotal.addAndGet(length);
+        else
+            mUnknown.incrementAndGet();
+    }
+
+    /**
+     * A transfer has ended.
+     * @param length the length given to {@link #start}
+     * @param bytes the bytes counted through {@link #update} for the transfer
+     */
+    public void end(long length, long bytes) {
+        if (length > 0)
+            mTotal.addAndGet(-length);
+        else
+            mUnknown.decrementAndGet();
+        mBytes.addAndGet(-bytes);
+
+        // start over when idle
+        if (mTotal.get() == 0 && mUnknown.get() == 0)
+            reset();
+    }
+
+    private synchronized void reset() {
+        mLastPercent = -1;
+        mSampleTime = 0;
+        mSampleBytes = 0;
+        mSpeed = 0;
+    }
+
+    /**
+     * Adds transferred bytes.
+     * @return true if progress should be reported
+     */
+    public boolean update(long delta) {
+        mBytes.addAndGet(delta);
+
+        long now = SystemClock.elapsedRealtime();
+        long last = mLastReport.get();
+        if (now - last < MIN_INTERVAL)
+            return false;
+
+        // indeterminate progress or nothing to show
+        int percent = getPercent();
+        if (percent < 0 || percent == mLastPercent)
+            return false;
+
+        // only one thread will report
+        if (!mLastReport.compareAndSet(last, now))
+            return false;
+
+        mLastPercent = percent;
+        updateSpeed(now);
+        return true;
+    }
+
+    private synchronized void updateSpeed(long now) {
+        long bytes = mBytes.get();
+        if (mSampleTime > 0 && now > mSampleTime) {
+            long speed = (bytes - mSampleBytes) * 1000 / (now - mSampleTime);
+            mSpeed = mSpeed > 0 ?
+                (long) (SPEED_SMOOTHING * speed + (1 - SPEED_SMOOTHING) * mSpeed) : speed;
+        }
+        mSampleTime = now;
+        mSampleBytes = bytes;
+    }
+
+    /** Returns overall progress, -1 if not known. */
+    public int getPercent() {
+        if (mUnknown.get() > 0)
+            return -1;
+
+        long total = mTotal.get();
+        return total > 0 ? (int) Math.min(100, (100 * mBytes.get()) / total) : -1;
+    }
+
+    /** Returns the average transfer speed in bytes per second, 0 if not known. */
+    public long getSpeed() {
+        return Math.max(0, mSpeed);
+    }
+
+    /** Returns the estimated remaining time in seconds, -1 if not known. */
+    public long getRemainingTime() {
+        long speed = getSpeed();
+        if (speed <= 0 || mUnknown.get() > 0)
+            return -1;
+
+        return Math.max(0, mTotal.get() - mBytes.get()) / speed;
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Schedules attachment transfers for {@link DownloadService} and
+ * {@link UploadService}. Each direction has its own pool of worker threads,
+ * so a limited number of transfers run in parallel; waiting transfers are
+ * started by priority and then by size, smallest first.
+ * Queued transfers are stored in a database together with the intent that
+ * requested them, so they can be resumed if the process is killed.
+ * @author Daniele Ricci
+ */
+final class TransferScheduler {
+    private static final String TAG = TransferScheduler.class.getSimpleName();
+
+    public static final int DIRECTION_DOWNLOAD = 0;
+    public static final int DIRECTION_UPLOAD = 1;
+
+    /** Transfers explicitly requested by the user. */
+    public static final int PRIORITY_HIGH = 0;
+    /** Automatic or resumed transfers. */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** Maximum number of parallel transfers, by direction. */
+    private static final int[] MAX_TRANSFERS = { 3, 2 };
+
+    /** A transfer. Subclasses will do the actual work. */
+    public static abstract class Transfer implements Runnable, Comparable<Transfer> {
+        private static final AtomicLong sSequence = new AtomicLong();
+
+        final int mDirection;
+        final String mKey;
+        final int mPriority;
+        final long mLength;
+        private final long mSequence;
+
+        private TransferScheduler mScheduler;
+        private volatile boolean mCanceled;
+        private volatile boolean mKeep;
+
+        /**
+         * @param key a unique key for the transfer (e.g. the URL)
+         * @param length expected data length, 0 or less if unknown
+         */
+        public Transfer(int direction, String key, int priority, long length) {
+            mDirection = direction;
+            mKey = key;
+            mPriority = priority;
+            mLength = length;
+            mSequence = sSequence.incrementAndGet();
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        /** Executes the transfer. Called from a worker thread. */
+        protected abstract void execute();
+
+        /** Interrupts the running transfer. */
+        protected abstract void abort();
+
+        /**
+         * Called after the transfer has finished or has been canceled.
+         * @param idle true if no other transfer in the same direction is
+         * waiting or running
+         */
+        protected void finished(boolean idle) {
+        }
+
+        /**
+         * Keeps the stored request after the transfer has finished, so it
+         * will be retried on the next resume (e.g. after a network error).
+         */
+        protected void keep() {
+            mKeep = true;
+        }
+
+        /** Returns true if the stored request will be kept for a retry. */
+        protected boolean isKept() {
+            return mKeep && !mCanceled;
+        }
+
+        /**
+         * Replaces the stored request, e.g. with the state needed to resume
+         * the transfer. Called from the worker thread.
+         */
+        protected void save(Intent request) {
+            mScheduler.mDb.store(mDirection, mKey, request);
+        }
+
+        void cancel() {
+            mCanceled = true;
+            abort();
+        }
+
+        public final void run() {
+            try {
+                if (!mCanceled)
+                    execute();
+            }
+            catch (Exception e) {
+                Log.e(TAG, "transfer error: " + mKey, e);
+            }
+            finally {
+                finished(mScheduler.remove(this));
+            }
+        }
+
+        public int compareTo(Transfer another) {
+            if (mPriority != another.mPriority)
+                return mPriority < another.mPriority ? -1 : 1;
+
+            // unknown length comes last
+            long length = mLength > 0 ? mLength : Long.MAX_VALUE;
+            long otherLength = another.mLength > 0 ? another.mLength : Long.MAX_VALUE;
+            if (length != otherLength)
+                return length < otherLength ? -1 : 1;
+
+            return mSequence < another.mSequence ? -1 :
+                (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private static TransferScheduler sInstance;
+
+    private final DatabaseHelper mDb;
+    private final ThreadPoolExecutor[] mExecutors;
+    /** Waiting and running transfers (key: transfer), by direction. */
+    private final List<Map<String, Transfer>> mTransfers;
+
+    private TransferScheduler(Context context) {
+        mDb = new DatabaseHelper(context.getApplicationContext());
+
+        mExecutors = new ThreadPoolExecutor[MAX_TRANSFERS.length];
+        mTransfers = new ArrayList<Map<String, Transfer>>(MAX_TRANSFERS.length);
+        for (int i = 0; i < MAX_TRANSFERS.length; i++) {
+            mExecutors[i] = new ThreadPoolExecutor(MAX_TRANSFERS[i], MAX_TRANSFERS[i],
+                0, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new WorkerThreadFactory(i == DIRECTION_DOWNLOAD ? "Download" : "Upload"));
+            mTransfers.add(new HashMap<String, Transfer>());
+        }
+    }
+
+    public static synchronized TransferScheduler getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new TransferScheduler(context);
+        return sInstance;
+    }
+
+    /** Returns true if the given transfer is waiting or running. */
+    public static boolean isQueued(int direction, String key) {
+        TransferScheduler instance;
+        synchronized (TransferScheduler.class) {
+            instance = sInstance;
+        }
+        return instance != null && instance.contains(direction, key);
+    }
+
+    public synchronized boolean contains(int direction, String key) {
+        return mTransfers.get(direction).containsKey(key);
+    }
+
+    /** Returns true if some transfer is waiting or running. */
+    public synchronized boolean hasTransfers(int direction) {
+        return !mTransfers.get(direction).isEmpty();
+    }
+
+    /**
+     * Queues a transfer.
+     * @param request the intent requesting the transfer, stored for resuming
+     * @return false if a transfer with the same key is already queued
+     */
+    public boolean enqueue(Transfer transfer, Intent request) {
+        synchronized (this) {
+            Map<String, Transfer> transfers = mTransfers.get(transfer.mDirection);
+            if (transfers.containsKey(transfer.mKey))
+                return false;
+
+            transfer.mScheduler = this;
+            transfers.put(transfer.mKey, transfer);
+        }
+
+        mDb.store(transfer.mDirection, transfer.mKey, request);
+        mExecutors[transfer.mDirection].execute(transfer);
+        return true;
+    }
+
+    /**
+     * Cancels a transfer, interrupting it if it's running.
+     * @return true if the transfer was found
+     */
+    public boolean cancel(int direction, String key) {
+        Transfer transfer;
+        synchronized (this) {
+            transfer = mTransfers.get(direction).get(key);
+        }
+
+        if (transfer == null)
+            return false;
+
+        transfer.cancel();
+        // transfer was still waiting
+        if (mExecutors[direction].remove(transfer))
+            transfer.finished(remove(transfer));
+
+        return true;
+    }
+
+    /** Returns requests for transfers that didn't finish in a previous run. */
+    public List<Intent> getStored(int direction) {
+        return mDb.query(direction);
+    }
+
+    /** Returns the stored request for a transfer, null if not found. */
+    public Intent getStored(int direction, String key) {
+        return mDb.query(direction, key);
+    }
+
+    /**
+     * Removes a finished transfer.
+     * @return true if no transfers are left in the same direction
+     */
+    private boolean remove(Transfer transfer) {
+        if (!transfer.isKept())
+            mDb.delete(transfer.mDirection, transfer.mKey);
+
+        synchronized (this) {
+            Map<String, Transfer> transfers = mTransfers.get(transfer.mDirection);
+            transfers.remove(transfer.mKey);
+            return transfers.isEmpty();
+        }
+    }
+
+    /** Creates background worker threads. */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public WorkerThreadFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "Worker-" + mCount.incrementAndGet());
+        }
+    }
+
+    /** Queued transfers database helper. */
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+        private static final String DATABASE_NAME = "transfers.db";
+        private static final int DATABASE_VERSION = 1;
+
+        private static final String TABLE_TRANSFERS = "transfers";
+        private static final String SCHEMA_TRANSFERS = "CREATE TABLE " + TABLE_TRANSFERS + " (" +
+            "_id INTEGER PRIMARY KEY," +
+            "direction INTEGER NOT NULL," +
+            "key TEXT NOT NULL," +
+            "request TEXT NOT NULL," +
+            "UNIQUE (direction, key)" +
+            ")";
+
+        public DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(SCHEMA_TRANSFERS);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // no upgrade for version 1
+        }
+
+        public synchronized void store(int direction, String key, Intent request) {
+            ContentValues v = new ContentValues(3);
+            v.put("direction", direction);
+            v.put("key", key);
+            v.put("request", request.toUri(0));
+            getWritableDatabase().replace(TABLE_TRANSFERS, null, v);
+        }
+
+        public synchronized void delete(int direction, String key) {
+            getWritableDatabase().delete(TABLE_TRANSFERS, "direction = ? AND key = ?",
+                new String[] { String.valueOf(direction), key });
+        }
+
+        public synchronized Intent query(int direction, String key) {
+            Intent request = null;
+            Cursor c = getReadableDatabase().query(TABLE_TRANSFERS,
+                new String[] { "request" }, "direction = ? AND key = ?",
+                new String[] { String.valueOf(direction), key }, null, null, null);
+
+            if (c.moveToFirst()) {
+                try {
+                    request = Intent.parseUri(c.getString(0), 0);
+                }
+                catch (URISyntaxException e) {
+                    Log.w(TAG, "invalid stored transfer request", e);
+                }
+            }
+            c.close();
+
+            return request;
+        }
+
+        public synchronized List<Intent> query(int direction) {
+            List<Intent> list = new ArrayList<Intent>();
+            Cursor c = getReadableDatabase().query(TABLE_TRANSFERS,
+                new String[] { "request" }, "direction = ?",
+                new String[] { String.valueOf(direction) }, null, null, "_id");
+
+            while (c.moveToNext()) {
+                try {
+                    list.add(Intent.parseUri(c.getString(0), 0));
+                }
+                catch (URISyntaxException e) {
+                    Log.w(TAG, "invalid stored transfer request", e);
+                }
+            }
+            c.close();
+
+            return list;
+        }
+    }
+
+}
@@ -26,44 +26,54 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOAD_ERROR;
 
 import java.io.File;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.kontalk.Kontalk;
 import org.kontalk.R;
+import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.MessagesProvider;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.UsersProvider;
 import org.kontalk.ui.ConversationList;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.KontalkBoxUploadConnection;
 import org.kontalk.upload.UploadConnection;
+import org.kontalk.util.MediaPreparer;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.Preferences;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 
 /**
  * Attachment upload service.
- * TODO implement multiple concurrent uploads
+ * Uploads are run in parallel by {@link TransferScheduler}.
  * @author Daniele Ricci
  */
-public class UploadService extends IntentService implements ProgressListener {
+public class UploadService extends Service {
     private static final String TAG = UploadService.class.getSimpleName();
-    /** A map to avoid duplicate uploads. */
-    private static final Map<String, Long> queue = new LinkedHashMap<String, Long>();
 
     public static final String ACTION_UPLOAD = "org.kontalk.action.UPLOAD";
     public static final String ACTION_UPLOAD_ABORT = "org.kontalk.action.UPLOAD_ABORT";
+    /** Resumes uploads interrupted by a process restart. */
+    public static final String ACTION_UPLOAD_RESUME = "org.kontalk.action.UPLOAD_RESUME";
 
-    /** Message database ID. Use with ACTION_UPLOAD. */
+    /** Message database ID. Use with ACTION_UPLOAD and ACTION_UPLOAD_ABORT. */
     public static final String EXTRA_MESSAGE_ID = "org.kontalk.upload.MESSAGE_ID";
     /** URL to post to. Use with ACTION_UPLOAD. */
     public static final String EXTRA_POST_URL = "org.kontalk.upload.POST_URL";
@@ -73,113 +83,321 @@ public class UploadService extends IntentService implements ProgressListener {
     public static final String EXTRA_MIME = "org.kontalk.upload.MIME";
     /** Preview file path. */
     public static final String EXTRA_PREVIEW_PATH = "org.kontalk.upload.PREVIEW_PATH";
+    /** Upload was requested by the user (e.g. not a retry). */
+    public static final String EXTRA_USER_REQUEST = "org.kontalk.upload.USER_REQUEST";
+    /** Prepared media file Uri, stored with the transfer for retries. */
+    private static final String EXTRA_PREPARED_URI = "org.kontalk.upload.PREPARED_URI";
     // Intent data is the local file Uri
 
+    private TransferScheduler mScheduler;
+
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the upload currently being processed
+    // uploads currently being processed
+    private final Set<UploadTransfer> mActive = new HashSet<UploadTransfer>();
+    private final TransferProgress mProgress = new TransferProgress();
     private Notification mCurrentNotification;
-    private long mTotalBytes;
+    private int mLastStartId;
 
-    private long mMessageId;
-    private UploadConnection mConn;
-    private boolean mCanceled;
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mScheduler = TransferScheduler.getInstance(this);
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+    }
 
-    public UploadService() {
-        super(UploadService.class.getSimpleName());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (mNotificationManager == null)
-            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-        if (ACTION_UPLOAD_ABORT.equals(intent.getAction())) {
-            String filename = intent.getData().toString();
-            // TODO check for race conditions on queue
-            Long msgId = queue.get(filename);
-            if (msgId != null) {
-                // interrupt worker if running
-                if (msgId.longValue() == mMessageId) {
-                    mConn.abort();
-                    mCanceled = true;
-                }
-                // remove from queue - will never be processed
-                else
-                    queue.remove(filename);
+        synchronized (this) {
+            mLastStartId = startId;
+        }
+
+        String action = (intent != null) ? intent.getAction() : null;
+
+        if (ACTION_UPLOAD.equals(action)) {
+            enqueue(intent, intent.getBooleanExtra(EXTRA_USER_REQUEST, false) ?
+                TransferScheduler.PRIORITY_HIGH : TransferScheduler.PRIORITY_NORMAL);
+        }
+
+        else if (ACTION_UPLOAD_ABORT.equals(action)) {
+            mScheduler.cancel(TransferScheduler.DIRECTION_UPLOAD,
+                getKey(intent.getLongExtra(EXTRA_MESSAGE_ID, 0)));
+        }
+
+        else if (ACTION_UPLOAD_RESUME.equals(action)) {
+            for (Intent request : mScheduler.getStored(TransferScheduler.DIRECTION_UPLOAD)) {
+                if (ACTION_UPLOAD.equals(request.getAction()))
+                    enqueue(request, TransferScheduler.PRIORITY_NORMAL);
             }
-            return START_NOT_STICKY;
         }
 
-        return super.onStartCommand(intent, flags, startId);
+        stopIfIdle();
+        return START_NOT_STICKY;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // check for unknown action
-        if (!ACTION_UPLOAD.equals(intent.getAction())) return;
-
-        // local file to upload
+    private void enqueue(Intent intent, int priority) {
         Uri file = intent.getData();
-        String filename = file.toString();
-        // message id
+        long length = MediaStorage.getLength(this, file);
+        Log.v(TAG, "file size is " + length + " bytes");
+
         long msgId = intent.getLongExtra(EXTRA_MESSAGE_ID, 0);
-        // url to post to
-        String url = intent.getStringExtra(EXTRA_POST_URL);
-        // user to send message to
-        String userId = intent.getStringExtra(EXTRA_USER_ID);
-        // media mime type
-        String mime = intent.getStringExtra(EXTRA_MIME);
-        // preview file path
-        String previewPath = intent.getStringExtra(EXTRA_PREVIEW_PATH);
 
-        // check if upload has already been queued
-        if (queue.get(filename) != null) return;
+        // keep the state saved by a previous attempt for the same message
+        Intent stored = mScheduler.getStored(TransferScheduler.DIRECTION_UPLOAD, getKey(msgId));
+        if (stored != null && stored.getExtras() != null) {
+            Bundle extras = stored.getExtras();
+            if (intent.getExtras() != null)
+                extras.putAll(intent.getExtras());
+            intent.replaceExtras(extras);
+        }
+
+        UploadTransfer transfer = new UploadTransfer(intent, file, msgId,
+            intent.getStringExtra(EXTRA_POST_URL),
+            intent.getStringExtra(EXTRA_USER_ID),
+            intent.getStringExtra(EXTRA_MIME),
+            intent.getStringExtra(EXTRA_PREVIEW_PATH),
+            priority, length);
+
+        if (!mScheduler.enqueue(transfer, intent))
+            Log.v(TAG, "upload already queued: " + transfer.getKey());
+    }
+
+    /**
+     * Returns the transfer key for a message. Uploads are keyed by message
+     * because the same media can be sent to several users, each upload
+     * encrypted for its own recipient.
+     */
+    private static String getKey(long msgId) {
+        return String.valueOf(msgId);
+    }
 
-        try {
-            // notify user about upload immediately
-            long length = MediaStorage.getLength(this, file);
-            Log.v(TAG, "file size is " + length + " bytes");
+    private synchronized void stopIfIdle() {
+        if (!mScheduler.hasTransfers(TransferScheduler.DIRECTION_UPLOAD))
+            stopSelf(mLastStartId);
+    }
 
-            mTotalBytes = length;
-            startForeground(0);
+    /** Starts resuming uploads interrupted by a process restart. */
+    public static void resume(Context context) {
+        Intent i = new Intent(context, UploadService.class);
+        i.setAction(ACTION_UPLOAD_RESUME);
+        context.startService(i);
+    }
 
-            mCanceled = false;
+    /** A single upload. */
+    private final class UploadTransfer extends TransferScheduler.Transfer
+            implements ProgressListener {
+
+        private final Intent mRequest;
+        private final Uri mFile;
+        private final long mMessageId;
+        private final String mUrl;
+        private final String mUserId;
+        private final String mMime;
+        private final String mPreviewPath;
+
+        private UploadConnection mConn;
+        /** Upload state, to resume the upload. */
+        private volatile Bundle mState;
+        /** Length of data actually being uploaded. */
+        private volatile long mUploadLength;
+        private volatile long mBytes;
+
+        public UploadTransfer(Intent request, Uri file, long msgId, String url, String userId,
+                String mime, String previewPath, int priority, long length) {
+            super(TransferScheduler.DIRECTION_UPLOAD, getKey(msgId), priority, length);
+            mRequest = request;
+            mFile = file;
+            mMessageId = msgId;
+            mUrl = url;
+            mUserId = userId;
+            mMime = mime;
+            mPreviewPath = previewPath;
+            mUploadLength = length;
+        }
 
-            if (mConn == null) {
+        @Override
+        protected void execute() {
+            try {
                 PersonalKey key = ((Kontalk) getApplication()).getPersonalKey();
-                // TODO used class here should be decided by the caller
-                mConn = new KontalkBoxUploadConnection(this, url,
-                    key.getBridgePrivateKey(), key.getBridgeCertificate());
+                synchronized (this) {
+                    if (isCanceled())
+                        return;
+                    // TODO used class here should be decided by the caller
+                    mConn = new KontalkBoxUploadConnection(UploadService.this, mUrl,
+                        key.getBridgePrivateKey(), key.getBridgeCertificate());
+                }
+
+                // scale down images if requested (once for all attempts)
+                Uri file = mFile;
+                String preparedUri = mRequest.getStringExtra(EXTRA_PREPARED_URI);
+                File prepared = (preparedUri != null) ?
+                    new File(Uri.parse(preparedUri).getPath()) : null;
+                if (prepared == null || !prepared.isFile()) {
+                    prepared = prepareMedia();
+                    if (prepared != null) {
+                        mRequest.putExtra(EXTRA_PREPARED_URI, Uri.fromFile(prepared).toString());
+                        save(mRequest);
+                    }
+                }
+
+                if (prepared != null) {
+                    file = Uri.fromFile(prepared);
+                    mUploadLength = prepared.length();
+                }
+
+                // encrypt content if possible
+                Coder encrypter = null;
+                if (Preferences.getEncryptionEnabled(UploadService.this)) {
+                    try {
+                        encrypter = UsersProvider.getEncryptCoder(UploadService.this,
+                            Preferences.getEndpointServer(UploadService.this), key, new String[] { mUserId });
+                    }
+                    catch (IllegalArgumentException e) {
+                        Log.w(TAG, "public key not available, uploading plain data", e);
+                    }
+                }
+
+                // upload content
+                mState = mRequest.getExtras();
+                String mediaUrl = mConn.upload(file, mMime, encrypter, this, mState);
+                Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+
+                // update message fetch_url
+                MessagesProvider.uploaded(UploadService.this, mMessageId, mediaUrl);
+
+                // send message with fetch url to server
+                MessageCenterService.sendUploadedMedia(UploadService.this, mUserId,
+                    mMime, file, mUploadLength, mPreviewPath, mediaUrl, mMessageId);
+
+                // upload completed - no need for notification
+
+                // TODO broadcast upload completed intent
             }
+            catch (IOException e) {
+                // network error, upload will be retried later
+                Log.e(TAG, "upload error", e);
+                if (!isCanceled()) {
+                    keep();
+                    errorNotification(getString(R.string.notify_ticker_upload_error),
+                        getString(R.string.notify_text_upload_error));
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "upload error", e);
+                if (!isCanceled())
+                    errorNotification(getString(R.string.notify_ticker_upload_error),
+                        getString(R.string.notify_text_upload_error));
+            }
+        }
 
-            mMessageId = msgId;
-            queue.put(filename, mMessageId);
+        /**
+         * Prepares media for sending and stores the prepared file as the
+         * message attachment.
+         * @return the prepared file, null if the original will be sent
+         */
+        private File prepareMedia() {
+            File prepared;
+            try {
+                prepared = MediaPreparer.prepareImage(UploadService.this, mFile, mMime);
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to prepare media, sending original", e);
+                return null;
+            }
 
-            // upload content
-            String mediaUrl = mConn.upload(file, mime, false, this);
-            Log.d(TAG, "uploaded with media URL: " + mediaUrl);
+            if (prepared != null) {
+                Log.d(TAG, "media prepared, saved " + (mLength - prepared.length()) +
+                    " bytes (" + mLength + " -> " + prepared.length() + ")");
 
-            // update message fetch_url
-            MessagesProvider.uploaded(this, msgId, mediaUrl);
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.ATTACHMENT_LOCAL_URI, Uri.fromFile(prepared).toString());
+                values.put(Messages.ATTACHMENT_LENGTH, prepared.length());
+                getContentResolver().update(ContentUris
+                    .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
+            }
 
-            // send message with fetch url to server
-            MessageCenterService.sendUploadedMedia(this, userId, mime, file, length, previewPath, mediaUrl, msgId);
+            return prepared;
+        }
 
-            // end operations
-            completed();
+        @Override
+        protected synchronized void abort() {
+            if (mConn != null)
+                mConn.abort();
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        @Override
+        protected void finished(boolean idle) {
+            // upload won't be resumed - delete staged data
+            if (!isKept())
+                KontalkBoxUploadConnection.discard(mState != null ?
+                    mState : mRequest.getExtras());
+
+            transferEnded(this);
+            if (idle)
+                stopIfIdle();
         }
-        finally {
-            queue.remove(filename);
-            mMessageId = 0;
+
+        @Override
+        public void start(UploadConnection conn) {
+            transferStarted(this);
+        }
+
+        @Override
+        public void resumable(UploadConnection conn, Bundle state) {
+            mRequest.putExtras(state);
+            save(mRequest);
         }
+
+        @Override
+        public void progress(UploadConnection conn, long bytes) {
+            long delta = bytes - mBytes;
+            mBytes = bytes;
+
+            if (isCanceled()) {
+                abort();
+                return;
+            }
+
+            // checking for message deletion is costly, do it only on updates
+            if (mProgress.update(delta)) {
+                if (!MessagesProvider.exists(UploadService.this, mMessageId)) {
+                    Log.v(TAG, "message deleted - aborting upload");
+                    cancel();
+                    return;
+                }
+
+                updateProgress();
+            }
+        }
+    }
+
+    private synchronized void transferStarted(UploadTransfer transfer) {
+        if (mActive.add(transfer))
+            mProgress.start(transfer.mUploadLength);
+        if (mCurrentNotification == null)
+            startForeground();
+        else
+            updateProgress();
     }
 
-    public void startForeground(long totalBytes) {
+    private synchronized void transferEnded(UploadTransfer transfer) {
+        if (!mActive.remove(transfer))
+            return;
+
+        mProgress.end(transfer.mUploadLength, transfer.mBytes);
+        if (mActive.isEmpty())
+            stopForeground();
+        else
+            updateProgress();
+    }
+
+    private void startForeground() {
         Log.d(TAG, "starting foreground progress notification");
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
@@ -195,8 +413,7 @@ public class UploadService extends IntentService implements ProgressListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        foregroundNotification(getProgress());
         startForeground(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
     }
 
@@ -205,34 +422,27 @@ public class UploadService extends IntentService implements ProgressListener {
             .progress(progress,
                 R.string.attachment_upload,
                 R.string.sending_message)
+            .transferInfo(mProgress.getSpeed(), mProgress.getRemainingTime())
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
     }
 
-    @Override
-    public void start(UploadConnection conn) {
-        startForeground(mTotalBytes);
-    }
-
-    public void completed() {
-        stopForeground();
-
-        // upload completed - no need for notification
-
-        // TODO broadcast upload completed intent
+    /** Updates the progress notification with all active uploads. */
+    private synchronized void updateProgress() {
+        if (mCurrentNotification != null) {
+            foregroundNotification(getProgress());
+            // send the updates to the notification manager
+            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
+        }
     }
 
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "upload error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_upload_error),
-                getString(R.string.notify_text_upload_error));
+    /** Returns overall progress, -1 if not known. */
+    private int getProgress() {
+        return mProgress.getPercent();
     }
 
     private void errorNotification(String ticker, String text) {
@@ -255,26 +465,7 @@ public class UploadService extends IntentService implements ProgressListener {
         mNotificationManager.notify(NOTIFICATION_ID_UPLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(UploadConnection conn, long bytes) {
-        if (mCanceled || !MessagesProvider.exists(this, mMessageId)) {
-            Log.v(TAG, "upload canceled or message deleted - aborting");
-            mConn.abort();
-            mCanceled = true;
-        }
-
-        //Log.v(TAG, "bytes = " + bytes);
-        if (mCurrentNotification != null) {
-            int progress = (int)((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_UPLOADING, mCurrentNotification);
-        }
-
-        Thread.yield();
-    }
-
-    public static boolean isQueued(String url) {
-        return queue.containsKey(url);
+    public static boolean isQueued(long msgId) {
+        return TransferScheduler.isQueued(TransferScheduler.DIRECTION_UPLOAD, getKey(msgId));
     }
 }
@@ -19,26 +19,33 @@
 package org.kontalk.sync;
 
 import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.util.StringUtils;
 import org.kontalk.R;
-import org.kontalk.client.NumberValidator;
 import org.kontalk.crypto.PGP;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.service.MessageCenterService;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Preferences;
 
 import android.accounts.Account;
 import android.accounts.OperationCanceledException;
 import android.content.BroadcastReceiver;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -48,6 +55,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
@@ -67,6 +75,15 @@ public class Syncer {
     // max time to wait for network response
     private static final int MAX_WAIT_TIME = 60000;
 
+    /** Users looked up with a single roster request. */
+    private static final int ROSTER_CHUNK_SIZE = 250;
+    /** Roster requests sent before waiting for responses. */
+    private static final int MAX_CHUNKS_IN_FLIGHT = 3;
+    /** Contacts written with a single batch. */
+    private static final int MAX_BATCH_CONTACTS = 100;
+    /** Interrupted syncs older than this won't be resumed (ms). */
+    private static final long MAX_RESUME_AGE = 3600000;
+
     /** {@link Data} column for the display name. */
     public static final String DATA_COLUMN_DISPLAY_NAME = Data.DATA1;
     /** {@link Data} column for the account name. */
@@ -84,150 +101,121 @@ public class Syncer {
     private volatile boolean mCanceled;
     private final Context mContext;
     private LocalBroadcastManager mLocalBroadcastManager;
+    private volatile PresenceBroadcastReceiver mReceiver;
 
     private final static class PresenceItem {
         public String from;
         public String status;
         public long timestamp;
         public byte[] publicKey;
-        public boolean blocked;
     }
 
+    /** A chunk of users looked up with a single roster request. */
+    private static final class RosterChunk {
+        public final String iq;
+        public final List<String> hashList;
+        /** Roster response items by bare JID, null until received. */
+        public Map<String, PresenceItem> response;
+        public int presenceCount;
+        public int vCardCount;
+        public boolean allPresenceReceived;
+
+        public RosterChunk(String iq, List<String> hashList) {
+            this.iq = iq;
+            this.hashList = hashList;
+        }
+
+        public boolean isComplete() {
+            return response != null && (response.size() == 0 ||
+                (allPresenceReceived && vCardCount >= presenceCount));
+        }
+    }
+
+    /**
+     * Collects responses for the roster chunks being looked up.
+     * Waiting threads are notified on the receiver itself.
+     */
     // FIXME this class should handle most recent/available presence stanzas
     private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
-        private List<PresenceItem> response;
         private final WeakReference<Syncer> notifyTo;
-        private final String iq;
-        private final List<String> hashList;
-        private int presenceCount = -1;
-        private int vCardCount = -1;
-        private int rosterCount = -1;
-        private boolean allPresenceReceived;
-        private boolean blocklistReceived;
-
-        public PresenceBroadcastReceiver(String iq, List<String> hashList, Syncer notifyTo) {
+        /** Pending chunks by roster request id. */
+        private final Map<String, RosterChunk> chunks = new HashMap<String, RosterChunk>();
+        /** Pending chunks by bare JID of the users they found. */
+        private final Map<String, RosterChunk> users = new HashMap<String, RosterChunk>();
+        private Set<String> blocklist;
+        private long lastActivity = SystemClock.elapsedRealtime();
+
+        public PresenceBroadcastReceiver(Syncer notifyTo) {
             this.notifyTo = new WeakReference<Syncer>(notifyTo);
-            this.iq = iq;
-            this.hashList = hashList;
         }
 
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public synchronized void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
             if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
 
-                // consider only presences received *after* roster response
-                if (response != null) {
-
-                    // consider only presences with our group ID
-                    String gid = intent.getStringExtra(MessageCenterService.EXTRA_GROUP_ID);
-                    if (iq.equals(gid)) {
-
-                        String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                        // see if bare JID is present in roster response
-                        String compare = StringUtils.parseBareAddress(jid);
-                        for (PresenceItem item : response) {
-                            if (StringUtils.parseBareAddress(item.from).equalsIgnoreCase(compare)) {
-                                item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
-                                item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
-
-                                // increment presence count
-                                if (presenceCount < 0)
-                                    presenceCount = 1;
-                                else
-                                    presenceCount++;
-
-                                break;
-                            }
-                        }
-
-                        // done with presence data and blocklist
-                        int groupCount = intent.getIntExtra(MessageCenterService.EXTRA_GROUP_COUNT, 0);
-                        allPresenceReceived = (groupCount <= 1);
-
-                        if (rosterCount >= 0 && allPresenceReceived &&
-                                vCardCount >= presenceCount && blocklistReceived)
-                            finish();
+                // consider only presences with a chunk group ID
+                String gid = intent.getStringExtra(MessageCenterService.EXTRA_GROUP_ID);
+                RosterChunk chunk = gid != null ? chunks.get(gid) : null;
 
+                // consider only presences received *after* roster response
+                if (chunk != null && chunk.response != null) {
+                    String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
+                    // see if bare JID is present in roster response
+                    PresenceItem item = chunk.response.get(bareJid(jid));
+                    if (item != null) {
+                        item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
+                        item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
+                        chunk.presenceCount++;
                     }
+
+                    // done with presence data for this chunk
+                    int groupCount = intent.getIntExtra(MessageCenterService.EXTRA_GROUP_COUNT, 0);
+                    chunk.allPresenceReceived = (groupCount <= 1);
+                    notifyProgress();
                 }
             }
 
             // roster result received
             else if (MessageCenterService.ACTION_ROSTER.equals(action)) {
                 String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                if (iq.equals(id)) {
+                RosterChunk chunk = id != null ? chunks.get(id) : null;
+                if (chunk != null) {
                     String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
-                    rosterCount = list.length;
                     // prepare list to be filled in with presence data
-                    response = new ArrayList<PresenceItem>(rosterCount);
+                    chunk.response = new HashMap<String, PresenceItem>(list.length);
                     for (String jid : list) {
                         PresenceItem p = new PresenceItem();
                         p.from = jid;
-                        response.add(p);
+                        String bare = bareJid(jid);
+                        chunk.response.put(bare, p);
+                        users.put(bare, chunk);
                     }
-
-                    // all presence data already received (WHATT???)
-                    if ((rosterCount == 0 || (presenceCount >= 0 && rosterCount >= presenceCount) || allPresenceReceived)
-                    		&& blocklistReceived)
-                        finish();
-
+                    notifyProgress();
                 }
             }
 
             else if (MessageCenterService.ACTION_VCARD.equals(action)) {
-                if (response != null) {
-                    String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                    // see if bare JID is present in roster response
-                    String compare = StringUtils.parseBareAddress(jid);
-                    for (PresenceItem item : response) {
-                        if (StringUtils.parseBareAddress(item.from).equalsIgnoreCase(compare)) {
-                            item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
-
-                            // increment vcard count
-                            if (vCardCount < 0)
-                                vCardCount = 1;
-                            else
-                                vCardCount++;
-
-                            break;
-                        }
-                    }
-
-                    // done with presence data and blocklist
-                    if (rosterCount >= 0 && allPresenceReceived &&
-                    		vCardCount >= presenceCount && blocklistReceived)
-                    	finish();
-
+                String jid = bareJid(intent.getStringExtra(MessageCenterService.EXTRA_FROM));
+                RosterChunk chunk = users.get(jid);
+                if (chunk != null) {
+                    PresenceItem item = chunk.response.get(jid);
+                    item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
+                    chunk.vCardCount++;
+                    notifyProgress();
                 }
-
             }
 
             else if (MessageCenterService.ACTION_BLOCKLIST.equals(action)) {
-            	blocklistReceived = true;
-
-            	String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
-            	if (list != null) {
-
-            		for (String jid : list) {
-                        // see if bare JID is present in roster response
-                        String compare = StringUtils.parseBareAddress(jid);
-                        for (PresenceItem item : response) {
-                            if (StringUtils.parseBareAddress(item.from).equalsIgnoreCase(compare)) {
-                            	item.blocked = true;
-
-                                break;
-                            }
-                        }
-            		}
-
-            	}
+                blocklist = new HashSet<String>();
 
-                // done with presence data and blocklist
-                if (rosterCount >= 0 && allPresenceReceived &&
-                		vCardCount >= presenceCount)
-                    finish();
+                String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
+                if (list != null) {
+                    for (String jid : list)
+                        blocklist.add(bareJid(jid));
+                }
+                notifyProgress();
             }
 
             // connected! Retry...
@@ -246,22 +234,50 @@ public class Syncer {
                  */
                 Syncer w = notifyTo.get();
                 if (w != null) {
-                    w.sendRoster(iq, hashList);
-                    w.requestBlocklist();
+                    for (RosterChunk chunk : chunks.values()) {
+                        if (chunk.response == null)
+                            w.sendRoster(chunk.iq, chunk.hashList);
+                    }
+                    if (blocklist == null)
+                        w.requestBlocklist();
                 }
+                notifyProgress();
             }
         }
 
-        public List<PresenceItem> getResponse() {
-            return (rosterCount >= 0) ? response : null;
+        private static String bareJid(String jid) {
+            return StringUtils.parseBareAddress(jid).toLowerCase(Locale.US);
         }
 
-        private void finish() {
-            Syncer w = notifyTo.get();
-            if (w != null)
-                synchronized (w) {
-                    w.notifyAll();
-                }
+        private void notifyProgress() {
+            lastActivity = SystemClock.elapsedRealtime();
+            notifyAll();
+        }
+
+        /** Starts waiting for responses to a chunk. */
+        public synchronized void addChunk(RosterChunk chunk) {
+            chunks.put(chunk.iq, chunk);
+        }
+
+        /** Stops waiting for responses to a chunk. */
+        public synchronized void removeChunk(RosterChunk chunk) {
+            chunks.remove(chunk.iq);
+            if (chunk.response != null)
+                users.keySet().removeAll(chunk.response.keySet());
+        }
+
+        /** Returns true if the chunk can be processed. */
+        public synchronized boolean isReady(RosterChunk chunk) {
+            return blocklist != null && chunk.isComplete();
+        }
+
+        /** Returns the time elapsed since the last response. */
+        public synchronized long getIdleTime() {
+            return SystemClock.elapsedRealtime() - lastActivity;
+        }
+
+        public synchronized Set<String> getBlocklist() {
+            return blocklist;
         }
     }
 
@@ -271,6 +287,14 @@ public class Syncer {
 
     public void onSyncCanceled() {
         mCanceled = true;
+
+        // wake up the sync thread
+        PresenceBroadcastReceiver receiver = mReceiver;
+        if (receiver != null) {
+            synchronized (receiver) {
+                receiver.notifyAll();
+            }
+        }
     }
 
     public void onSyncResumed() {
@@ -291,10 +315,14 @@ public class Syncer {
 
     /**
      * The actual sync procedure.
-     * This one uses the slowest method ever: it first checks for every phone
-     * number in all contacts and it sends them to the server. Once a response
-     * is received, it deletes all the raw contacts created by us and then
-     * recreates only the ones the server has found a match for.
+     * Phone numbers in all contacts are sent to the server in chunks, a few
+     * chunks at a time. Responses are written as soon as each chunk is
+     * complete: the raw contacts created by us for the users in the chunk
+     * are replaced in the same batch with the users the server has found a
+     * match for. Raw contacts of users not in the phone book anymore are
+     * deleted after the last chunk. If the sync is interrupted, the next one
+     * will resume from the first chunk not written, unless the users to
+     * sync have changed in the meantime.
      */
     public void performSync(Context context, Account account, String authority,
         ContentProviderClient provider, ContentProviderClient usersProvider,
@@ -344,23 +372,10 @@ public class Syncer {
             }
 
             String hash = cursor.getString(0);
+            // already normalized by the users provider
             String number = cursor.getString(1);
             String lookupKey = cursor.getString(2);
 
-            // a phone number with less than 4 digits???
-            if (number.length() < 4)
-                continue;
-
-            // fix number
-            try {
-                number = NumberValidator.fixNumber(mContext, number, account.name, 0);
-            }
-            catch (Exception e) {
-                Log.e(TAG, "unable to normalize number: " + number + " - skipping", e);
-                // skip number
-                continue;
-            }
-
             // avoid to send duplicates to server
             if (lookupNumbers.put(hash, new RawPhoneNumberEntry(lookupKey, number, hash)) == null)
                 hashList.add(hash);
@@ -374,6 +389,7 @@ public class Syncer {
             // delete all Kontalk raw contacts
             try {
                 syncResult.stats.numDeletes += deleteAll(account, provider);
+                Preferences.setSyncResume(mContext, null, null);
             }
             catch (Exception e) {
                 Log.e(TAG, "contact delete error", e);
@@ -383,11 +399,49 @@ public class Syncer {
         }
 
         else {
+            // chunks are made in hash order, so the sync can be resumed
+            Collections.sort(hashList);
+            String users = digest(hashList);
+
+            int start = getResumeIndex(hashList, users);
+            if (start > 0) {
+                Log.d(TAG, "resuming sync (" + start + "/" + hashList.size() + " users done)");
+            }
+            else {
+                Preferences.setSyncResume(mContext, null, null);
+
+                // registration data will be filled in again by the sync
+                ContentValues values = new ContentValues(6);
+                values.put(Users.REGISTERED, 0);
+                values.putNull(Users.STATUS);
+                values.putNull(Users.LAST_SEEN);
+                values.putNull(Users.PUBLIC_KEY);
+                values.putNull(Users.FINGERPRINT);
+                values.put(Users.BLOCKED, 0);
+                try {
+                    usersProvider.update(offlineUri, values, null, null);
+                }
+                catch (RemoteException e) {
+                    Log.e(TAG, "error updating users database - aborting sync", e);
+                    syncResult.databaseError = true;
+                    return;
+                }
+            }
+
+            List<RosterChunk> chunks = new ArrayList<RosterChunk>();
+            for (int i = start; i < hashList.size(); i += ROSTER_CHUNK_SIZE) {
+                int end = Math.min(hashList.size(), i + ROSTER_CHUNK_SIZE);
+                chunks.add(new RosterChunk(Packet.nextID(), hashList.subList(i, end)));
+            }
+
             mLocalBroadcastManager = LocalBroadcastManager.getInstance(mContext);
 
             // register presence broadcast receiver
-            String iq = Packet.nextID();
-            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(iq, hashList, this);
+            PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(this);
+            // first chunks will be sent on connection
+            for (int i = 0; i < chunks.size() && i < MAX_CHUNKS_IN_FLIGHT; i++)
+                receiver.addChunk(chunks.get(i));
+
             IntentFilter f = new IntentFilter();
             f.addAction(MessageCenterService.ACTION_PRESENCE);
             f.addAction(MessageCenterService.ACTION_ROSTER);
@@ -395,17 +449,136 @@ public class Syncer {
             f.addAction(MessageCenterService.ACTION_VCARD);
             f.addAction(MessageCenterService.ACTION_BLOCKLIST);
             mLocalBroadcastManager.registerReceiver(receiver, f);
+            mReceiver = receiver;
+
+            try {
+                // request current connection status
+                Intent intent = new Intent(mContext, MessageCenterService.class);
+                intent.setAction(MessageCenterService.ACTION_CONNECTED);
+                mContext.startService(intent);
+
+                for (int i = 0; i < chunks.size(); i++) {
+                    RosterChunk chunk = chunks.get(i);
+
+                    // wait for the service to complete the chunk
+                    if (!waitForChunk(receiver, chunk)) {
+                        /* TODO
+                        Throwable exc = conn.getLastError();
+                        if (exc != null) {
+                            Log.e(TAG, "network error - aborting sync", exc);
+                        }
+                        else {*/
+                            Log.w(TAG, "connection timeout - aborting sync");
+                        //}
+
+                        syncResult.stats.numIoExceptions++;
+                        return;
+                    }
+
+                    // keep the pipeline full
+                    int next = i + MAX_CHUNKS_IN_FLIGHT;
+                    if (next < chunks.size()) {
+                        RosterChunk nextChunk = chunks.get(next);
+                        receiver.addChunk(nextChunk);
+                        sendRoster(nextChunk.iq, nextChunk.hashList);
+                    }
+
+                    if (!writeChunk(account, provider, usersProvider, offlineUri,
+                            lookupNumbers, chunk, receiver.getBlocklist(), syncResult))
+                        return;
 
-            // request current connection status
-            Intent intent = new Intent(mContext, MessageCenterService.class);
-            intent.setAction(MessageCenterService.ACTION_CONNECTED);
-            mContext.startService(intent);
+                    // next sync will start from the next chunk
+                    Preferences.setSyncResume(mContext,
+                        chunk.hashList.get(chunk.hashList.size() - 1), users);
+
+                    Log.d(TAG, "roster chunk " + (i + 1) + "/" + chunks.size() +
+                        " written (" + chunk.response.size() + " users found)");
+                }
+            }
+            finally {
+                mReceiver = null;
+                mLocalBroadcastManager.unregisterReceiver(receiver);
+            }
+
+            // all chunks written - delete Kontalk raw contacts of removed users
+            try {
+                syncResult.stats.numDeletes += deleteRemoved(account, provider, lookupNumbers);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "contact delete error", e);
+                syncResult.databaseError = true;
+                return;
+            }
+
+            // commit users table
+            uri = Users.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Users.RESYNC, "true")
+                .appendQueryParameter(Users.COMMIT, "true")
+                .build();
+            try {
+                usersProvider.update(uri, null, null, null);
+                Log.d(TAG, "users database committed");
+                Contact.invalidate();
+                Preferences.setSyncResume(mContext, null, null);
+            }
+            catch (RemoteException e) {
+                Log.e(TAG, "error committing users database - aborting sync", e);
+                syncResult.databaseError = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first user not written by an interrupted
+     * sync, 0 if there is nothing to resume or if the users changed since.
+     * @param hashList sorted user hashes
+     * @param users digest of the user hashes
+     */
+    private int getResumeIndex(List<String> hashList, String users) {
+        String lastHash = Preferences.getSyncResumeHash(mContext);
+        if (lastHash == null || !users.equals(Preferences.getSyncResumeUsers(mContext)))
+            return 0;
+
+        long age = System.currentTimeMillis() - Preferences.getSyncResumeTimestamp(mContext);
+        if (age < 0 || age > MAX_RESUME_AGE)
+            return 0;
+
+        int index = Collections.binarySearch(hashList, lastHash);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /** Returns a digest of the given user hashes. */
+    private static String digest(List<String> hashList) {
+        MessageDigest md = MessageUtils.sha1Digest();
+        for (String hash : hashList) {
+            md.update(hash.getBytes());
+            // separator
+            md.update((byte) 0);
+        }
+        return MessageUtils.bytesToHex(md.digest());
+    }
+
+    /**
+     * Waits until a chunk has been completely received.
+     * @return false on timeout
+     * @throws OperationCanceledException if the sync was canceled
+     */
+    private boolean waitForChunk(PresenceBroadcastReceiver receiver, RosterChunk chunk)
+            throws OperationCanceledException {
+
+        synchronized (receiver) {
+            while (!receiver.isReady(chunk)) {
+                if (mCanceled)
+                    throw new OperationCanceledException();
+
+                // time out only if nothing is being received
+                long idle = receiver.getIdleTime();
+                if (idle >= MAX_WAIT_TIME)
+                    return false;
 
-            // wait for the service to complete its job
-            synchronized (this) {
-                // wait for connection
                 try {
-                    wait(MAX_WAIT_TIME);
+                    receiver.wait(MAX_WAIT_TIME - idle);
                 }
                 catch (InterruptedException e) {
                     // simulate canceled operation
@@ -413,130 +586,148 @@ public class Syncer {
                 }
             }
 
-            mLocalBroadcastManager.unregisterReceiver(receiver);
+            receiver.removeChunk(chunk);
+        }
 
-            // last chance to quit
-            if (mCanceled) throw new OperationCanceledException();
+        // last chance to quit
+        if (mCanceled) throw new OperationCanceledException();
+        return true;
+    }
 
-            List<PresenceItem> res = receiver.getResponse();
-            if (res != null) {
-                ArrayList<ContentProviderOperation> operations =
-                    new ArrayList<ContentProviderOperation>();
-                // TODO operations.size() could be used instead (?)
-                int op = 0;
+    /**
+     * Writes the users found in a chunk to the contacts and the offline
+     * users table.
+     * @return false on errors
+     */
+    private boolean writeChunk(Account account, ContentProviderClient provider,
+            ContentProviderClient usersProvider, Uri offlineUri,
+            Map<String, RawPhoneNumberEntry> lookupNumbers, RosterChunk chunk,
+            Set<String> blocklist, SyncResult syncResult) {
+
+        ArrayList<ContentProviderOperation> operations =
+            new ArrayList<ContentProviderOperation>();
+        int op = 0;
+
+        List<Map.Entry<String, PresenceItem>> entries =
+            new ArrayList<Map.Entry<String, PresenceItem>>(chunk.response.entrySet());
+
+        // raw contacts of chunk users not found anymore
+        Set<String> removed = new HashSet<String>(chunk.hashList);
+        for (Map.Entry<String, PresenceItem> e : entries)
+            removed.remove(StringUtils.parseName(e.getValue().from));
+        if (removed.size() > 0)
+            operations.add(deleteContacts(account, removed));
+
+        for (int i = 0; i < entries.size(); i++) {
+            // old raw contacts are replaced in the same batch as the new ones
+            if (i % MAX_BATCH_CONTACTS == 0) {
+                List<String> batch = new ArrayList<String>(MAX_BATCH_CONTACTS);
+                for (int j = i; j < entries.size() && j < i + MAX_BATCH_CONTACTS; j++)
+                    batch.add(StringUtils.parseName(entries.get(j).getValue().from));
+                operations.add(deleteContacts(account, batch));
+            }
 
-                // this is the time - delete all Kontalk raw contacts
-                try {
-                    syncResult.stats.numDeletes += deleteAll(account, provider);
-                }
-                catch (Exception e) {
-                    Log.e(TAG, "contact delete error", e);
-                    syncResult.databaseError = true;
-                    return;
-                }
+            Map.Entry<String, PresenceItem> e = entries.get(i);
+            PresenceItem entry = e.getValue();
+            String userId = StringUtils.parseName(entry.from);
+
+            final RawPhoneNumberEntry data = lookupNumbers.get(userId);
+            if (data != null) {
+                // add contact
+                addContact(account,
+                        getDisplayName(provider, data.lookupKey, data.number),
+                        data.number, data.hash, operations);
+                op++;
+            }
+            else {
+                syncResult.stats.numSkippedEntries++;
+            }
 
-                ContentValues registeredValues = new ContentValues(3);
+            // update fields
+            try {
+                ContentValues registeredValues = new ContentValues(7);
                 registeredValues.put(Users.REGISTERED, 1);
-                for (int i = 0; i < res.size(); i++) {
-                    PresenceItem entry = res.get(i);
-                    String userId = StringUtils.parseName(entry.from);
-
-                    final RawPhoneNumberEntry data = lookupNumbers.get(userId);
-                    if (data != null) {
-                        // add contact
-                        addContact(account,
-                                getDisplayName(provider, data.lookupKey, data.number),
-                                data.number, data.hash, operations, op);
-                        op++;
-                    }
-                    else {
-                        syncResult.stats.numSkippedEntries++;
-                    }
 
-                    // update fields
-                    try {
-                        String status = entry.status;
-
-                        if (!TextUtils.isEmpty(status))
-                            registeredValues.put(Users.STATUS, status);
-                        else
-                            registeredValues.putNull(Users.STATUS);
-
-                        if (entry.timestamp >= 0)
-                            registeredValues.put(Users.LAST_SEEN, entry.timestamp);
-                        else
-                            registeredValues.putNull(Users.LAST_SEEN);
-
-                        if (entry.publicKey != null) {
-                            registeredValues.put(Users.PUBLIC_KEY, entry.publicKey);
-
-                            try {
-	                            byte[] fp = PGP.getMasterKey(entry.publicKey).getFingerprint();
-	                            registeredValues.put(Users.FINGERPRINT, MessageUtils.bytesToHex(fp));
-                            }
-                            catch (Exception e) {
-                            	Log.w(TAG, "unable to parse public key", e);
-                            	registeredValues.putNull(Users.FINGERPRINT);
-                            }
-                        }
-                        else
-                            registeredValues.putNull(Users.PUBLIC_KEY);
+                String status = entry.status;
+
+                if (!TextUtils.isEmpty(status))
+                    registeredValues.put(Users.STATUS, status);
+                else
+                    registeredValues.putNull(Users.STATUS);
 
-                        // blocked status
-                        registeredValues.put(Users.BLOCKED, entry.blocked);
+                if (entry.timestamp >= 0)
+                    registeredValues.put(Users.LAST_SEEN, entry.timestamp);
+                else
+                    registeredValues.putNull(Users.LAST_SEEN);
 
-                        usersProvider.update(offlineUri, registeredValues,
-                            Users.HASH + " = ?", new String[] { userId });
+                if (entry.publicKey != null) {
+                    registeredValues.put(Users.PUBLIC_KEY, entry.publicKey);
+
+                    try {
+                        byte[] fp = PGP.getMasterKey(entry.publicKey).getFingerprint();
+                        registeredValues.put(Users.FINGERPRINT, MessageUtils.bytesToHex(fp));
                     }
-                    catch (RemoteException e) {
-                        Log.e(TAG, "error updating users database", e);
-                        // we shall continue here...
+                    catch (Exception exc) {
+                        Log.w(TAG, "unable to parse public key", exc);
+                        registeredValues.putNull(Users.FINGERPRINT);
                     }
                 }
-
-                try {
-                    if (operations.size() > 0)
-                        provider.applyBatch(operations);
-                    syncResult.stats.numInserts += op;
-                    syncResult.stats.numEntries += op;
-                }
-                catch (Exception e) {
-                    Log.e(TAG, "contact write error", e);
-                    syncResult.stats.numSkippedEntries = op;
-                    syncResult.databaseError = true;
-                    return;
+                else {
+                    registeredValues.putNull(Users.PUBLIC_KEY);
+                    registeredValues.putNull(Users.FINGERPRINT);
                 }
 
-                // commit users table
-                uri = Users.CONTENT_URI.buildUpon()
-                    .appendQueryParameter(Users.RESYNC, "true")
-                    .appendQueryParameter(Users.COMMIT, "true")
-                    .build();
-                try {
-                    usersProvider.update(uri, null, null, null);
-                    Log.d(TAG, "users database committed");
-                    Contact.invalidate();
-                }
-                catch (RemoteException e) {
-                    Log.e(TAG, "error committing users database - aborting sync", e);
-                    syncResult.databaseError = true;
-                    return;
-                }
+                // blocked status
+                registeredValues.put(Users.BLOCKED, blocklist.contains(e.getKey()));
+
+                usersProvider.update(offlineUri, registeredValues,
+                    Users.HASH + " = ?", new String[] { userId });
+            }
+            catch (RemoteException exc) {
+                Log.e(TAG, "error updating users database", exc);
+                // we shall continue here...
             }
 
-            // timeout or error
-            else {
-                /* TODO
-                Throwable exc = conn.getLastError();
-                if (exc != null) {
-                    Log.e(TAG, "network error - aborting sync", exc);
-                }
-                else {*/
-                    Log.w(TAG, "connection timeout - aborting sync");
-                //}
+            // keep batches small
+            if ((i + 1) % MAX_BATCH_CONTACTS == 0) {
+                if (!applyContacts(provider, operations, op, syncResult))
+                    return false;
+                operations.clear();
+                op = 0;
+            }
+        }
+
+        return operations.size() == 0 || applyContacts(provider, operations, op, syncResult);
+    }
+
+    /** Returns an operation deleting the raw contacts of the given users. */
+    private ContentProviderOperation deleteContacts(Account account, Collection<String> userIds) {
+        StringBuilder where = new StringBuilder(RAW_COLUMN_USERID + " IN (");
+        for (int i = 0; i < userIds.size(); i++)
+            where.append(i > 0 ? ",?" : "?");
+        where.append(")");
+        return ContentProviderOperation.newDelete(getRawContactsUri(account))
+            .withSelection(where.toString(), userIds.toArray(new String[userIds.size()]))
+            .build();
+    }
 
-                syncResult.stats.numIoExceptions++;
+    private boolean applyContacts(ContentProviderClient provider,
+            ArrayList<ContentProviderOperation> operations, int count, SyncResult syncResult) {
+        try {
+            ContentProviderResult[] results = provider.applyBatch(operations);
+            for (ContentProviderResult result : results) {
+                if (result.count != null)
+                    syncResult.stats.numDeletes += result.count;
             }
+            syncResult.stats.numInserts += count;
+            syncResult.stats.numEntries += count;
+            return true;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "contact write error", e);
+            syncResult.stats.numSkippedEntries += count;
+            syncResult.databaseError = true;
+            return false;
         }
     }
 
@@ -584,13 +775,45 @@ public class Syncer {
         return (displayName != null) ? displayName : defaultValue;
     }
 
-    private int deleteAll(Account account, ContentProviderClient provider)
-            throws RemoteException {
-        return provider.delete(RawContacts.CONTENT_URI.buildUpon()
+    private Uri getRawContactsUri(Account account) {
+        return RawContacts.CONTENT_URI.buildUpon()
             .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
             .appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
             .appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
-            .build(), null, null);
+            .build();
+    }
+
+    private int deleteAll(Account account, ContentProviderClient provider)
+            throws RemoteException {
+        return provider.delete(getRawContactsUri(account), null, null);
+    }
+
+    /** Deletes Kontalk raw contacts of users not being synced. */
+    private int deleteRemoved(Account account, ContentProviderClient provider,
+            Map<String, RawPhoneNumberEntry> lookupNumbers) throws RemoteException {
+        Uri uri = getRawContactsUri(account);
+        StringBuilder ids = new StringBuilder();
+
+        Cursor c = provider.query(uri, new String[] { RawContacts._ID, RAW_COLUMN_USERID },
+            null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String userId = c.getString(1);
+                if (userId == null || !lookupNumbers.containsKey(userId)) {
+                    if (ids.length() > 0)
+                        ids.append(',');
+                    ids.append(c.getLong(0));
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        if (ids.length() == 0)
+            return 0;
+
+        return provider.delete(uri, RawContacts._ID + " IN (" + ids + ")", null);
     }
 
     /*
@@ -617,10 +840,11 @@ public class Syncer {
     */
 
     private void addContact(Account account, String username, String phone, String hash,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         Log.d(TAG, "adding contact username = \"" + username + "\", phone: " + phone);
         ContentProviderOperation.Builder builder;
-        final int NUM_OPS = 4;
+        // back reference to the RawContact insert
+        final int rawIndex = operations.size();
 
         // create our RawContact
         builder = ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
@@ -634,14 +858,14 @@ public class Syncer {
 
         // create a Data record of common type 'StructuredName' for our RawContact
         builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.CommonDataKinds.StructuredName.RAW_CONTACT_ID, index * NUM_OPS)
+            .withValueBackReference(ContactsContract.CommonDataKinds.StructuredName.RAW_CONTACT_ID, rawIndex)
             .withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
             .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, username);
         operations.add(builder.build());
 
         // create a Data record of common type 'Phone' for our RawContact
         builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.CommonDataKinds.Phone.RAW_CONTACT_ID, index * NUM_OPS)
+            .withValueBackReference(ContactsContract.CommonDataKinds.Phone.RAW_CONTACT_ID, rawIndex)
             .withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE)
             // not including phone type will crash on HTC devices
             .withValue(ContactsContract.CommonDataKinds.Phone.TYPE, ContactsContract.CommonDataKinds.Phone.TYPE_OTHER)
@@ -650,7 +874,7 @@ public class Syncer {
 
         // create a Data record of custom type 'org.kontalk.user' to display a link to the conversation
         builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, index * NUM_OPS)
+            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
             .withValue(ContactsContract.Data.MIMETYPE, Users.CONTENT_ITEM_TYPE)
             .withValue(DATA_COLUMN_DISPLAY_NAME, username)
             .withValue(DATA_COLUMN_ACCOUNT_NAME, mContext.getString(R.string.app_name))
@@ -62,6 +62,7 @@ import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.MessageUtils.SmileyImageSpan;
+import org.kontalk.util.ThumbnailCache;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
@@ -108,6 +109,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.EditText;
@@ -129,6 +131,10 @@ public class ComposeMessageFragment extends ListFragment implements
 
 	private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
 	private static final int CONVERSATION_QUERY_TOKEN = 8721;
+	private static final int MESSAGE_PAGE_QUERY_TOKEN = 8722;
+
+	/** Number of messages loaded at a time. */
+	private static final int MESSAGE_PAGE_SIZE = 50;
 
 	private static final int SELECT_ATTACHMENT_OPENABLE = Activity.RESULT_FIRST_USER + 1;
 	private static final int SELECT_ATTACHMENT_CONTACT = Activity.RESULT_FIRST_USER + 2;
@@ -143,6 +149,8 @@ public class ComposeMessageFragment extends ListFragment implements
     private IconContextMenu attachmentMenu;
 
 	private MessageListQueryHandler mQueryHandler;
+	/** Used to update the composer from background threads. */
+	private final Handler mHandler = new Handler();
 	private MessageListAdapter mListAdapter;
 	private EditText mTextEntry;
 	private View mSendButton;
@@ -173,6 +181,20 @@ public class ComposeMessageFragment extends ListFragment implements
 	private PeerObserver mPeerObserver;
     private File mCurrentPhoto;
 
+    /* Loaded messages window. */
+    /** Thread the messages window refers to. */
+    private long mWindowThreadId = -1;
+    /** Timestamp of the oldest loaded message. */
+    private long mWindowTimestamp;
+    /** Id of the oldest loaded message, -1 if nothing was loaded yet. */
+    private long mWindowId = -1;
+    /** True if older messages might be available. */
+    private boolean mHasOlderMessages;
+    /** True while older messages are being loaded. */
+    private boolean mLoadingOlder;
+    /** Message count before loading older messages, -1 if not loading. */
+    private int mPreviousCount = -1;
+
 	private LocalBroadcastManager mLocalBroadcastManager;
     private BroadcastReceiver mPresenceReceiver;
     private BroadcastReceiver mPrivacyListener;
@@ -234,6 +256,21 @@ public class ComposeMessageFragment extends ListFragment implements
         list.setFastScrollEnabled(true);
 		registerForContextMenu(list);
 
+		// load older messages when reaching the top of the list
+		list.setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem == 0 && totalItemCount > 0 &&
+						mHasOlderMessages && !mLoadingOlder)
+					loadOlderMessages();
+			}
+		});
+
 		// set custom background (if any)
 		Drawable bg = Preferences.getConversationBackground(getActivity());
 		if (bg != null) {
@@ -384,36 +421,51 @@ public class ComposeMessageFragment extends ListFragment implements
     }
 
 	/** Sends out a binary message. */
-	public void sendBinaryMessage(Uri uri, String mime, boolean media,
+	public void sendBinaryMessage(final Uri uri, final String mime, boolean media,
 			Class<? extends MessageComponent<?>> klass) {
 		Log.v(TAG, "sending binary content: " + uri);
+
+	    offlineModeWarning();
+
+		final String msgId = "draft" + (new Random().nextInt());
+		// message will be stored even if the composer is closed meanwhile
+		final Context context = getActivity().getApplicationContext();
+		final String peer = userId;
+
+		if (media) {
+			// generate thumbnail in background, then store the message
+			// FIXME hard-coded to ImageComponent
+			String filename = ImageComponent.buildMediaFilename(msgId, MediaStorage.THUMBNAIL_MIME);
+			File previewFile = new File(context.getCacheDir(), filename);
+			ThumbnailCache.getInstance(context).submit(uri, previewFile,
+				new ThumbnailCache.Callback() {
+					public void thumbnailReady(File thumbnail) {
+						storeBinaryMessage(context, peer, msgId, uri, mime, thumbnail);
+					}
+				});
+		}
+		else {
+			storeBinaryMessage(context, peer, msgId, uri, mime, null);
+		}
+	}
+
+	/**
+	 * Stores a binary message and sends it. Can be called from any thread;
+	 * the composer will be updated on the main thread.
+	 */
+	private void storeBinaryMessage(Context context, String peer, String msgId,
+			Uri uri, String mime, File previewFile) {
 		Uri newMsg = null;
-        File previewFile = null;
         long length = -1;
 
 		try {
-		    // TODO convert to thread (?)
-
-		    offlineModeWarning();
-
-			String msgId = "draft" + (new Random().nextInt());
-
-			// generate thumbnail
-			// FIXME this is blocking!!!!
-			if (media) {
-				// FIXME hard-coded to ImageComponent
-				String filename = ImageComponent.buildMediaFilename(msgId, MediaStorage.THUMBNAIL_MIME);
-				previewFile = MediaStorage.cacheThumbnail(getActivity(), uri,
-						filename);
-			}
-
-			length = MediaStorage.getLength(getActivity(), uri);
+			length = MediaStorage.getLength(context, uri);
 
 			// save to database
             ContentValues values = new ContentValues();
 			// must supply a message ID...
 			values.put(Messages.MESSAGE_ID, msgId);
-			values.put(Messages.PEER, userId);
+			values.put(Messages.PEER, peer);
 
 			/* TODO ask for a text to send with the image
 			values.put(Messages.BODY_MIME, TextComponent.MIME_TYPE);
@@ -434,44 +486,61 @@ public class ComposeMessageFragment extends ListFragment implements
 			values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
 			values.put(Messages.ATTACHMENT_LENGTH, length);
 
-			newMsg = getActivity().getContentResolver().insert(
+			newMsg = context.getContentResolver().insert(
 					Messages.CONTENT_URI, values);
 		}
 		catch (Exception e) {
 			Log.e(TAG, "unable to store media", e);
 		}
 
+		long newThreadId = 0;
 		if (newMsg != null) {
 
+			// thread id of the inserted message
+			Cursor c = context.getContentResolver().query(newMsg,
+					new String[] { Messages.THREAD_ID }, null, null, null);
+			if (c != null) {
+				if (c.moveToFirst())
+					newThreadId = c.getLong(0);
+				c.close();
+			}
+
+			// send message!
+			// FIXME do not encrypt binary messages for now
+			String previewPath = (previewFile != null) ? previewFile.getAbsolutePath() : null;
+			MessageCenterService.sendBinaryMessage(context,
+			    peer, mime, uri, length, previewPath, ContentUris.parseId(newMsg));
+		}
+
+		final boolean stored = (newMsg != null);
+		final long storedThreadId = newThreadId;
+		mHandler.post(new Runnable() {
+			public void run() {
+				if (isAdded())
+					binaryMessageStored(stored, storedThreadId);
+			}
+		});
+	}
+
+	/** Updates the composer after a binary message has been stored. */
+	private void binaryMessageStored(boolean stored, long newThreadId) {
+		if (stored) {
 			// update thread id from the inserted message
 			if (threadId <= 0) {
-				Cursor c = getActivity().getContentResolver().query(newMsg,
-						new String[] { Messages.THREAD_ID }, null, null, null);
-				if (c.moveToFirst()) {
-					threadId = c.getLong(0);
+				if (newThreadId > 0) {
+					threadId = newThreadId;
 					mConversation = null;
 					startQuery(true, false);
 				}
 				else {
 					Log.v(TAG, "no data - cannot start query for this composer");
 				}
-				c.close();
 			}
-
-			// send message!
-			// FIXME do not encrypt binary messages for now
-			String previewPath = (previewFile != null) ? previewFile.getAbsolutePath() : null;
-			MessageCenterService.sendBinaryMessage(getActivity(),
-			    userId, mime, uri, length, previewPath, ContentUris.parseId(newMsg));
 		}
 		else {
-			getActivity().runOnUiThread(new Runnable() {
-				public void run() {
-					Toast.makeText(getActivity(),
-						R.string.err_store_message_failed,
-						Toast.LENGTH_LONG).show();
-				}
-			});
+			Toast.makeText(getActivity(),
+				R.string.err_store_message_failed,
+				Toast.LENGTH_LONG).show();
 		}
 	}
 
@@ -693,6 +762,7 @@ public class ComposeMessageFragment extends ListFragment implements
             i.setAction(DownloadService.ACTION_DOWNLOAD_URL);
             i.putExtra(CompositeMessage.MSG_ID, msg.getId());
             i.putExtra(CompositeMessage.MSG_SENDER, msg.getSender());
+            i.putExtra(DownloadService.EXTRA_LENGTH, attachment.getLength());
             i.setData(Uri.parse(attachment.getFetchUrl()));
             getActivity().startService(i);
 	    }
@@ -860,6 +930,7 @@ public class ComposeMessageFragment extends ListFragment implements
 
             ctx.getContentResolver().update(Messages.getUri(msg.getId()),
             		values, null, null);
+            CompositeMessage.invalidateBody(msg.getDatabaseId());
         }
         catch (Exception e) {
             Log.e(TAG, "decryption failed", e);
@@ -980,6 +1051,16 @@ public class ComposeMessageFragment extends ListFragment implements
 		MessageListItem v = (MessageListItem) info.targetView;
 		CompositeMessage msg = v.getMessage();
 
+		// body might still be loading: text would be truncated
+		switch (item.getItemId()) {
+			case MENU_SHARE:
+			case MENU_COPY_TEXT:
+			case MENU_DECRYPT:
+			case MENU_DETAILS:
+				msg.loadBody();
+				break;
+		}
+
 		switch (item.getItemId()) {
 			case MENU_SHARE: {
 				Intent i = null;
@@ -1073,8 +1154,29 @@ public class ComposeMessageFragment extends ListFragment implements
 		    if (progress)
 		        getActivity().setProgressBarIndeterminateVisibility(true);
 
-			CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-					threadId);
+			// thread changed - reset messages window
+			if (mWindowThreadId != threadId) {
+				mWindowThreadId = threadId;
+				mWindowId = -1;
+				mHasOlderMessages = false;
+				mLoadingOlder = false;
+				mPreviousCount = -1;
+			}
+
+			// scrolling to a specific message: load everything
+			if (getSelectedMessageId() > 0)
+				CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+						threadId);
+
+			// newest page first
+			else if (mWindowId < 0)
+				CompositeMessage.startQueryPage(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+						threadId, MESSAGE_PAGE_SIZE);
+
+			// reload the current window
+			else
+				CompositeMessage.startQueryWindow(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+						threadId, mWindowTimestamp, mWindowId);
 
 			if (reloadConversation)
 				Conversation.startQuery(mQueryHandler,
@@ -1085,6 +1187,19 @@ public class ComposeMessageFragment extends ListFragment implements
 		}
 	}
 
+	/** Queries the keys of the page of messages preceding the loaded window. */
+	private void loadOlderMessages() {
+		mLoadingOlder = true;
+		CompositeMessage.startQueryPageKeys(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+				threadId, MESSAGE_PAGE_SIZE, mWindowTimestamp, mWindowId);
+	}
+
+	/** Returns the id of the message to scroll to, if requested. */
+	private long getSelectedMessageId() {
+		Bundle args = myArguments();
+		return (args != null) ? args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) : -1;
+	}
+
 	private void loadConversationMetadata(Uri uri) {
 		threadId = ContentUris.parseId(uri);
 		mConversation = Conversation.loadFromId(getActivity(), threadId);
@@ -2105,12 +2220,17 @@ public class ComposeMessageFragment extends ListFragment implements
 	public void onStop() {
 		super.onStop();
 		unregisterPeerObserver();
-		if (mListAdapter != null)
+		if (mListAdapter != null) {
 			mListAdapter.changeCursor(null);
+			mListAdapter.cancelDecryption();
+		}
 
 		// be sure to cancel all queries
 		mQueryHandler.cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
 		mQueryHandler.cancelOperation(CONVERSATION_QUERY_TOKEN);
+		mQueryHandler.cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
+		mLoadingOlder = false;
+		mPreviousCount = -1;
 
 		// release message center
 		MessageCenterService.release(getActivity());
@@ -2203,27 +2323,46 @@ public class ComposeMessageFragment extends ListFragment implements
     				else {
     					// see if we have to scroll to a specific message
     					int newSelectionPos = -1;
+    					int newSelectionTop = 0;
+
+    					long msgId = getSelectedMessageId();
+    					if (msgId > 0) {
 
-    					Bundle args = myArguments();
-    					if (args != null) {
-    						long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE,
-    								-1);
-    						if (msgId > 0) {
-
-    							cursor.moveToPosition(-1);
-    							while (cursor.moveToNext()) {
-    								long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
-    								if (curId == msgId) {
-    									newSelectionPos = cursor.getPosition();
-    									break;
-    								}
+    						cursor.moveToPosition(-1);
+    						while (cursor.moveToNext()) {
+    							long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
+    							if (curId == msgId) {
+    								newSelectionPos = cursor.getPosition();
+    								break;
     							}
     						}
     					}
 
+    					// first page loaded
+    					else if (mWindowId < 0) {
+    						mHasOlderMessages = cursor.getCount() >= MESSAGE_PAGE_SIZE;
+    						if (cursor.moveToFirst()) {
+    							mWindowTimestamp = cursor.getLong(CompositeMessage.COLUMN_TIMESTAMP);
+    							mWindowId = cursor.getLong(CompositeMessage.COLUMN_ID);
+    						}
+    					}
+
+    					// older messages loaded: keep scroll position
+    					else if (mPreviousCount >= 0) {
+    						ListView list = getListView();
+    						View first = list.getChildAt(0);
+    						newSelectionPos = list.getFirstVisiblePosition() +
+    							cursor.getCount() - mPreviousCount;
+    						if (first != null)
+    							newSelectionTop = first.getTop();
+
+    						mPreviousCount = -1;
+    						mLoadingOlder = false;
+    					}
+
     					mListAdapter.changeCursor(cursor);
     					if (newSelectionPos > 0)
-    						getListView().setSelection(newSelectionPos);
+    						getListView().setSelectionFromTop(newSelectionPos, newSelectionTop);
 
     					getActivity().setProgressBarIndeterminateVisibility(false);
     					updateUI();
@@ -2231,6 +2370,27 @@ public class ComposeMessageFragment extends ListFragment implements
 
     				break;
 
+    			case MESSAGE_PAGE_QUERY_TOKEN:
+    				// cursor contains keys of the older page
+    				if (cursor.moveToFirst()) {
+    					mHasOlderMessages = cursor.getCount() >= MESSAGE_PAGE_SIZE;
+    					mWindowTimestamp = cursor.getLong(CompositeMessage.COLUMN_TIMESTAMP);
+    					mWindowId = cursor.getLong(CompositeMessage.COLUMN_ID);
+    					mPreviousCount = mListAdapter.getCount();
+
+    					// reload the enlarged window
+    					CompositeMessage.startQueryWindow(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+    							threadId, mWindowTimestamp, mWindowId);
+    				}
+    				else {
+    					mHasOlderMessages = false;
+    					mLoadingOlder = false;
+    				}
+
+    				cursor.close();
+
+    				break;
+
     			case CONVERSATION_QUERY_TOKEN:
     				if (cursor.moveToFirst()) {
     					mConversation = Conversation.createFromCursor(
@@ -19,6 +19,7 @@
 package org.kontalk.ui;
 
 import org.kontalk.R;
+import org.kontalk.data.AvatarLoader;
 import org.kontalk.data.Contact;
 
 import android.content.Context;
@@ -71,7 +72,7 @@ public class ContactsListItem extends RelativeLayout {
         mContact = contact;
 
         mAvatarView.assignContactUri(contact.getUri());
-        mAvatarView.setImageDrawable(contact.getAvatar(context, sDefaultContactImage));
+        AvatarLoader.getInstance(context).load(contact, mAvatarView, sDefaultContactImage);
         mAvatarView.setVisibility(VISIBLE);
 
         mText1.setText(contact.getName());
@@ -88,6 +89,7 @@ public class ContactsListItem extends RelativeLayout {
 
     public final void unbind() {
         mContact = null;
+        AvatarLoader.getInstance(getContext()).cancel(mAvatarView);
         /*
         mAvatarView.setImageDrawable(null);
         BitmapDrawable d = (BitmapDrawable) mAvatarView.getDrawable();
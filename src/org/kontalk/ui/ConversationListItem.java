@@ -19,6 +19,7 @@
 package org.kontalk.ui;
 
 import org.kontalk.R;
+import org.kontalk.data.AvatarLoader;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Conversation;
 import org.kontalk.message.CompositeMessage;
@@ -113,11 +114,12 @@ public class ConversationListItem extends RelativeLayout implements Checkable {
         if (contact != null) {
             recipient = contact.getName();
             mAvatarView.assignContactUri(contact.getUri());
-            mAvatarView.setImageDrawable(contact.getAvatar(context, sDefaultContactImage));
+            AvatarLoader.getInstance(context).load(contact, mAvatarView, sDefaultContactImage);
         }
         else {
             // FIXME debug mode -- recipient = conv.getRecipient();
             recipient = context.getString(R.string.peer_unknown);
+            AvatarLoader.getInstance(context).cancel(mAvatarView);
             mAvatarView.setImageDrawable(sDefaultContactImage);
         }
 
@@ -218,6 +220,7 @@ public class ConversationListItem extends RelativeLayout implements Checkable {
 
     public final void unbind() {
         // TODO unbind (contact?)
+        AvatarLoader.getInstance(getContext()).cancel(mAvatarView);
     }
 
     public Conversation getConversation() {
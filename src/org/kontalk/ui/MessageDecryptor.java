@@ -0,0 +1,275 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.kontalk.crypto.PublicKeyCache;
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.MessageComponent;
+import org.kontalk.message.RawComponent;
+import org.kontalk.message.TextComponent;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.util.MessageUtils;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+
+/**
+ * Decrypts stored encrypted messages in background.
+ * Decrypted content is written back to the database so decryption is done
+ * only once per message; recently decrypted messages are also kept in memory
+ * to be displayed while the message list is being reloaded.
+ * @author Daniele Ricci
+ */
+class MessageDecryptor {
+    private static final String TAG = MessageDecryptor.class.getSimpleName();
+
+    /** Maximum number of decrypted messages to keep in memory. */
+    private static final int CACHE_SIZE = 50;
+    /** Statistics will be logged every this many decryptions. */
+    private static final int STATS_INTERVAL = 20;
+
+    private static final String[] MESSAGE_PROJECTION = {
+        Messages.MESSAGE_ID,
+        Messages.PEER,
+        Messages.DIRECTION,
+        Messages.SERVER_TIMESTAMP,
+        Messages.ENCRYPTED,
+        Messages.SECURITY_FLAGS,
+        Messages.BODY_CONTENT,
+    };
+
+    /** Components of a decrypted message (text and attachment). */
+    private static final class Entry {
+        final List<MessageComponent<?>> components;
+        final int securityFlags;
+
+        public Entry(List<MessageComponent<?>> components, int securityFlags) {
+            this.components = components;
+            this.securityFlags = securityFlags;
+        }
+    }
+
+    private static MessageDecryptor sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    private final LruCache<Long, Entry> mCache = new LruCache<Long, Entry>(CACHE_SIZE);
+    /** Messages waiting to be decrypted. */
+    private final Set<Long> mPending = new HashSet<Long>();
+    /**
+     * Messages that could not be decrypted, with the key generation at the
+     * time. They will be tried again when keys change.
+     */
+    private final Map<Long, Integer> mFailed = new HashMap<Long, Integer>();
+
+    // statistics
+    private int mHits;
+    private int mMisses;
+    private int mDecrypted;
+    private int mErrors;
+    private long mDecryptTime;
+
+    private MessageDecryptor(Context context) {
+        mContext = context.getApplicationContext();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized MessageDecryptor getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new MessageDecryptor(context);
+        return sInstance;
+    }
+
+    /**
+     * Replaces the encrypted content of a message with its decrypted text,
+     * if it has been decrypted recently.
+     * @return true if the message was decrypted
+     */
+    public boolean fromCache(CompositeMessage msg) {
+        Entry entry = mCache.get(msg.getDatabaseId());
+
+        synchronized (this) {
+            if (entry != null)
+                mHits++;
+            else
+                mMisses++;
+        }
+
+        if (entry != null) {
+            msg.clearComponents();
+            for (MessageComponent<?> c : entry.components)
+                msg.addComponent(c);
+            msg.setSecurityFlags(entry.securityFlags);
+            msg.setEncrypted(false);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Schedules decryption of a stored message.
+     * @param id the message database id
+     * @param urgent true to decrypt the message before any other waiting
+     * message (e.g. for a message being displayed)
+     */
+    public void decrypt(final long id, boolean urgent) {
+        synchronized (this) {
+            Integer generation = mFailed.get(id);
+            if (generation != null) {
+                // retry only if keys have changed since
+                if (generation == PublicKeyCache.getGeneration())
+                    return;
+                mFailed.remove(id);
+            }
+
+            if (!mPending.add(id))
+                return;
+        }
+
+        if (mCache.get(id) != null) {
+            synchronized (this) {
+                mPending.remove(id);
+            }
+            return;
+        }
+
+        Runnable task = new Runnable() {
+            public void run() {
+                decryptMessage(id);
+            }
+        };
+
+        if (urgent)
+            mHandler.postAtFrontOfQueue(task);
+        else
+            mHandler.post(task);
+    }
+
+    /** Discards all messages waiting to be decrypted. */
+    public void cancelPending() {
+        mHandler.removeCallbacksAndMessages(null);
+        synchronized (this) {
+            mPending.clear();
+        }
+    }
+
+    private void decryptMessage(long id) {
+        synchronized (this) {
+            // cancelled
+            if (!mPending.remove(id))
+                return;
+        }
+
+        Uri uri = ContentUris.withAppendedId(Messages.CONTENT_URI, id);
+        CompositeMessage msg = loadMessage(uri, id);
+        if (msg == null)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        int generation = PublicKeyCache.getGeneration();
+        boolean success = false;
+        try {
+            MessageUtils.decryptMessage(mContext, null, msg);
+
+            if (msg.getComponent(TextComponent.class) != null) {
+                mCache.put(id, new Entry(new ArrayList<MessageComponent<?>>(msg.getComponents()),
+                    msg.getSecurityFlags()));
+            }
+
+            // write decrypted data to the database
+            ContentValues values = new ContentValues();
+            MessageUtils.fillContentValues(values, msg);
+            mContext.getContentResolver().update(uri, values, null, null);
+            CompositeMessage.invalidateBody(id);
+
+            success = true;
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to decrypt message " + id, e);
+            synchronized (this) {
+                mFailed.put(id, generation);
+            }
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            if (success)
+                mDecrypted++;
+            else
+                mErrors++;
+            mDecryptTime += elapsed;
+
+            int total = mDecrypted + mErrors;
+            if (total % STATS_INTERVAL == 0) {
+                int lookups = mHits + mMisses;
+                Log.v(TAG, "decrypted " + mDecrypted + " messages (" + mErrors +
+                    " errors), average " + (mDecryptTime / total) + " ms, cache hit ratio " +
+                    (lookups > 0 ? (mHits * 100 / lookups) : 0) + "%");
+            }
+        }
+    }
+
+    /** Loads an encrypted incoming message from the database. */
+    private CompositeMessage loadMessage(Uri uri, long id) {
+        Cursor c = mContext.getContentResolver().query(uri,
+            MESSAGE_PROJECTION, null, null, null);
+        if (c == null)
+            return null;
+
+        CompositeMessage msg = null;
+        try {
+            if (c.moveToFirst() && c.getInt(4) != 0 &&
+                    c.getInt(2) == Messages.DIRECTION_IN) {
+                int securityFlags = c.getInt(5);
+                msg = new CompositeMessage(mContext, c.getString(0),
+                    c.getLong(3), c.getString(1), true, securityFlags);
+                msg.setDatabaseId(id);
+                msg.addComponent(new RawComponent(c.getBlob(6), true, securityFlags));
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        return msg;
+    }
+
+}
@@ -35,13 +35,20 @@ import android.widget.AbsListView.RecyclerListener;
 import android.widget.CursorAdapter;
 import android.widget.ListView;
 
-public class MessageListAdapter extends CursorAdapter {
+public class MessageListAdapter extends CursorAdapter implements CompositeMessage.OnBodyLoadedListener {
 
     private static final String TAG = MessageListAdapter.class.getSimpleName();
 
+    /** Encrypted messages this close to a bound row will be decrypted too. */
+    private static final int DECRYPT_DISTANCE = 5;
+
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
+    private final MessageDecryptor mDecryptor;
+    private final ListView mListView;
     private OnContentChangedListener mOnContentChangedListener;
+    /** True if rows will be bound again for loaded message bodies. */
+    private boolean mRebindPending;
 
     private Contact mContact;
 
@@ -49,6 +56,8 @@ public class MessageListAdapter extends CursorAdapter {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
         mHighlight = highlight;
+        mDecryptor = MessageDecryptor.getInstance(context);
+        mListView = list;
 
         list.setRecyclerListener(new RecyclerListener() {
             public void onMovedToScrapHeap(View view) {
@@ -67,11 +76,49 @@ public class MessageListAdapter extends CursorAdapter {
         }
 
         MessageListItem headerView = (MessageListItem) view;
-        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor, this);
         if (msg.getDirection() == Messages.DIRECTION_IN && mContact == null)
         	mContact = Contact.findByUserId(context, msg.getSender());
 
+        if (msg.isEncrypted() && msg.getDirection() == Messages.DIRECTION_IN &&
+                !mDecryptor.fromCache(msg))
+            mDecryptor.decrypt(msg.getDatabaseId(), true);
+
         headerView.bind(context, msg, mContact, mHighlight);
+
+        decryptNearby(cursor);
+    }
+
+    /** Binds visible rows again once, for any number of loaded bodies. */
+    public void onBodyLoaded(long databaseId) {
+        if (!mRebindPending) {
+            mRebindPending = true;
+            mListView.post(new Runnable() {
+                public void run() {
+                    mRebindPending = false;
+                    notifyDataSetChanged();
+                }
+            });
+        }
+    }
+
+    /** Schedules decryption of encrypted messages near the current row. */
+    private void decryptNearby(Cursor cursor) {
+        int position = cursor.getPosition();
+        int end = Math.min(position + DECRYPT_DISTANCE, cursor.getCount() - 1);
+        for (int i = Math.max(position - DECRYPT_DISTANCE, 0); i <= end; i++) {
+            if (i != position && cursor.moveToPosition(i) &&
+                    cursor.getInt(CompositeMessage.COLUMN_ENCRYPTED) != 0 &&
+                    cursor.getInt(CompositeMessage.COLUMN_DIRECTION) == Messages.DIRECTION_IN)
+                mDecryptor.decrypt(cursor.getLong(CompositeMessage.COLUMN_ID), false);
+        }
+
+        cursor.moveToPosition(position);
+    }
+
+    /** Discards any message waiting for decryption. */
+    public void cancelDecryption() {
+        mDecryptor.cancelPending();
     }
 
     @Override
@@ -18,11 +18,13 @@
 
 package org.kontalk.ui;
 
+import java.io.File;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.kontalk.R;
 import org.kontalk.crypto.Coder;
+import org.kontalk.data.AvatarLoader;
 import org.kontalk.data.Contact;
 import org.kontalk.message.AttachmentComponent;
 import org.kontalk.message.CompositeMessage;
@@ -36,8 +38,11 @@ import org.kontalk.util.MessageUtils.SmileyImageSpan;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
+import android.support.v4.util.LruCache;
 import android.text.Spannable;
+import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
 import android.text.style.BackgroundColorSpan;
@@ -65,8 +70,15 @@ public class MessageListItem extends RelativeLayout {
 	 */
 	private static final int MAX_AFFORDABLE_SIZE = 10240;	// 10 KB
 
+    /** Maximum number of message texts with emojis to keep in memory. */
+    private static final int SMILEY_CACHE_SIZE = 100;
+
     static private Drawable sDefaultContactImage;
 
+    /** Message texts with emojis converted, by message id. */
+    private static final LruCache<Long, Spanned> sSmileyCache =
+        new LruCache<Long, Spanned>(SMILEY_CACHE_SIZE);
+
     private CompositeMessage mMessage;
     private SpannableStringBuilder mFormattedMessage;
     private MessageItemTextView mTextView;
@@ -95,6 +107,29 @@ public class MessageListItem extends RelativeLayout {
 
     private BackgroundColorSpan mHighlightColorSpan;  // set in ctor
 
+    /** Preview currently displayed. */
+    private Bitmap mPreview;
+    /** Pending preview request. */
+    private PreviewLoader.Request mPreviewRequest;
+    /** Length of the preview placeholder text. */
+    private int mPreviewLength;
+
+    private final PreviewLoader.Callback mPreviewCallback = new PreviewLoader.Callback() {
+        public void previewLoaded(PreviewLoader.Request request, Bitmap bitmap) {
+            if (request != mPreviewRequest) {
+                if (bitmap != null)
+                    PreviewLoader.getInstance(getContext()).release(bitmap);
+                return;
+            }
+
+            mPreviewRequest = null;
+            if (bitmap != null) {
+                setPreview(mFormattedMessage, bitmap);
+                mTextView.setText(mFormattedMessage);
+            }
+        }
+    };
+
     public MessageListItem(Context context) {
         super(context);
     }
@@ -157,6 +192,7 @@ public class MessageListItem extends RelativeLayout {
 
     public final void bind(Context context, final CompositeMessage msg,
             final Contact contact, final Pattern highlight) {
+        releasePreview();
         mMessage = msg;
 
         mFormattedMessage = formatMessage(contact, highlight);
@@ -221,8 +257,7 @@ public class MessageListItem extends RelativeLayout {
             if (mAvatarIncoming != null) {
                 mAvatarOutgoing.setVisibility(GONE);
                 mAvatarIncoming.setVisibility(VISIBLE);
-                mAvatarIncoming.setImageDrawable(contact != null ?
-                    contact.getAvatar(context, sDefaultContactImage) : sDefaultContactImage);
+                setAvatar(context, mAvatarIncoming, contact);
             }
         }
         else {
@@ -239,8 +274,7 @@ public class MessageListItem extends RelativeLayout {
             if (mAvatarOutgoing != null) {
                 mAvatarIncoming.setVisibility(GONE);
                 mAvatarOutgoing.setVisibility(VISIBLE);
-                mAvatarOutgoing.setImageDrawable(contact != null ?
-                    contact.getAvatar(context, sDefaultContactImage) : sDefaultContactImage);
+                setAvatar(context, mAvatarOutgoing, contact);
             }
 
             // status icon
@@ -286,6 +320,17 @@ public class MessageListItem extends RelativeLayout {
         mDateView.setText(formatTimestamp());
     }
 
+    private void setAvatar(Context context, ImageView view, Contact contact) {
+        AvatarLoader loader = AvatarLoader.getInstance(context);
+        if (contact != null) {
+            loader.load(contact, view, sDefaultContactImage);
+        }
+        else {
+            loader.cancel(view);
+            view.setImageDrawable(sDefaultContactImage);
+        }
+    }
+
     private final class MaxSizeImageSpan extends ImageSpan {
         private final Drawable mDrawable;
 
@@ -321,15 +366,13 @@ public class MessageListItem extends RelativeLayout {
             }
 
             else {
-	            buf = new SpannableStringBuilder(textContent);
+                // convert smileys first
+                CharSequence text = (textContent.length() < MAX_AFFORDABLE_SIZE) ?
+                    convertSmileys(textContent) : textContent;
+	            buf = new SpannableStringBuilder(text);
 	            thumbnailOnly = false;
             }
 
-            // convert smileys first
-            int c = buf.length();
-            if (c > 0 && c < MAX_AFFORDABLE_SIZE)
-            	MessageUtils.convertSmileys(getContext(), buf, SmileyImageSpan.SIZE_EDITABLE);
-
             // image component: show image before text
             AttachmentComponent attachment = (AttachmentComponent) mMessage
             		.getComponent(AttachmentComponent.class);
@@ -347,10 +390,17 @@ public class MessageListItem extends RelativeLayout {
 	            	if (!thumbnailOnly)
 	            		buf.insert(placeholder.length(), "\n");
 
-	                Bitmap bitmap = img.getBitmap();
-	                if (bitmap != null) {
-	                    ImageSpan imgSpan = new MaxSizeImageSpan(getContext(), bitmap);
-	                    buf.setSpan(imgSpan, 0, placeholder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+	            	mPreviewLength = placeholder.length();
+	            	File previewFile = img.getContent().getPreviewFile();
+	                if (previewFile != null) {
+	                    PreviewLoader loader = PreviewLoader.getInstance(getContext());
+	                    Bitmap bitmap = loader.get(previewFile);
+	                    if (bitmap != null)
+	                        setPreview(buf, bitmap);
+	                    else
+	                        // text will be updated when the preview is loaded
+	                        mPreviewRequest = loader.load(previewFile,
+	                            img.getContent().getLocalUri(), mPreviewCallback);
 	                }
 
             	}
@@ -376,6 +426,47 @@ public class MessageListItem extends RelativeLayout {
         return buf;
     }
 
+    /** Returns the message text with emojis, reusing previous conversions. */
+    private CharSequence convertSmileys(String text) {
+        long id = mMessage.getDatabaseId();
+        Spanned cached = sSmileyCache.get(id);
+        if (cached != null && cached.toString().equals(text))
+            return cached;
+
+        // cached spans must not hold the activity
+        SpannableString converted = new SpannableString(text);
+        if (MessageUtils.convertSmileys(getContext().getApplicationContext(),
+                converted, SmileyImageSpan.SIZE_EDITABLE)) {
+            sSmileyCache.put(id, converted);
+            return converted;
+        }
+
+        return text;
+    }
+
+    /** Shows a preview in the placeholder text. */
+    private void setPreview(SpannableStringBuilder buf, Bitmap bitmap) {
+        mPreview = bitmap;
+        ImageSpan imgSpan = new MaxSizeImageSpan(getContext(), bitmap);
+        buf.setSpan(imgSpan, 0, mPreviewLength, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    /** Cancels any pending preview request and releases the current preview. */
+    private void releasePreview() {
+        if (mPreviewRequest == null && mPreview == null)
+            return;
+
+        PreviewLoader loader = PreviewLoader.getInstance(getContext());
+        if (mPreviewRequest != null) {
+            loader.cancel(mPreviewRequest);
+            mPreviewRequest = null;
+        }
+        if (mPreview != null) {
+            loader.release(mPreview);
+            mPreview = null;
+        }
+    }
+
     private CharSequence formatTimestamp() {
         long serverTime = mMessage.getServerTimestamp();
         long ts = serverTime > 0 ? serverTime : mMessage.getTimestamp();
@@ -386,6 +477,13 @@ public class MessageListItem extends RelativeLayout {
     public final void unbind() {
         // TODO mMessage.recycle();
         mMessage = null;
+        releasePreview();
+
+        if (mAvatarIncoming != null) {
+            AvatarLoader loader = AvatarLoader.getInstance(getContext());
+            loader.cancel(mAvatarIncoming);
+            loader.cancel(mAvatarOutgoing);
+        }
     }
 
     public CompositeMessage getMessage() {
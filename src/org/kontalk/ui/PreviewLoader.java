@@ -0,0 +1,328 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+import org.kontalk.util.MediaStorage;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+
+/**
+ * Loads message previews in background.
+ * Decoded previews are kept in a memory cache bounded by size in bytes;
+ * on Honeycomb and later, bitmaps evicted from the cache are reused for
+ * decoding new previews.
+ * @author Daniele Ricci
+ */
+class PreviewLoader {
+    private static final String TAG = PreviewLoader.class.getSimpleName();
+
+    /** Fraction of the application memory class used for the cache. */
+    private static final int CACHE_MEMORY_FRACTION = 8;
+    /** Maximum number of evicted bitmaps kept for reuse. */
+    private static final int MAX_REUSABLE = 8;
+    /** Statistics will be logged every this many decodes. */
+    private static final int STATS_INTERVAL = 20;
+
+    /** Receives a loaded preview on the UI thread. */
+    public interface Callback {
+        /** @param bitmap the preview, null on errors */
+        public void previewLoaded(Request request, Bitmap bitmap);
+    }
+
+    /** A pending preview request. */
+    public final class Request implements Runnable {
+        final File mPreviewFile;
+        final Uri mLocalUri;
+        final Callback mCallback;
+        volatile boolean mCanceled;
+
+        Request(File previewFile, Uri localUri, Callback callback) {
+            mPreviewFile = previewFile;
+            mLocalUri = localUri;
+            mCallback = callback;
+        }
+
+        public void run() {
+            if (mCanceled)
+                return;
+
+            final Bitmap bitmap = loadPreview(mPreviewFile, mLocalUri);
+
+            mUiHandler.post(new Runnable() {
+                public void run() {
+                    if (!mCanceled)
+                        mCallback.previewLoaded(Request.this, bitmap);
+                    else if (bitmap != null)
+                        release(bitmap);
+                }
+            });
+        }
+    }
+
+    private static PreviewLoader sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mUiHandler;
+    private final LruCache<String, Bitmap> mCache;
+
+    /** Bitmaps currently displayed, which must not be reused. */
+    private final WeakHashMap<Bitmap, Integer> mInUse = new WeakHashMap<Bitmap, Integer>();
+    /** Bitmaps evicted from the cache, available for reuse. */
+    private final LinkedList<SoftReference<Bitmap>> mReusable =
+        new LinkedList<SoftReference<Bitmap>>();
+
+    // statistics
+    private int mHits;
+    private int mMisses;
+    private int mDecoded;
+    private int mReused;
+    private long mDecodeTime;
+
+    private PreviewLoader(Context context) {
+        mContext = context.getApplicationContext();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mUiHandler = new Handler(Looper.getMainLooper());
+
+        ActivityManager am = (ActivityManager) mContext
+            .getSystemService(Context.ACTIVITY_SERVICE);
+        int cacheSize = am.getMemoryClass() * 1024 * 1024 / CACHE_MEMORY_FRACTION;
+
+        mCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                addReusable(oldValue);
+            }
+        };
+    }
+
+    public static synchronized PreviewLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new PreviewLoader(context);
+        return sInstance;
+    }
+
+    /**
+     * Returns a cached preview, or null if it must be loaded.
+     * The returned preview is marked as displayed (see {@link #acquire}).
+     */
+    public synchronized Bitmap get(File previewFile) {
+        Bitmap bitmap = mCache.get(previewFile.getPath());
+        if (bitmap != null) {
+            acquire(bitmap);
+            mHits++;
+        }
+        else {
+            mMisses++;
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Loads a preview in background. Previews requested last are loaded
+     * first, since they are probably the ones being displayed. The loaded
+     * preview is marked as displayed (see {@link #acquire}).
+     * @param localUri the media the preview will be generated from if the
+     * preview file can't be loaded, may be null
+     */
+    public Request load(File previewFile, Uri localUri, Callback callback) {
+        Request request = new Request(previewFile, localUri, callback);
+        mHandler.postAtFrontOfQueue(request);
+        return request;
+    }
+
+    /** Cancels a preview request. */
+    public void cancel(Request request) {
+        request.mCanceled = true;
+        mHandler.removeCallbacks(request);
+    }
+
+    /** Marks a preview as displayed, so it won't be reused. */
+    public synchronized void acquire(Bitmap bitmap) {
+        Integer count = mInUse.get(bitmap);
+        mInUse.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    /** Marks a preview as not displayed anymore. */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mInUse.get(bitmap);
+        if (count == null || count <= 1)
+            mInUse.remove(bitmap);
+        else
+            mInUse.put(bitmap, count - 1);
+    }
+
+    private Bitmap loadPreview(File previewFile, Uri localUri) {
+        String key = previewFile.getPath();
+        synchronized (this) {
+            Bitmap bitmap = mCache.get(key);
+            if (bitmap != null) {
+                acquire(bitmap);
+                return bitmap;
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
+
+        Bitmap bitmap = decode(previewFile);
+        if (bitmap == null && localUri != null) {
+            /*
+             * unable to load preview - generate thumbnail
+             * Of course a thumbnail can be generated only if the image has
+             * already been downloaded.
+             */
+            Log.w(TAG, "unable to load thumbnail, generating one");
+            try {
+                MediaStorage.cacheThumbnail(mContext, localUri, previewFile);
+                bitmap = decode(previewFile);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "unable to generate thumbnail", e);
+            }
+        }
+
+        if (bitmap != null) {
+            // acquire first, the bitmap might be evicted right away
+            acquire(bitmap);
+            mCache.put(key, bitmap);
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            mDecoded++;
+            mDecodeTime += elapsed;
+
+            if (mDecoded % STATS_INTERVAL == 0) {
+                int lookups = mHits + mMisses;
+                Log.v(TAG, "decoded " + mDecoded + " previews (" + mReused +
+                    " reusing bitmaps), average " + (mDecodeTime / mDecoded) +
+                    " ms, cache hit ratio " + (lookups > 0 ? (mHits * 100 / lookups) : 0) +
+                    "%, cache size " + (mCache.size() / 1024) + " KB");
+            }
+        }
+
+        return bitmap;
+    }
+
+    private Bitmap decode(File file) {
+        if (!file.isFile())
+            return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            setReusable(file, options);
+
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        catch (IllegalArgumentException e) {
+            // bitmap could not be reused
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                clearReusable(options);
+                return BitmapFactory.decodeFile(file.getPath(), options);
+            }
+            throw e;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void setReusable(File file, BitmapFactory.Options options) {
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            Bitmap reusable = getReusable(options.outWidth, options.outHeight,
+                options.inPreferredConfig);
+            if (reusable != null) {
+                options.inBitmap = reusable;
+                synchronized (this) {
+                    mReused++;
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void clearReusable(BitmapFactory.Options options) {
+        options.inBitmap = null;
+    }
+
+    private synchronized void addReusable(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB ||
+                !bitmap.isMutable() || mInUse.containsKey(bitmap))
+            return;
+
+        mReusable.addFirst(new SoftReference<Bitmap>(bitmap));
+        if (mReusable.size() > MAX_REUSABLE)
+            mReusable.removeLast();
+    }
+
+    /** Takes a reusable bitmap for decoding an image of the given size. */
+    private synchronized Bitmap getReusable(int width, int height, Bitmap.Config config) {
+        Iterator<SoftReference<Bitmap>> iter = mReusable.iterator();
+        while (iter.hasNext()) {
+            Bitmap bitmap = iter.next().get();
+            if (bitmap == null || bitmap.isRecycled() || mInUse.containsKey(bitmap)) {
+                iter.remove();
+            }
+            // before KitKat, only bitmaps of the same size can be reused
+            else if (bitmap.getWidth() == width && bitmap.getHeight() == height &&
+                    bitmap.getConfig() == config) {
+                iter.remove();
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+}
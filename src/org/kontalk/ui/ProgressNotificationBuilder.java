@@ -24,6 +24,8 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.support.v4.app.NotificationCompat;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.widget.RemoteViews;
 
 
@@ -90,6 +92,28 @@ public class ProgressNotificationBuilder extends NotificationCompat.Builder {
         return this;
     }
 
+    /**
+     * Shows transfer speed and remaining time. Must be called after
+     * {@link #progress}. Not shown by the custom layout of older platforms.
+     * @param speed bytes per second, 0 or less if not known
+     * @param remaining remaining time in seconds, less than 0 if not known
+     */
+    public ProgressNotificationBuilder transferInfo(long speed, long remaining) {
+        String info = null;
+        if (speed > 0) {
+            String speedText = Formatter.formatShortFileSize(mContext, speed);
+            info = (remaining >= 0) ?
+                mContext.getString(R.string.transfer_speed_remaining, speedText,
+                    DateUtils.formatElapsedTime(remaining)) :
+                mContext.getString(R.string.transfer_speed, speedText);
+        }
+
+        if (mContentView == null)
+            setContentInfo(info);
+
+        return this;
+    }
+
     @Override
     public Notification build() {
         Notification no = super.build();
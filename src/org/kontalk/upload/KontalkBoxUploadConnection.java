@@ -18,12 +18,22 @@
 
 package org.kontalk.upload;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
+import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -31,35 +41,47 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpOptions;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
-import org.kontalk.Kontalk;
-import org.kontalk.client.ClientHTTPConnection;
+import org.kontalk.client.HttpClientPool;
 import org.kontalk.crypto.Coder;
-import org.kontalk.crypto.PersonalKey;
 import org.kontalk.service.ProgressListener;
-import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressInputStreamEntity;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 
 
 /**
  * Upload service implementation for Kontalk Box dropbox service.
+ * Large files are sent in chunks if the server supports it, that is if it
+ * replies to an OPTIONS request with the <code>X-Upload-Chunked</code>
+ * header:
+ * <ol>
+ * <li>POST <code>?chunked=1</code> with the total length in the
+ * <code>X-Upload-Length</code> header; the server replies with an upload
+ * id in the <code>X-Upload-Id</code> header</li>
+ * <li>PUT <code>?upload=id</code> for every chunk, with a
+ * <code>Content-Range</code> header</li>
+ * <li>POST <code>?upload=id&amp;complete=1</code>; the server replies with
+ * the media URL</li>
+ * </ol>
+ * Failed or stalled requests are sent again, without restarting the upload.
+ * Encrypted data is written to a temporary file first, so that an upload
+ * interrupted after some chunks can be resumed with the same data.
+ * Servers not supporting chunked uploads will receive a single request.
  * @author Daniele Ricci
  */
 public class KontalkBoxUploadConnection implements UploadConnection {
@@ -71,6 +93,35 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     /** Message flags header. */
     private static final String HEADER_MESSAGE_FLAGS = "X-Message-Flags";
+    /** Total upload length header for chunked uploads. */
+    private static final String HEADER_UPLOAD_LENGTH = "X-Upload-Length";
+    /** Upload id header for chunked uploads. */
+    private static final String HEADER_UPLOAD_ID = "X-Upload-Id";
+    /** Chunked uploads support header, in OPTIONS response. */
+    private static final String HEADER_UPLOAD_CHUNKED = "X-Upload-Chunked";
+
+    // resume state keys
+    private static final String STATE_UPLOAD_ID = "org.kontalk.upload.box.UPLOAD_ID";
+    private static final String STATE_LENGTH = "org.kontalk.upload.box.LENGTH";
+    private static final String STATE_OFFSET = "org.kontalk.upload.box.OFFSET";
+    private static final String STATE_STAGED = "org.kontalk.upload.box.STAGED";
+
+    /** Size of chunks for chunked uploads. */
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /** Maximum attempts for a single chunked upload request. */
+    private static final int MAX_CHUNK_ATTEMPTS = 5;
+    /** Delay before the first retry of a request, doubled on every attempt. */
+    private static final long RETRY_DELAY = 2000;
+    /** A request not making progress for this long will be aborted. */
+    private static final long STALL_TIMEOUT = 30000;
+    /** Interval for checking stalled requests. */
+    private static final long STALL_CHECK_INTERVAL = 5000;
+
+    /** Aborts stalled chunk requests. */
+    private static final Timer sWatchdog = new Timer("UploadWatchdog", true);
+
+    /** Chunked uploads support, by server URL. */
+    private static final Map<String, Boolean> sChunkedSupport = new HashMap<String, Boolean>();
 
     protected final Context mContext;
 
@@ -82,6 +133,11 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     private final String mBaseUrl;
 
+    /** True if the upload was aborted by the user. */
+    private volatile boolean mAborted;
+    /** Last time some data was sent, for stall detection. */
+    private volatile long mLastActivity;
+
     public KontalkBoxUploadConnection(Context context, String url,
             PrivateKey privateKey, X509Certificate bridgeCert) {
         mContext = context;
@@ -92,13 +148,14 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     @Override
     public void abort() {
+        mAborted = true;
         if (currentRequest != null)
             currentRequest.abort();
     }
 
     @Override
-    public String upload(Uri uri, String mime, boolean encrypt, ProgressListener listener)
-            throws IOException {
+    public String upload(Uri uri, String mime, Coder encrypter, ProgressListener listener,
+            Bundle state) throws IOException {
 
         HttpResponse response = null;
         try {
@@ -107,32 +164,17 @@ public class KontalkBoxUploadConnection implements UploadConnection {
             long length = stat.getLength();
             stat.close();
 
-            InputStream in = mContext.getContentResolver().openInputStream(uri);
-
-            InputStream toMessage = null;
-            long toLength = 0;
-            Coder coder = null;
-            boolean encrypted = false;
-            // check if we have to encrypt the message
-            if (encrypt) {
-                PersonalKey key = ((Kontalk)mContext.getApplicationContext()).getPersonalKey();
-                // TODO recipients?
-                coder = null; // TODO UsersProvider.getEncryptCoder(key, null);
-                if (coder != null) {
-                    toMessage = coder.wrapInputStream(in);
-                    toLength = coder.getEncryptedLength(length);
-                    encrypted = true;
-                }
-            }
+            long total = encrypter != null ? encrypter.getEncryptedLength(length) : length;
+            if (total > CHUNK_SIZE && isChunkedSupported())
+                return uploadChunked(uri, mime, length, encrypter, listener,
+                    state != null ? state : new Bundle());
 
-            if (coder == null) {
-                toMessage = in;
-                toLength = length;
-            }
+            InputStream in = mContext.getContentResolver().openInputStream(uri);
 
             // http request!
+            // data will be encrypted while being sent
             currentRequest = prepareMessage(listener,
-                mime, toMessage, toLength, encrypted);
+                mime, in, length, encrypter);
             response = execute(currentRequest);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
                 throw new HttpException(response.getStatusLine().getReasonPhrase());
@@ -153,6 +195,312 @@ public class KontalkBoxUploadConnection implements UploadConnection {
         }
     }
 
+    /**
+     * Asks the server if it supports chunked uploads. The answer is cached
+     * for the lifetime of the process.
+     */
+    private boolean isChunkedSupported() throws IOException {
+        synchronized (sChunkedSupport) {
+            Boolean supported = sChunkedSupport.get(mBaseUrl);
+            if (supported != null)
+                return supported;
+        }
+
+        boolean supported = false;
+        HttpResponse response = null;
+        try {
+            currentRequest = new HttpOptions(mBaseUrl);
+            response = execute(currentRequest);
+            supported = response.getStatusLine().getStatusCode() == HttpStatus.SC_OK &&
+                response.getFirstHeader(HEADER_UPLOAD_CHUNKED) != null;
+        }
+        finally {
+            currentRequest = null;
+            try {
+                response.getEntity().consumeContent();
+            }
+            catch (Exception e) {
+                // ignore
+            }
+        }
+
+        if (!supported)
+            Log.v(TAG, "chunked upload not supported by server");
+
+        synchronized (sChunkedSupport) {
+            sChunkedSupport.put(mBaseUrl, supported);
+        }
+        return supported;
+    }
+
+    /** Starts a chunked upload, returning the upload id. */
+    private String startChunked(final String mime, final long total, final boolean encrypted)
+            throws IOException {
+
+        HttpResponse response = executeWithRetry(new RequestFactory() {
+            public HttpRequestBase create() throws IOException {
+                List<NameValuePair> params = new ArrayList<NameValuePair>(1);
+                params.add(new BasicNameValuePair("chunked", "1"));
+                HttpRequestBase req = prepare(params, mime, null, true);
+                req.addHeader(HEADER_UPLOAD_LENGTH, String.valueOf(total));
+                if (encrypted)
+                    req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
+                return req;
+            }
+        }, "upload start");
+
+        Header id = response.getFirstHeader(HEADER_UPLOAD_ID);
+        if (id == null)
+            throw new IOException("no upload id from server");
+        return id.getValue();
+    }
+
+    private String uploadChunked(Uri uri, String mime, long length, Coder encrypter,
+            ProgressListener listener, Bundle state) throws Exception {
+
+        // encrypted data must be the same when resuming
+        if (encrypter != null) {
+            String stagedPath = state.getString(STATE_STAGED);
+            File staged = (stagedPath != null) ? new File(stagedPath) : null;
+            if (staged == null || !staged.isFile()) {
+                staged = stage(uri, length, encrypter);
+                state.putString(STATE_STAGED, staged.getAbsolutePath());
+                state.putString(STATE_UPLOAD_ID, null);
+                // staged file must be known even if the upload can't start
+                listener.resumable(this, state);
+            }
+
+            uri = Uri.fromFile(staged);
+            length = staged.length();
+        }
+        else {
+            state.putString(STATE_STAGED, null);
+        }
+
+        final long total = length;
+        String uploadId = state.getString(STATE_UPLOAD_ID);
+        long offset = state.getLong(STATE_OFFSET, 0);
+        if (uploadId == null || state.getLong(STATE_LENGTH, -1) != total) {
+            uploadId = startChunked(mime, total, encrypter != null);
+            offset = 0;
+
+            state.putString(STATE_UPLOAD_ID, uploadId);
+            state.putLong(STATE_LENGTH, total);
+            state.putLong(STATE_OFFSET, offset);
+            listener.resumable(this, state);
+            Log.v(TAG, "starting chunked upload " + uploadId + " (" + total + " bytes)");
+        }
+        else {
+            Log.v(TAG, "resuming chunked upload " + uploadId + " at " + offset +
+                "/" + total + " bytes");
+        }
+
+        listener.start(this);
+
+        ChunkOutputStream chunks = new ChunkOutputStream(uploadId, offset, total, listener, state);
+        InputStream in = mContext.getContentResolver().openInputStream(uri);
+        try {
+            while (offset > 0) {
+                long skipped = in.skip(offset);
+                if (skipped <= 0)
+                    throw new IOException("unable to skip to resume offset");
+                offset -= skipped;
+            }
+
+            byte[] buf = new byte[CHUNK_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+                chunks.write(buf, 0, len);
+
+            chunks.close();
+        }
+        catch (ChunkHttpException e) {
+            // server doesn't know the upload anymore, start over next time
+            if (!isServerError(e)) {
+                state.putString(STATE_UPLOAD_ID, null);
+                listener.resumable(this, state);
+            }
+            throw e;
+        }
+        finally {
+            in.close();
+        }
+
+        final String id = uploadId;
+        HttpResponse response = executeWithRetry(new RequestFactory() {
+            public HttpRequestBase create() throws IOException {
+                List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+                params.add(new BasicNameValuePair("upload", id));
+                params.add(new BasicNameValuePair("complete", "1"));
+                return prepare(params, null, null, true);
+            }
+        }, "upload complete");
+
+        String stagedPath = state.getString(STATE_STAGED);
+        if (stagedPath != null)
+            new File(stagedPath).delete();
+
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    /**
+     * Deletes temporary data kept in an upload state, for uploads that
+     * won't be resumed.
+     */
+    public static void discard(Bundle state) {
+        String stagedPath = (state != null) ? state.getString(STATE_STAGED) : null;
+        if (stagedPath != null)
+            new File(stagedPath).delete();
+    }
+
+    /** Writes encrypted data to a temporary file. */
+    private File stage(Uri uri, long length, Coder encrypter) throws Exception {
+        File staged = File.createTempFile("upload", null, mContext.getCacheDir());
+        InputStream in = null;
+        OutputStream out = null;
+        boolean success = false;
+        try {
+            in = mContext.getContentResolver().openInputStream(uri);
+            out = encrypter.wrapOutputStream(new FileOutputStream(staged), length);
+
+            byte[] buf = new byte[CHUNK_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                if (mAborted)
+                    throw new IOException("upload aborted");
+                out.write(buf, 0, len);
+            }
+
+            out.close();
+            success = true;
+            return staged;
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+                if (out != null && !success)
+                    out.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+
+            if (!success)
+                staged.delete();
+        }
+    }
+
+    /** Sends a chunk, retrying a few times on errors. */
+    private void sendChunk(String uploadId, final byte[] data, final int length, final long offset,
+            final long total, final ProgressListener listener) throws IOException {
+
+        List<NameValuePair> params = new ArrayList<NameValuePair>(1);
+        params.add(new BasicNameValuePair("upload", uploadId));
+        final String uri = mBaseUrl + "?" + URLEncodedUtils.format(params, "UTF-8");
+
+        executeWithRetry(new RequestFactory() {
+            public HttpRequestBase create() {
+                HttpPut req = new HttpPut(uri);
+                req.setHeader("Content-Range", "bytes " + offset + "-" +
+                    (offset + length - 1) + "/" + total);
+                req.setEntity(new ChunkEntity(data, length, offset, listener));
+                return req;
+            }
+        }, "chunk at " + offset);
+    }
+
+    /** Creates a new request for every attempt. */
+    private interface RequestFactory {
+        public HttpRequestBase create() throws IOException;
+    }
+
+    /**
+     * Executes a chunked upload request, retrying a few times on errors.
+     * @param what description of the request, for logging
+     * @throws ChunkHttpException if the server replied with an error status
+     */
+    private HttpResponse executeWithRetry(RequestFactory factory, String what)
+            throws IOException {
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeChunkRequest(factory.create());
+            }
+            catch (ChunkHttpException e) {
+                // client errors won't go away by retrying
+                if (mAborted || attempt >= MAX_CHUNK_ATTEMPTS || !isServerError(e))
+                    throw e;
+
+                Log.w(TAG, what + " failed (attempt " + attempt + "), retrying", e);
+            }
+            catch (IOException e) {
+                if (mAborted || attempt >= MAX_CHUNK_ATTEMPTS)
+                    throw e;
+
+                Log.w(TAG, what + " failed (attempt " + attempt + "), retrying", e);
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY << (attempt - 1));
+            }
+            catch (InterruptedException e) {
+                throw innerException("upload interrupted", e);
+            }
+
+            if (mAborted)
+                throw new IOException("upload aborted");
+        }
+    }
+
+    /**
+     * Executes a chunked upload request, aborting it if it stalls.
+     * @return the response, with its content already read
+     * @throws ChunkHttpException if the server replied with an error status
+     */
+    private HttpResponse executeChunkRequest(final HttpRequestBase req)
+            throws IOException {
+
+        mLastActivity = SystemClock.elapsedRealtime();
+        TimerTask watchdog = new TimerTask() {
+            public void run() {
+                if (SystemClock.elapsedRealtime() - mLastActivity > STALL_TIMEOUT) {
+                    Log.w(TAG, "upload stalled - aborting request");
+                    cancel();
+                    req.abort();
+                }
+            }
+        };
+        sWatchdog.schedule(watchdog, STALL_CHECK_INTERVAL, STALL_CHECK_INTERVAL);
+
+        currentRequest = req;
+        HttpResponse response = null;
+        try {
+            response = execute(req);
+            int code = response.getStatusLine().getStatusCode();
+            if (code != HttpStatus.SC_OK && code != HttpStatus.SC_NO_CONTENT)
+                throw new ChunkHttpException(code, response.getStatusLine().getReasonPhrase());
+
+            if (response.getEntity() != null)
+                response.setEntity(new BufferedHttpEntity(response.getEntity()));
+            return response;
+        }
+        finally {
+            watchdog.cancel();
+            currentRequest = null;
+            try {
+                response.getEntity().consumeContent();
+            }
+            catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private static boolean isServerError(ChunkHttpException e) {
+        return e.mStatusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
     private IOException innerException(String detail, Throwable cause) {
         IOException ie = new IOException(detail);
         ie.initCause(cause);
@@ -214,17 +562,19 @@ public class KontalkBoxUploadConnection implements UploadConnection {
      *            data to be sent
      * @param length
      *            length of data
+     * @param encrypter
+     *            coder for encrypting data, null to send plain data
      * @return the request object
      * @throws IOException
      */
     private HttpRequestBase prepareMessage(ProgressListener listener,
-        String mime, InputStream data, long length, boolean encrypted)
+        String mime, InputStream data, long length, Coder encrypter)
             throws IOException {
 
         HttpPost req = (HttpPost) prepare(null, mime, null, true);
-        req.setEntity(new ProgressInputStreamEntity(data, length, this, listener));
+        req.setEntity(new ProgressInputStreamEntity(data, length, encrypter, this, listener));
 
-        if (encrypted)
+        if (encrypter != null)
             req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
 
         return req;
@@ -241,32 +591,8 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     private HttpResponse execute(HttpRequestBase request) throws IOException {
         // execute!
         try {
-            if (mConnection == null) {
-                SchemeRegistry registry = new SchemeRegistry();
-                try {
-                    registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
-
-                    boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-                    registry.register(new Scheme("https", ClientHTTPConnection
-                        .setupSSLSocketFactory(mContext, mPrivateKey, mCertificate, acceptAnyCertificate), 443));
-                }
-                catch (Exception e) {
-                    IOException ie = new IOException("unable to create keystore");
-                    ie.initCause(e);
-                    throw ie;
-                }
-
-                HttpParams params = new BasicHttpParams();
-                // handle redirects :)
-                params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-                // HttpClient bug caused by Lighttpd
-                params.setBooleanParameter("http.protocol.expect-continue", false);
-
-                // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-                mConnection = new DefaultHttpClient(connMgr, params);
-            }
+            if (mConnection == null)
+                mConnection = HttpClientPool.getClient(mContext, mPrivateKey, mCertificate);
             return mConnection.execute(request);
         }
         catch (ClientProtocolException e) {
@@ -277,4 +603,131 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     }
 
+    /** An HTTP error status in a chunked upload request. */
+    private static final class ChunkHttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int mStatusCode;
+
+        public ChunkHttpException(int statusCode, String reason) {
+            super(statusCode + " " + reason);
+            mStatusCode = statusCode;
+        }
+    }
+
+    /**
+     * Collects data into chunks and sends them. The resume state is updated
+     * after every chunk.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+        private final String mUploadId;
+        private final long mTotal;
+        private final ProgressListener mListener;
+        private final Bundle mState;
+
+        private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mCount;
+        private long mOffset;
+
+        public ChunkOutputStream(String uploadId, long offset, long total,
+                ProgressListener listener, Bundle state) {
+            mUploadId = uploadId;
+            mOffset = offset;
+            mTotal = total;
+            mListener = listener;
+            mState = state;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length)
+                flushChunk();
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mBuffer.length)
+                    flushChunk();
+
+                int count = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        /** Sends the last chunk. */
+        @Override
+        public void close() throws IOException {
+            if (mCount > 0)
+                flushChunk();
+
+            if (mOffset != mTotal)
+                throw new IOException("upload length mismatch: expected " +
+                    mTotal + ", sent " + mOffset);
+        }
+
+        private void flushChunk() throws IOException {
+            sendChunk(mUploadId, mBuffer, mCount, mOffset, mTotal, mListener);
+            mOffset += mCount;
+            mCount = 0;
+
+            mState.putLong(STATE_OFFSET, mOffset);
+            mListener.resumable(KontalkBoxUploadConnection.this, mState);
+        }
+    }
+
+    /** A chunk of data, reporting progress while being sent. */
+    private final class ChunkEntity extends AbstractHttpEntity {
+        private static final int WRITE_SIZE = 8192;
+
+        private final byte[] mData;
+        private final int mLength;
+        private final long mOffset;
+        private final ProgressListener mListener;
+
+        public ChunkEntity(byte[] data, int length, long offset, ProgressListener listener) {
+            mData = data;
+            mLength = length;
+            mOffset = offset;
+            mListener = listener;
+            setContentType("application/octet-stream");
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(mData, 0, mLength);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            for (int written = 0; written < mLength; ) {
+                int count = Math.min(WRITE_SIZE, mLength - written);
+                outstream.write(mData, written, count);
+                written += count;
+
+                mLastActivity = SystemClock.elapsedRealtime();
+                mListener.progress(KontalkBoxUploadConnection.this, mOffset + written);
+            }
+        }
+    }
+
 }
@@ -20,9 +20,11 @@ package org.kontalk.upload;
 
 import java.io.IOException;
 
+import org.kontalk.crypto.Coder;
 import org.kontalk.service.ProgressListener;
 
 import android.net.Uri;
+import android.os.Bundle;
 
 
 /**
@@ -33,7 +35,14 @@ public interface UploadConnection {
 
     public void abort();
 
-    public String upload(Uri uri, String mime, boolean encrypt, ProgressListener listener)
-        throws IOException;
+    /**
+     * Uploads a file.
+     * @param encrypter coder for encrypting data, null to upload plain data
+     * @param state state given to {@link ProgressListener#resumable} by a
+     * previous attempt, to resume the upload; null to start over
+     * @return the media URL
+     */
+    public String upload(Uri uri, String mime, Coder encrypter, ProgressListener listener,
+        Bundle state) throws IOException;
 
 }
@@ -350,6 +350,44 @@ public final class Emoji {
         emojiTheme.put(0x1F683, R.drawable.emoji_train);
     }
 
+    /*
+     * Direct lookup table built from emojiTheme: code points are split in
+     * pages of 256 entries, pages without emojis are not allocated.
+     */
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+    private static final int[][] emojiPages;
+
+    /** First SoftBank code. */
+    private static final char SOFTBANK_FIRST = 0xe001;
+
+    /** Chars lower than this can't be part of an emoji. */
+    private static final char minEmojiChar;
+
+    static {
+        int maxCodePoint = 0;
+        int minChar = SOFTBANK_FIRST;
+        for (int i = 0; i < emojiTheme.size(); i++) {
+            int codePoint = emojiTheme.keyAt(i);
+            maxCodePoint = Math.max(maxCodePoint, codePoint);
+            // surrogates are always higher than BMP emojis
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                minChar = Math.min(minChar, codePoint);
+            else
+                minChar = Math.min(minChar, Character.MIN_HIGH_SURROGATE);
+        }
+        minEmojiChar = (char) minChar;
+
+        emojiPages = new int[(maxCodePoint >> PAGE_SHIFT) + 1][];
+        for (int i = 0; i < emojiTheme.size(); i++) {
+            int codePoint = emojiTheme.keyAt(i);
+            int page = codePoint >> PAGE_SHIFT;
+            if (emojiPages[page] == null)
+                emojiPages[page] = new int[PAGE_MASK + 1];
+            emojiPages[page][codePoint & PAGE_MASK] = emojiTheme.valueAt(i);
+        }
+    }
+
     /** Mappings from SoftBank encoding to Unicode. */
     private static final int[] softbankMap = new int[] {
         /* \ue001 */ R.drawable.emoji_boy,
@@ -752,16 +790,26 @@ public final class Emoji {
         },
     };
 
+    /** Returns false if the given char can't be part of an emoji. */
+    public static boolean isEmojiCandidate(char c) {
+        return c >= minEmojiChar;
+    }
+
     public static boolean isSoftBankEmoji(char c) {
         return ((c >> 12) == 0xe);
     }
 
     public static int getEmojiResource(Context context, int codePoint) {
-        return emojiTheme.get(codePoint);
+        int page = codePoint >> PAGE_SHIFT;
+        if (page < 0 || page >= emojiPages.length || emojiPages[page] == null)
+            return 0;
+        return emojiPages[page][codePoint & PAGE_MASK];
     }
 
+    /** Returns the drawable for a SoftBank code, 0 if not found. */
     public static int getSoftbankEmojiResource(char c) {
-        return softbankMap[c - 0xe000 - 1];
+        int index = c - SOFTBANK_FIRST;
+        return (index >= 0 && index < softbankMap.length) ? softbankMap[index] : 0;
     }
 
 }
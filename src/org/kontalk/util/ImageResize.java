@@ -0,0 +1,82 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+
+/**
+ * Image scaling calculations. This class doesn't depend on Android
+ * classes, so it can be used outside of a device.
+ * @author Daniele Ricci
+ */
+public final class ImageResize {
+
+    /* EXIF orientation values. */
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private ImageResize() {
+    }
+
+    /**
+     * Returns the size of an image scaled down to fit the given maximum
+     * dimension, keeping its aspect ratio. Images already fitting are not
+     * scaled.
+     * @return an array with width and height
+     */
+    public static int[] getTargetSize(int width, int height, int maxSize) {
+        int max = Math.max(width, height);
+        if (maxSize <= 0 || max <= maxSize)
+            return new int[] { width, height };
+
+        return new int[] {
+            Math.max(1, Math.round((float) width * maxSize / max)),
+            Math.max(1, Math.round((float) height * maxSize / max))
+        };
+    }
+
+    /**
+     * Returns the largest power of two sample size which decodes an image
+     * still not smaller than the requested size.
+     */
+    public static int getSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        while ((width / (sampleSize * 2)) >= reqWidth &&
+                (height / (sampleSize * 2)) >= reqHeight)
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+
+    /** Returns the rotation in degrees for an EXIF orientation value. */
+    public static int getRotation(int exifOrientation) {
+        switch (exifOrientation) {
+            case ORIENTATION_ROTATE_90:
+                return 90;
+            case ORIENTATION_ROTATE_180:
+                return 180;
+            case ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+}
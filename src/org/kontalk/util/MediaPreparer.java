@@ -0,0 +1,208 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+
+/**
+ * Prepares media for sending. Images are scaled down, rotated according
+ * to their EXIF orientation and recompressed; recompression also strips
+ * all metadata.
+ * @author Daniele Ricci
+ */
+public final class MediaPreparer {
+    private static final String TAG = MediaPreparer.class.getSimpleName();
+
+    /** Directory for prepared media, relative to {@link MediaStorage#MEDIA_ROOT}. */
+    private static final String SENT_DIR = "Sent";
+
+    private MediaPreparer() {
+    }
+
+    /** Returns true if the given media type can be prepared. */
+    public static boolean supportsMimeType(String mime) {
+        // other formats might have transparency or animations
+        return "image/jpeg".equalsIgnoreCase(mime) ||
+            "image/jpg".equalsIgnoreCase(mime);
+    }
+
+    /**
+     * Prepares an image for sending, according to user preferences.
+     * @return the prepared JPEG file, or null if the image should be sent as-is
+     */
+    public static File prepareImage(Context context, Uri media, String mime) throws IOException {
+        int maxSize = Preferences.getImageMaxSize(context);
+        if (maxSize <= 0 || !supportsMimeType(mime) ||
+                !MediaStorage.isExternalStorageAvailable())
+            return null;
+
+        File dir = new File(MediaStorage.MEDIA_ROOT, SENT_DIR);
+        // already prepared (e.g. upload retry)
+        if ("file".equals(media.getScheme()) &&
+                dir.equals(new File(media.getPath()).getParentFile()))
+            return null;
+
+        ContentResolver cr = context.getContentResolver();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = cr.openInputStream(media);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            in.close();
+        }
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            throw new IOException("unable to decode image");
+
+        int[] size = ImageResize.getTargetSize(options.outWidth, options.outHeight, maxSize);
+        int rotation = getRotation(context, media);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageResize.getSampleSize(options.outWidth,
+            options.outHeight, size[0], size[1]);
+
+        dir.mkdirs();
+        String timeStamp =
+            new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File destination = File.createTempFile("image" + timeStamp + "_", ".jpg", dir);
+
+        boolean success = false;
+        try {
+            writeImage(context, media, options, size, rotation, destination);
+
+            // recompression doesn't always pay off
+            long length = MediaStorage.getLength(context, media);
+            if (length > 0 && destination.length() >= length) {
+                Log.v(TAG, "prepared image is not smaller, sending original");
+                return null;
+            }
+
+            success = true;
+        }
+        catch (OutOfMemoryError e) {
+            Log.w(TAG, "not enough memory to prepare image, sending original", e);
+            return null;
+        }
+        finally {
+            if (!success)
+                destination.delete();
+        }
+
+        Log.v(TAG, "image prepared: " + options.outWidth + "x" + options.outHeight +
+            " -> " + size[0] + "x" + size[1] + ", rotation " + rotation);
+        return destination;
+    }
+
+    /** Decodes, scales, rotates and compresses an image to a file. */
+    private static void writeImage(Context context, Uri media, BitmapFactory.Options options,
+            int[] size, int rotation, File destination) throws IOException {
+
+        Bitmap bitmap;
+        InputStream in = context.getContentResolver().openInputStream(media);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            in.close();
+        }
+
+        if (bitmap == null)
+            throw new IOException("unable to decode image");
+
+        // scale and rotate in a single pass
+        Matrix matrix = new Matrix();
+        matrix.postScale((float) size[0] / bitmap.getWidth(),
+            (float) size[1] / bitmap.getHeight());
+        if (rotation != 0)
+            matrix.postRotate(rotation);
+
+        Bitmap scaled = null;
+        try {
+            scaled = Bitmap.createBitmap(bitmap, 0, 0,
+                bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        }
+        finally {
+            // the original might be returned as-is
+            if (scaled != bitmap)
+                bitmap.recycle();
+        }
+
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            scaled.compress(Bitmap.CompressFormat.JPEG,
+                Preferences.getImageQuality(context), out);
+        }
+        finally {
+            out.close();
+            scaled.recycle();
+        }
+    }
+
+    /** Returns the rotation needed to display an image upright. */
+    private static int getRotation(Context context, Uri media) {
+        try {
+            if ("file".equals(media.getScheme())) {
+                ExifInterface exif = new ExifInterface(media.getPath());
+                return ImageResize.getRotation(exif.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ImageResize.ORIENTATION_NORMAL));
+            }
+
+            // media store has it already
+            Cursor c = context.getContentResolver().query(media,
+                new String[] { MediaStore.Images.ImageColumns.ORIENTATION },
+                null, null, null);
+            if (c != null) {
+                try {
+                    if (c.moveToFirst())
+                        return c.getInt(0);
+                }
+                finally {
+                    c.close();
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to read image orientation", e);
+        }
+
+        return 0;
+    }
+
+}
@@ -61,6 +61,7 @@ import android.text.style.DynamicDrawableSpan;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -76,49 +77,75 @@ public final class MessageUtils {
     private static final ForegroundColorSpan STYLE_GREEN = new ForegroundColorSpan(Color.rgb(0, 0xAA, 0));
 
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX_ARRAY_LOWER = "0123456789abcdef".toCharArray();
 
     private MessageUtils() {}
 
-    public static void convertSmileys(Context context, Spannable text, int size) {
-        // remove all of our spans first
-        SmileyImageSpan[] oldSpans = text.getSpans(0, text.length(), SmileyImageSpan.class);
-        for (int i = 0; i < oldSpans.length; i++)
-            text.removeSpan(oldSpans[i]);
-
+    /**
+     * Replaces emojis with images.
+     * @return true if any emoji was found
+     */
+    public static boolean convertSmileys(Context context, Spannable text, int size) {
         int len = text.length();
+
+        // remove all of our spans first (checking without allocating)
+        if (text.nextSpanTransition(-1, len, SmileyImageSpan.class) < len) {
+            SmileyImageSpan[] oldSpans = text.getSpans(0, len, SmileyImageSpan.class);
+            for (int i = 0; i < oldSpans.length; i++)
+                text.removeSpan(oldSpans[i]);
+        }
+
+        boolean found = false;
         int skip;
         for (int i = 0; i < len; i += skip) {
-            skip = 0;
-            int icon = 0;
+            skip = 1;
             char c = text.charAt(i);
-            if (Emoji.isSoftBankEmoji(c)) {
-                try {
-                    icon = Emoji.getSoftbankEmojiResource(c);
-                    skip = 1;
-                }
-                catch (ArrayIndexOutOfBoundsException e) {
-                    // skip code
-                }
-            }
+            // fast path for plain text
+            if (!Emoji.isEmojiCandidate(c))
+                continue;
+
+            int icon = 0;
+            if (Emoji.isSoftBankEmoji(c))
+                icon = Emoji.getSoftbankEmojiResource(c);
 
             if (icon == 0) {
                 // softbank encoding not found, try extracting a code point
                 int unicode = Character.codePointAt(text, i);
-                // calculate skip count if not previously set
-                if (skip == 0)
-                    skip = Character.charCount(unicode);
-
-                // avoid looking up if unicode < 0xFF
-                if (unicode > 0xff)
-                    icon = Emoji.getEmojiResource(context, unicode);
+                skip = Character.charCount(unicode);
+                icon = Emoji.getEmojiResource(context, unicode);
             }
 
             if (icon > 0) {
                 // set emoji span
                 SmileyImageSpan span = new SmileyImageSpan(context, icon, size);
                 text.setSpan(span, i, i+skip, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE /* | Spannable.SPAN_COMPOSING*/);
+                found = true;
             }
         }
+
+        return found;
+    }
+
+    /** Emoji drawables by size and resource id, shared by all spans. */
+    private static final SparseArray<SparseArray<Drawable>> sSmileyDrawables =
+        new SparseArray<SparseArray<Drawable>>();
+
+    private static synchronized Drawable getSmileyDrawable(Context context, int resourceId, int size) {
+        SparseArray<Drawable> drawables = sSmileyDrawables.get(size);
+        if (drawables == null) {
+            drawables = new SparseArray<Drawable>();
+            sSmileyDrawables.put(size, drawables);
+        }
+
+        Drawable drawable = drawables.get(resourceId);
+        if (drawable == null) {
+            drawable = context.getResources().getDrawable(resourceId);
+            int px = getDensityPixel(context, size);
+            drawable.setBounds(0, 0, px, px);
+            drawables.put(resourceId, drawable);
+        }
+
+        return drawable;
     }
 
     public static final class SmileyImageSpan extends DynamicDrawableSpan {
@@ -139,22 +166,15 @@ public final class MessageUtils {
         }
 
         public Drawable getDrawable() {
-            Drawable drawable = null;
-
-            if (mDrawable != null) {
-                drawable = mDrawable;
-            }
-            else {
+            if (mDrawable == null) {
                 try {
-                    drawable = mContext.getResources().getDrawable(mResourceId);
-                    int size = getDensityPixel(mContext, mSize);
-                    drawable.setBounds(0, 0, size, size);
+                    mDrawable = getSmileyDrawable(mContext, mResourceId, mSize);
                 } catch (Exception e) {
                     Log.e("sms", "Unable to find resource: " + mResourceId);
                 }
             }
 
-            return drawable;
+            return mDrawable;
         }
     }
 
@@ -264,35 +284,38 @@ public final class MessageUtils {
     }
 
     private static String convertToHex(byte[] data) {
-        StringBuffer buf = new StringBuffer();
+        char[] hexChars = new char[data.length * 2];
         for (int i = 0; i < data.length; i++) {
-            int halfbyte = (data[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-            do {
-                if ((0 <= halfbyte) && (halfbyte <= 9))
-                    buf.append((char) ('0' + halfbyte));
-                else
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                halfbyte = data[i] & 0x0F;
-            } while(two_halfs++ < 1);
-        }
-        return buf.toString();
+            int v = data[i] & 0xFF;
+            hexChars[i * 2] = HEX_ARRAY_LOWER[v >>> 4];
+            hexChars[i * 2 + 1] = HEX_ARRAY_LOWER[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /** Returns a new SHA-1 digest, to be used with {@link #sha1(MessageDigest, String)}. */
+    public static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // no SHA-1?? WWWHHHHAAAAAATTTT???!?!?!?!?!
+            throw new RuntimeException("no SHA-1 available. What the crap of a device do you have?");
+        }
     }
 
     public static String sha1(String text) {
-    	try {
-	        MessageDigest md;
-	        md = MessageDigest.getInstance("SHA-1");
-	        byte[] sha1hash = new byte[40];
-	        md.update(text.getBytes(), 0, text.length());
-	        sha1hash = md.digest();
-
-	        return convertToHex(sha1hash);
-    	}
-    	catch (NoSuchAlgorithmException e) {
-    		// no SHA-1?? WWWHHHHAAAAAATTTT???!?!?!?!?!
-    		throw new RuntimeException("no SHA-1 available. What the crap of a device do you have?");
-    	}
+        return sha1(sha1Digest(), text);
+    }
+
+    /**
+     * Hashes a text using the given SHA-1 digest. The digest can be reused
+     * for hashing many texts, but not from several threads.
+     */
+    public static String sha1(MessageDigest md, String text) {
+        md.reset();
+        md.update(text.getBytes(), 0, text.length());
+        return convertToHex(md.digest());
     }
 
     public static CharSequence getFileInfoMessage(Context context, CompositeMessage msg, String decodedPeer) {
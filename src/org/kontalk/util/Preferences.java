@@ -198,6 +198,51 @@ public final class Preferences {
             .commit();
     }
 
+    /** Returns the settings phone numbers were last normalized with. */
+    public static String getNumberNormalizationKey(Context context) {
+        return getString(context, "pref_number_normalization", null);
+    }
+
+    public static boolean setNumberNormalizationKey(Context context, String key) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.edit()
+            .putString("pref_number_normalization", key)
+            .commit();
+    }
+
+    /** Returns the last user hash written by an interrupted sync. */
+    public static String getSyncResumeHash(Context context) {
+        return getString(context, "pref_sync_resume_hash", null);
+    }
+
+    public static long getSyncResumeTimestamp(Context context) {
+        return getLong(context, "pref_sync_resume_timestamp", -1);
+    }
+
+    public static String getSyncResumeUsers(Context context) {
+        return getString(context, "pref_sync_resume_users", null);
+    }
+
+    /**
+     * Stores the last user hash written by a sync, so an interrupted sync
+     * can be resumed.
+     * @param hash the user hash, null to clear
+     * @param users digest of the users being synced
+     */
+    public static boolean setSyncResume(Context context, String hash, String users) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (hash != null)
+            editor.putString("pref_sync_resume_hash", hash)
+                .putString("pref_sync_resume_users", users)
+                .putLong("pref_sync_resume_timestamp", System.currentTimeMillis());
+        else
+            editor.remove("pref_sync_resume_hash")
+                .remove("pref_sync_resume_users")
+                .remove("pref_sync_resume_timestamp");
+        return editor.commit();
+    }
+
     public static boolean setLastPushNotification(Context context, long timestamp) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.edit()
@@ -339,6 +384,16 @@ public final class Preferences {
     	return getBoolean(context, "pref_accept_any_certificate", false);
     }
 
+    /** Returns the maximum dimension of sent images, 0 to send original images. */
+    public static int getImageMaxSize(Context context) {
+        return getIntMinValue(context, "pref_image_resize", 0, 1600);
+    }
+
+    /** Returns the JPEG quality of scaled down images. */
+    public static int getImageQuality(Context context) {
+        return getIntMinValue(context, "pref_image_quality", 10, 85);
+    }
+
     public static int getIdleTimeMillis(Context context, int minValue, int defaultValue) {
         return getIntMinValue(context, "pref_idle_time", minValue, defaultValue);
     }
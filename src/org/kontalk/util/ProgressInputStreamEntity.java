@@ -22,27 +22,71 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 
 import org.apache.http.entity.InputStreamEntity;
+import org.kontalk.crypto.Coder;
 import org.kontalk.service.ProgressListener;
 import org.kontalk.upload.UploadConnection;
 
 
 public class ProgressInputStreamEntity extends InputStreamEntity {
+    /** Buffer size for encrypted data. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
     protected final UploadConnection mConn;
     protected final ProgressListener mListener;
 
+    private final Coder mEncrypter;
+    private final long mLength;
+
     public ProgressInputStreamEntity(InputStream instream, long length,
             final UploadConnection conn, final ProgressListener listener) {
-        super(instream, length);
+        this(instream, length, null, conn, listener);
+    }
+
+    /**
+     * Creates an entity encrypting data while it's being written.
+     * @param encrypter the coder to encrypt data with, null for plain data
+     */
+    public ProgressInputStreamEntity(InputStream instream, long length, Coder encrypter,
+            final UploadConnection conn, final ProgressListener listener) {
+        super(instream, encrypter != null ? encrypter.getEncryptedLength(length) : length);
         mConn = conn;
         mListener = listener;
+        mEncrypter = encrypter;
+        mLength = length;
     }
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
         mListener.start(mConn);
-        super.writeTo(new CountingOutputStream(outstream, mConn, mListener));
+        OutputStream out = new CountingOutputStream(outstream, mConn, mListener);
+
+        if (mEncrypter == null) {
+            super.writeTo(out);
+            return;
+        }
+
+        InputStream in = getContent();
+        try {
+            OutputStream encrypted = mEncrypter.wrapOutputStream(out, mLength);
+
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+                encrypted.write(buf, 0, len);
+
+            encrypted.close();
+        }
+        catch (GeneralSecurityException e) {
+            IOException ie = new IOException("encryption error");
+            ie.initCause(e);
+            throw ie;
+        }
+        finally {
+            in.close();
+        }
     }
 
     private static final class CountingOutputStream extends FilterOutputStream {
@@ -34,13 +34,20 @@ public class ProgressOutputStreamEntity implements HttpEntity {
     private final HttpEntity mParent;
     private final String mUrl;
     private final File mFile;
+    private final long mOffset;
     private final DownloadListener mListener;
 
+    /**
+     * Completion of the download is not reported, since the downloaded data
+     * might need further processing.
+     * @param offset length of data already downloaded, for resumed downloads
+     */
     public ProgressOutputStreamEntity(HttpEntity parent,
-            String url, File file, final DownloadListener listener) {
+            String url, File file, long offset, final DownloadListener listener) {
         mParent = parent;
         mUrl = url;
         mFile = file;
+        mOffset = offset;
         mListener = listener;
     }
 
@@ -86,10 +93,9 @@ public class ProgressOutputStreamEntity implements HttpEntity {
 
     @Override
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
-        Header mime = mParent.getContentType();
-        mListener.completed(mUrl, mime != null ? mime.getValue() : null, mFile);
+        long length = mParent.getContentLength();
+        mListener.start(mUrl, mFile, length >= 0 ? mOffset + length : length);
+        mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mOffset, mListener));
     }
 
     private static final class CountingOutputStream extends FilterOutputStream {
@@ -99,12 +105,12 @@ public class ProgressOutputStreamEntity implements HttpEntity {
         private long transferred;
 
         public CountingOutputStream(final OutputStream out,
-                final String url, final File file, final DownloadListener listener) {
+                final String url, final File file, long offset, final DownloadListener listener) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
@@ -0,0 +1,288 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Generates media thumbnails. Generated thumbnails are cached on disk by
+ * content hash, so the same media (e.g. forwarded to several users) is
+ * processed only once.
+ * @author Daniele Ricci
+ */
+public final class ThumbnailCache {
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+    public static final int THUMBNAIL_WIDTH = 128;
+    public static final int THUMBNAIL_HEIGHT = 128;
+
+    /** Thumbnails will be compressed until they fit into this size. */
+    private static final int MAX_THUMBNAIL_SIZE = 8 * 1024;
+    private static final int QUALITY_START = 85;
+    private static final int QUALITY_MIN = 40;
+    private static final int QUALITY_STEP = 15;
+
+    /** Maximum disk cache size. */
+    private static final long MAX_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final String CACHE_DIR = "thumbnails";
+
+    private static final int THREADS = 2;
+
+    /** Receives a thumbnail generated in background. */
+    public interface Callback {
+        /**
+         * Called from the worker thread, also on errors.
+         * @param thumbnail the thumbnail file, null on errors
+         */
+        public void thumbnailReady(File thumbnail);
+    }
+
+    private static ThumbnailCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mCacheDir;
+    private final ThreadPoolExecutor mExecutor;
+
+    private ThumbnailCache(Context context) {
+        mResolver = context.getContentResolver();
+        mCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+
+        // every request must be served, callers are waiting for it
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+    }
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /** Generates a thumbnail in background. */
+    public void submit(final Uri media, final File destination, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                File thumbnail = null;
+                try {
+                    create(media, destination);
+                    thumbnail = destination;
+                }
+                catch (Exception e) {
+                    Log.w(TAG, "unable to generate thumbnail for " + media, e);
+                }
+                callback.thumbnailReady(thumbnail);
+            }
+        });
+    }
+
+    /** Writes a thumbnail of a media to a {@link File}. */
+    public void create(Uri media, File destination) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        String key = readBounds(media, options);
+
+        File cached = new File(mCacheDir, key + ".jpg");
+        if (cached.isFile()) {
+            // mark as recently used
+            cached.setLastModified(System.currentTimeMillis());
+            copy(cached, destination);
+            return;
+        }
+
+        // error :(
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            throw new IOException("unable to decode image");
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageResize.getSampleSize(options.outWidth, options.outHeight,
+            THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        Bitmap bitmap;
+        InputStream in = mResolver.openInputStream(media);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            in.close();
+        }
+
+        if (bitmap == null)
+            throw new IOException("unable to decode image");
+
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap,
+            THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        byte[] data = compress(thumbnail);
+        thumbnail.recycle();
+
+        write(data, destination);
+        store(cached, data);
+    }
+
+    /**
+     * Reads image bounds and hashes the media content in a single pass.
+     * @return the content hash
+     */
+    private String readBounds(Uri media, BitmapFactory.Options options) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("no SHA-1 available", e);
+        }
+
+        InputStream in = new DigestInputStream(mResolver.openInputStream(media), md);
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, options);
+
+            // hash the rest of the content
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0);
+        }
+        finally {
+            in.close();
+        }
+
+        return MessageUtils.bytesToHex(md.digest());
+    }
+
+    /** Compresses a thumbnail to JPEG, lowering quality to fit the size limit. */
+    private static byte[] compress(Bitmap thumbnail) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_THUMBNAIL_SIZE);
+        int quality = QUALITY_START;
+        while (true) {
+            out.reset();
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, quality, out);
+
+            if (out.size() <= MAX_THUMBNAIL_SIZE || quality <= QUALITY_MIN)
+                break;
+
+            quality = Math.max(QUALITY_MIN, quality - QUALITY_STEP);
+        }
+
+        return out.toByteArray();
+    }
+
+    /** Adds a thumbnail to the disk cache, evicting least recently used ones. */
+    private synchronized void store(File cached, byte[] data) {
+        try {
+            mCacheDir.mkdirs();
+            write(data, cached);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "unable to cache thumbnail", e);
+            return;
+        }
+
+        File[] files = mCacheDir.listFiles();
+        if (files == null)
+            return;
+
+        long size = 0;
+        for (File f : files)
+            size += f.length();
+
+        if (size <= MAX_CACHE_SIZE)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > MAX_CACHE_SIZE; i++) {
+            long length = files[i].length();
+            if (files[i].delete())
+                size -= length;
+        }
+    }
+
+    /** Writes data to a temporary file, then moves it to the destination. */
+    private static void write(byte[] data, File destination) throws IOException {
+        File temp = new File(destination.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(destination)) {
+            temp.delete();
+            throw new IOException("unable to write " + destination);
+        }
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+        byte[] data = new byte[(int) source.length()];
+        InputStream in = new FileInputStream(source);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int len = in.read(data, read, data.length - read);
+                if (len < 0)
+                    throw new IOException("unexpected end of file");
+                read += len;
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        write(data, destination);
+    }
+
+}